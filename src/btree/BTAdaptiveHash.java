@@ -0,0 +1,123 @@
+package btree;
+
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTAdaptiveHash remembers where findRunStart() found the keys that are
+ * looked up again and again, as (leaf page, slot), so that a hot key goes
+ * straight to its leaf instead of descending from the root. A key is
+ * admitted once it has been looked up HOT times; the table keeps the
+ * CAPACITY most recently used keys.
+ * <p>
+ * The positions on a leaf are dropped whenever an insert, a split, a
+ * delete or a free changes that leaf, so a remembered position stays where
+ * the run starts. The run of a key can also begin on the leaf to the left
+ * of the one it was found on, if an entry >= the key goes to the end of
+ * that leaf; a run found in slot 0 is therefore only remembered on the
+ * left-most leaf. A hit pins the leaf and nothing else, and checks for free
+ * on it that the slot before holds a smaller key and the slot a key that
+ * is not.
+ */
+class BTAdaptiveHash implements GlobalConst {
+
+	/* lookups of a key before its position is used */
+	private final static int HOT = 2;
+	/* keys remembered */
+	private final static int CAPACITY = 4096;
+
+	/* where a key was found last, INVALID_PAGE if forgotten, and how often */
+	private static class Position {
+		int pid = INVALID_PAGE;
+		int slot;
+		int seen;
+	}
+
+	private final LinkedHashMap<Object, Position> positions = new LinkedHashMap<Object, Position>(
+			16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Object, Position> eldest) {
+			if (size() <= CAPACITY)
+				return false;
+			unlink(eldest.getValue());
+			return true;
+		}
+	};
+	/* the positions remembered on every leaf */
+	private final HashMap<Integer, HashSet<Position>> leaves = new HashMap<Integer, HashSet<Position>>();
+
+	/**
+	 * @return where `key' was found, in `rid', if it is hot; false if the
+	 *         tree has to be searched
+	 */
+	boolean lookup(KeyClass key, RID rid) {
+		Position position = positions.get(value(key));
+		if (position == null || position.seen < HOT
+				|| position.pid == INVALID_PAGE)
+			return false;
+		rid.pageNo = new PageId(position.pid);
+		rid.slotNo = position.slot;
+		return true;
+	}
+
+	/*
+	 * a search of the tree found the run of `key' at (pageno, slot);
+	 * `leftmost' if no leaf is left of pageno
+	 */
+	void record(KeyClass key, PageId pageno, int slot, boolean leftmost) {
+		Object value = value(key);
+		Position position = positions.get(value);
+		if (slot == 0 && !leftmost) {
+			if (position != null) {
+				unlink(position);
+				position.pid = INVALID_PAGE;
+			}
+			return;
+		}
+		if (position == null) {
+			position = new Position();
+			positions.put(value, position);
+		} else {
+			unlink(position);
+		}
+		position.pid = pageno.pid;
+		position.slot = slot;
+		position.seen++;
+		HashSet<Position> onLeaf = leaves.get(pageno.pid);
+		if (onLeaf == null) {
+			onLeaf = new HashSet<Position>();
+			leaves.put(pageno.pid, onLeaf);
+		}
+		onLeaf.add(position);
+	}
+
+	/*
+	 * leaf `pageno' is changed; forget the positions on it. The keys stay
+	 * hot, so the next search records them again.
+	 */
+	void changed(PageId pageno) {
+		HashSet<Position> onLeaf = leaves.remove(pageno.pid);
+		if (onLeaf != null)
+			for (Position position : onLeaf)
+				position.pid = INVALID_PAGE;
+	}
+
+	void clear() {
+		positions.clear();
+		leaves.clear();
+	}
+
+	/* take `position' off the list of its leaf */
+	private void unlink(Position position) {
+		HashSet<Position> onLeaf = leaves.get(position.pid);
+		if (onLeaf != null && onLeaf.remove(position) && onLeaf.isEmpty())
+			leaves.remove(position.pid);
+	}
+
+	/* IntegerKey and StringKey have no equals() of their own */
+	private static Object value(KeyClass key) {
+		if (key instanceof IntegerKey)
+			return ((IntegerKey) key).getKey();
+		return ((StringKey) key).getKey();
+	}
+}
@@ -0,0 +1,159 @@
+package btree;
+
+import java.util.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTBulkLoader builds a B+ tree bottom up from entries handed to it in key
+ * order, without descending from the root for every entry. Leaves are filled
+ * up to a fill factor and are taken one after the other from fresh extents
+ * of the index (see BTExtentMap), so the leaf chain comes out in physical
+ * page order and a range scan reads the file sequentially. The index levels are built alongside: whenever a page
+ * is started, its first key and page id go into the level above, which
+ * starts new pages (and new levels) the same way.
+ * <p>
+ * Only the right-most page of every level is pinned between calls. The tree
+ * is not reachable from any header until the caller installs the root
+ * returned by finish().
+ */
+class BTBulkLoader implements GlobalConst {
+
+	private final BTExtentMap extents;
+	private final int keyType;
+	private final int reserve; // bytes to leave free on every page
+
+	private BTLeafPage leaf; // right-most leaf, pinned
+	private PageId firstLeaf;
+	/* right-most page of every index level, pinned; 0 is above the leaves */
+	private final ArrayList<BTIndexPage> levels = new ArrayList<BTIndexPage>();
+
+	/* every page taken so far, for abort() */
+	private final ArrayList<Integer> pages = new ArrayList<Integer>();
+
+	private long entries;
+
+	/**
+	 * @param extents
+	 *            the extents to take the leaves from
+	 * @param keyType
+	 *            key type of the tree, AttrType.attrInteger or attrString
+	 * @param fill
+	 *            how full to make each page, between 0.5 and 1
+	 */
+	BTBulkLoader(BTExtentMap extents, int keyType, double fill) {
+		this.extents = extents;
+		this.keyType = keyType;
+		fill = Math.max(0.5, Math.min(1, fill));
+		this.reserve = (int) ((1 - fill) * (MAX_SPACE - HFPage.DPFIXED));
+	}
+
+	/**
+	 * Append an entry. Keys must come in ascending order.
+	 */
+	void add(KeyClass key, RID rid) throws Exception {
+		if (leaf == null) {
+			leaf = newLeaf();
+			firstLeaf = leaf.getCurPage();
+		} else if (leaf.getSlotCnt() > 0
+				&& leaf.available_space() < BT.getKeyDataLength(key,
+						NodeType.LEAF) + reserve) {
+			BTLeafPage next = newLeaf();
+			PageId prevId = leaf.getCurPage();
+			PageId nextId = next.getCurPage();
+			leaf.setNextPage(nextId);
+			next.setPrevPage(prevId);
+			SystemDefs.JavabaseBM.unpinPage(prevId, true);
+			leaf = next;
+			addChild(0, key, nextId, prevId);
+		}
+		leaf.insertRecord(key, rid);
+		entries++;
+	}
+
+	/** @return the number of entries added so far */
+	long entries() {
+		return entries;
+	}
+
+	/**
+	 * Unpin all pages.
+	 *
+	 * @return the root of the new tree, INVALID_PAGE if nothing was added
+	 */
+	PageId finish() throws Exception {
+		if (leaf == null)
+			return new PageId(INVALID_PAGE);
+
+		SystemDefs.JavabaseBM.unpinPage(leaf.getCurPage(), true);
+		leaf = null;
+		PageId root = firstLeaf;
+		for (BTIndexPage page : levels) {
+			root = page.getCurPage();
+			SystemDefs.JavabaseBM.unpinPage(root, true);
+		}
+		levels.clear();
+		return root;
+	}
+
+	/**
+	 * Throw the partly built tree away.
+	 */
+	void abort() throws Exception {
+		if (leaf != null)
+			SystemDefs.JavabaseBM.unpinPage(leaf.getCurPage(), false);
+		leaf = null;
+		for (BTIndexPage page : levels)
+			SystemDefs.JavabaseBM.unpinPage(page.getCurPage(), false);
+		levels.clear();
+		for (int pid : pages)
+			if (!extents.free(new PageId(pid)))
+				SystemDefs.JavabaseBM.freePage(new PageId(pid));
+		pages.clear();
+	}
+
+	/*
+	 * Add separator `key' for page `child' to index level `level'. If the
+	 * level does not exist yet, `first' is the only page below it so far and
+	 * becomes the left-most child of the new level.
+	 */
+	private void addChild(int level, KeyClass key, PageId child, PageId first)
+			throws Exception {
+		if (level == levels.size()) {
+			BTIndexPage page = newIndexPage();
+			page.setPrevPage(first);
+			levels.add(page);
+		}
+
+		BTIndexPage page = levels.get(level);
+		if (page.getSlotCnt() == 0
+				|| page.available_space() >= BT.getKeyDataLength(key,
+						NodeType.INDEX) + reserve) {
+			page.insertKey(key, child);
+			return;
+		}
+
+		// full: start a new page whose left-most child is `child', and
+		// push `key' up to tell the two pages apart
+		BTIndexPage next = newIndexPage();
+		next.setPrevPage(child);
+		PageId prevId = page.getCurPage();
+		SystemDefs.JavabaseBM.unpinPage(prevId, true);
+		levels.set(level, next);
+		addChild(level + 1, key, next.getCurPage(), prevId);
+	}
+
+	private BTLeafPage newLeaf() throws Exception {
+		BTLeafPage page = extents.newLeaf(leaf == null ? null : leaf
+				.getCurPage(), true, keyType);
+		pages.add(page.getCurPage().pid);
+		return page;
+	}
+
+	private BTIndexPage newIndexPage() throws Exception {
+		BTIndexPage page = new BTIndexPage(keyType);
+		pages.add(page.getCurPage().pid);
+		return page;
+	}
+}
@@ -0,0 +1,163 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTCompactor rebuilds a B+ tree online. It copies the entries, in key
+ * order, into freshly allocated leaves that are packed to a fill factor and
+ * laid out in physical page order, rebuilds the index levels on top of them
+ * with BTBulkLoader, and finally swaps the new root into the header page and
+ * frees the old tree.
+ * <p>
+ * The copy runs in steps, so inserts and deletes can go on between them;
+ * they keep going to the old tree. Changes to keys the copy has already
+ * passed are remembered and applied to the new tree right after the swap.
+ * Scans must not be open across the step that finishes the compaction,
+ * because it frees the pages they are on.
+ * <p>
+ * <pre>
+ * BTCompactor compactor = file.new_compactor(0.9);
+ * while (!compactor.step(1000))
+ * 	; // serve other requests in between
+ * </pre>
+ */
+public class BTCompactor implements GlobalConst {
+
+	/* a change to the old tree behind the copy position */
+	private static class Change {
+		final boolean insert;
+		final KeyClass key;
+		final RID rid;
+
+		Change(boolean insert, KeyClass key, RID rid) {
+			this.insert = insert;
+			this.key = key;
+			this.rid = new RID(rid.pageNo, rid.slotNo);
+		}
+	}
+
+	private final BTreeFile bfile;
+	private final BTBulkLoader loader;
+	private final ArrayList<Change> changes = new ArrayList<Change>();
+
+	// every entry with a key <= lastKey has been copied
+	private KeyClass lastKey;
+	private boolean done;
+
+	BTCompactor(BTreeFile bfile, double fill) throws IOException {
+		this.bfile = bfile;
+		this.loader = new BTBulkLoader(bfile.extentMap(), bfile
+				.getHeaderPage().get_keyType(), fill);
+	}
+
+	/**
+	 * Copy about `entries' more entries into the new tree; all entries with
+	 * the same key are copied in the same step. When the old tree has been
+	 * copied completely, the new one replaces it.
+	 *
+	 * @param entries
+	 *            number of entries to copy, at least 1
+	 * @return true when the compaction is finished
+	 * @exception IteratorException
+	 *                error while copying or swapping the trees
+	 */
+	public boolean step(int entries) throws IteratorException {
+		if (done)
+			return true;
+
+		BTCursor cursor = bfile.new_cursor();
+		try {
+			KeyDataEntry entry = null;
+			if (bfile.getHeaderPage().get_rootId().pid != INVALID_PAGE) {
+				// find the first entry after the last copied key
+				cursor.seek(lastKey);
+				if (lastKey != null)
+					while ((entry = cursor.current()) != null
+							&& BT.keyCompare(entry.key, lastKey) == 0)
+						cursor.get_next();
+
+				int copied = 0;
+				while ((entry = cursor.current()) != null) {
+					if (copied >= entries
+							&& BT.keyCompare(entry.key, lastKey) != 0)
+						break;
+					loader.add(entry.key, ((LeafData) entry.data).getData());
+					lastKey = entry.key;
+					copied++;
+					cursor.get_next();
+				}
+			}
+
+			// a cursor that ran off the end holds no page, so the old tree
+			// can be freed while it is still open
+			if (entry == null)
+				finish();
+			return done;
+		} catch (Exception e) {
+			throw new IteratorException(e, "compaction step failed");
+		} finally {
+			try {
+				cursor.close();
+			} catch (ScanIteratorException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Stop the compaction and free the pages of the new tree. The old tree
+	 * stays in use.
+	 *
+	 * @exception IteratorException
+	 *                error while freeing pages
+	 */
+	public void abort() throws IteratorException {
+		if (done)
+			return;
+		done = true;
+		bfile.compactor = null;
+		try {
+			loader.abort();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "compaction abort failed");
+		}
+	}
+
+	/** @return true when the new tree is in place, or after abort() */
+	public boolean isDone() {
+		return done;
+	}
+
+	/** @return the number of entries copied so far */
+	public long getCopied() {
+		return loader.entries();
+	}
+
+	/*
+	 * called by BTreeFile for every insert and delete done while the
+	 * compaction runs
+	 */
+	void changed(boolean insert, KeyClass key, RID rid)
+			throws KeyNotMatchException {
+		if (lastKey != null && BT.keyCompare(key, lastKey) <= 0)
+			changes.add(new Change(insert, key, rid));
+	}
+
+	private void finish() throws Exception {
+		PageId root = loader.finish();
+		bfile.compactor = null;
+		done = true;
+		bfile.swapRoot(root);
+
+		for (Change change : changes)
+			if (change.insert)
+				bfile.insert(change.key, change.rid);
+			else
+				bfile.Delete(change.key, change.rid);
+		changes.clear();
+	}
+}
@@ -0,0 +1,178 @@
+package btree;
+
+import global.*;
+
+/**
+ * BTCursor is a reusable, forward-only position on the leaf level of a B+
+ * tree. Unlike BTFileScan, which starts at lo_key and can only step forward,
+ * a cursor can be moved ahead with seek(), so one cursor can serve a whole
+ * list of disjoint ranges or keys (IN-lists, skip-scans) in key order.
+ * <p>
+ * seek() re-enters from the current leaf when the target is on it or a few
+ * leaves further right, and only descends from the root when the target is
+ * far away or behind the cursor. The current leaf stays pinned until the
+ * cursor runs off the end of the index or close() is called.
+ */
+public class BTCursor implements GlobalConst {
+
+	/*
+	 * leaf hops seek() makes towards its target before it gives up and
+	 * descends from the root again; about the height of a large tree.
+	 */
+	private final static int SEEK_GALLOP = 3;
+
+	private final BTreeFile bfile;
+	private BTLeafPage leafPage; // pinned, null if not positioned
+	private int slot; // slot of the current entry on leafPage
+	private final RID curRid = new RID();
+
+	// every entry before the position is < seekKey, or <= lastKey if set
+	private KeyClass seekKey;
+	private KeyClass lastKey;
+
+	BTCursor(BTreeFile bfile) {
+		this.bfile = bfile;
+	}
+
+	/**
+	 * Position the cursor on the first entry whose key is >= key, or on the
+	 * first entry of the index if key is null.
+	 *
+	 * @param key
+	 *            the key to seek to. Input parameter.
+	 * @return the entry the cursor is now on, null if there is no such entry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry seek(KeyClass key) throws ScanIteratorException {
+		try {
+			if (leafPage != null && key != null && reachable(key))
+				forward(key);
+			else
+				descend(key);
+			seekKey = key;
+			lastKey = null;
+			return current();
+		} catch (ScanIteratorException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/**
+	 * @return the entry the cursor is on, without moving it; null if the
+	 *         cursor is past the end of the index or was never positioned
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry current() throws ScanIteratorException {
+		try {
+			while (leafPage != null && slot >= leafPage.getSlotCnt()) {
+				leafPage = bfile.nextLeaf(leafPage, curRid);
+				slot = 0;
+			}
+			return leafPage == null ? null : entryAt(slot);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/**
+	 * Return the entry the cursor is on and move to the next one.
+	 *
+	 * @return the entry, null if the cursor is past the end of the index
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		KeyDataEntry entry = current();
+		if (entry != null) {
+			slot++;
+			lastKey = entry.key;
+		}
+		return entry;
+	}
+
+	/**
+	 * Unpin the current leaf page. The cursor can be positioned again with
+	 * seek().
+	 *
+	 * @exception ScanIteratorException
+	 *                error when unpin a page
+	 */
+	public void close() throws ScanIteratorException {
+		try {
+			release();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/*
+	 * true if nothing before the position can be >= key, i.e. the first
+	 * entry >= key is at or right of the position.
+	 */
+	private boolean reachable(KeyClass key) throws KeyNotMatchException {
+		if (lastKey != null)
+			return BT.keyCompare(lastKey, key) < 0;
+		return seekKey == null || BT.keyCompare(seekKey, key) <= 0;
+	}
+
+	/*
+	 * Move right from the position to the first entry >= key, on this leaf
+	 * or up to SEEK_GALLOP leaves further right; descend from the root if
+	 * it is further away than that.
+	 */
+	private void forward(KeyClass key) throws Exception {
+		int hops = 0;
+
+		while (leafPage != null) {
+			int last = leafPage.getSlotCnt() - 1;
+			if (slot <= last
+					&& BT.keyCompare(entryAt(last).key, key) >= 0) {
+				// it's on this leaf, binary search slot..last
+				int lo = slot;
+				int hi = last;
+				while (lo < hi) {
+					int mid = (lo + hi) >>> 1;
+					if (BT.keyCompare(entryAt(mid).key, key) < 0)
+						lo = mid + 1;
+					else
+						hi = mid;
+				}
+				slot = lo;
+				return;
+			}
+
+			if (++hops > SEEK_GALLOP) {
+				descend(key);
+				return;
+			}
+			leafPage = bfile.nextLeaf(leafPage, curRid);
+			slot = 0;
+		}
+	}
+
+	private void descend(KeyClass key) throws Exception {
+		release();
+		leafPage = bfile.findRunStart(key, curRid);
+		slot = curRid.slotNo;
+	}
+
+	private void release() throws Exception {
+		if (leafPage != null) {
+			SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+			leafPage = null;
+		}
+	}
+
+	private KeyDataEntry entryAt(int slotNo) throws Exception {
+		curRid.pageNo = leafPage.getCurPage();
+		curRid.slotNo = slotNo;
+		return leafPage.getCurrent(curRid);
+	}
+}
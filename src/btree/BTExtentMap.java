@@ -0,0 +1,358 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTExtentMap hands out the leaf pages of one B+ tree from extents, runs of
+ * EXTENT_SIZE consecutive pages reserved from diskmgr.DB at a time, with a
+ * bitmap per extent of the pages in use. A new leaf is put right behind the
+ * leaf it was split from when that page is free, so sibling leaves end up
+ * next to each other on disk instead of between the pages of other files.
+ * Index pages, a percent or two of a tree, still come from the global space
+ * map.
+ * <p>
+ * A page freed into an extent stays allocated in the DB; it is only marked
+ * free in the bitmap. An extent is given back to the DB when its last page
+ * is freed.
+ * <p>
+ * The map is kept in a chain of directory pages under the file entry
+ * #ext&lt;header page id&gt;, which fits in MAX_NAME whatever the name of the
+ * index. Every directory page holds a record count and the next page id,
+ * followed by one (first page, size, bitmap) record per extent. Records are
+ * updated in place as the bitmaps change, so the map is as durable as the
+ * pages it describes.
+ * <p>
+ * All handles of an index share one map, so two BTreeFile objects open on
+ * the same index cannot hand out the same page.
+ */
+class BTExtentMap implements GlobalConst {
+
+	/** pages per extent; one bit of a long each */
+	final static int EXTENT_SIZE = 64;
+
+	private final static String PREFIX = "#ext";
+	private final static int COUNT = 0;
+	private final static int NEXT = 4;
+	private final static int FIRST_RECORD = 8;
+	private final static int RECORD_SIZE = 16;
+	private final static int PER_PAGE = (MINIBASE_PAGESIZE - FIRST_RECORD)
+			/ RECORD_SIZE;
+
+	private static class Extent {
+		final int first;
+		final int size;
+		long used; // bit i set: page first + i is in use
+		int record; // position in the directory
+
+		Extent(int first, int size, long used) {
+			this.first = first;
+			this.size = size;
+			this.used = used;
+		}
+
+		long all() {
+			return size == 64 ? -1L : (1L << size) - 1;
+		}
+
+		boolean full() {
+			return used == all();
+		}
+
+		/* first free page at or after bit `from', wrapping around; -1 if none */
+		int freeFrom(int from) {
+			long free = ~used & all();
+			long after = free & (-1L << from);
+			if (after != 0)
+				return Long.numberOfTrailingZeros(after);
+			return free == 0 ? -1 : Long.numberOfTrailingZeros(free);
+		}
+	}
+
+	/* the maps read, by header page; only valid for the database they are of */
+	private final static HashMap<Integer, BTExtentMap> maps = new HashMap<Integer, BTExtentMap>();
+
+	private final DB db;
+	private final String dbName;
+	private final int header;
+	private final String fileName;
+	/* all extents by first page */
+	private final TreeMap<Integer, Extent> extents = new TreeMap<Integer, Extent>();
+	/* first pages of the extents that have a free page */
+	private final TreeSet<Integer> partial = new TreeSet<Integer>();
+	/* all extents in directory order */
+	private final ArrayList<Extent> records = new ArrayList<Extent>();
+	/* directory pages, in chain order */
+	private final ArrayList<Integer> directory = new ArrayList<Integer>();
+
+	private BTExtentMap(int header) {
+		this.db = SystemDefs.JavabaseDB;
+		this.dbName = db.db_name();
+		this.header = header;
+		this.fileName = PREFIX + header;
+	}
+
+	/**
+	 * The extent map of an index: the one other handles of the index use, or
+	 * else read from the database, or an empty one if the index has none
+	 * yet.
+	 *
+	 * @param header
+	 *            the header page of the index
+	 */
+	static synchronized BTExtentMap open(PageId header) throws Exception {
+		BTExtentMap map = maps.get(header.pid);
+		if (map != null && map.db == SystemDefs.JavabaseDB
+				&& map.dbName.equals(map.db.db_name()))
+			return map;
+
+		map = new BTExtentMap(header.pid);
+		PageId pageno = SystemDefs.JavabaseDB.get_file_entry(map.fileName);
+
+		while (pageno != null && pageno.pid != INVALID_PAGE) {
+			map.directory.add(pageno.pid);
+			Page page = pinPage(pageno, false);
+			byte[] data = page.getpage();
+			int count = Convert.getIntValue(COUNT, data);
+			for (int i = 0; i < count; i++) {
+				int pos = FIRST_RECORD + i * RECORD_SIZE;
+				Extent extent = new Extent(Convert.getIntValue(pos, data),
+						Convert.getIntValue(pos + 4, data),
+						((long) Convert.getIntValue(pos + 8, data) << 32)
+								| (Convert.getIntValue(pos + 12, data) & 0xffffffffL));
+				extent.record = map.records.size();
+				map.records.add(extent);
+				map.extents.put(extent.first, extent);
+				if (!extent.full())
+					map.partial.add(extent.first);
+			}
+			PageId next = new PageId(Convert.getIntValue(NEXT, data));
+			unpinPage(pageno, false);
+			pageno = next;
+		}
+		maps.put(header.pid, map);
+		return map;
+	}
+
+	/**
+	 * Create a leaf page from an extent; it is returned pinned.
+	 *
+	 * @param near
+	 *            the leaf the new one will be linked to, or null. The page
+	 *            right after it is used if it is free, else a free page of
+	 *            the same extent, else one of any extent.
+	 * @param sequential
+	 *            if the page right after `near' is taken, start a fresh
+	 *            extent rather than filling holes elsewhere; for bulk loads
+	 * @param keyType
+	 *            key type of the tree
+	 */
+	BTLeafPage newLeaf(PageId near, boolean sequential, int keyType)
+			throws Exception {
+		PageId pageno = allocate(near, sequential);
+		Page page = new Page();
+		SystemDefs.JavabaseBM.pinPage(pageno, page, true /* empty */);
+		BTLeafPage leaf = new BTLeafPage(page, keyType);
+		leaf.init(pageno, page);
+		leaf.setType(NodeType.LEAF);
+		return leaf;
+	}
+
+	/**
+	 * Return a page. It must not be pinned.
+	 *
+	 * @return false if the page is not in an extent of this map; the caller
+	 *         has to free it in the DB itself
+	 */
+	boolean free(PageId pageno) throws Exception {
+		Extent extent = owner(pageno.pid);
+		if (extent == null)
+			return false;
+
+		extent.used &= ~(1L << (pageno.pid - extent.first));
+		if (extent.used != 0) {
+			partial.add(extent.first);
+			write(extent);
+			return true;
+		}
+
+		// last page of the extent, hand it back
+		extents.remove(extent.first);
+		partial.remove(extent.first);
+		removeRecord(extent);
+		for (int i = 0; i < extent.size; i++)
+			SystemDefs.JavabaseBM.freePage(new PageId(extent.first + i));
+		return true;
+	}
+
+	/**
+	 * Give every extent and the directory back to the DB, when the index is
+	 * destroyed. Pages still marked in use are freed too.
+	 */
+	void destroy() throws Exception {
+		for (Extent extent : records)
+			for (int i = 0; i < extent.size; i++)
+				SystemDefs.JavabaseBM.freePage(new PageId(extent.first + i));
+		extents.clear();
+		partial.clear();
+		records.clear();
+		for (int pid : directory)
+			SystemDefs.JavabaseBM.freePage(new PageId(pid));
+		if (!directory.isEmpty())
+			SystemDefs.JavabaseDB.delete_file_entry(fileName);
+		directory.clear();
+		synchronized (BTExtentMap.class) {
+			if (maps.get(header) == this)
+				maps.remove(header);
+		}
+	}
+
+	private PageId allocate(PageId near, boolean sequential) throws Exception {
+		Extent extent = near == null ? null : owner(near.pid);
+		int bit = -1;
+
+		if (extent != null) {
+			int after = near.pid - extent.first + 1;
+			if (after < extent.size && (extent.used & (1L << after)) == 0)
+				bit = after;
+			else if (!sequential)
+				bit = extent.freeFrom(Math.min(after, extent.size - 1));
+		}
+
+		if (bit < 0) {
+			extent = null;
+			if (!sequential && !partial.isEmpty()) {
+				Integer first = near == null ? null : partial.ceiling(near.pid);
+				extent = extents.get(first != null ? first : partial.first());
+			}
+			if (extent == null)
+				extent = reserve();
+			bit = extent.freeFrom(0);
+		}
+
+		extent.used |= 1L << bit;
+		if (extent.full())
+			partial.remove(extent.first);
+		write(extent);
+		return new PageId(extent.first + bit);
+	}
+
+	private Extent owner(int pid) {
+		Map.Entry<Integer, Extent> entry = extents.floorEntry(pid);
+		if (entry == null || pid >= entry.getKey() + entry.getValue().size)
+			return null;
+		return entry.getValue();
+	}
+
+	/* reserve a new extent, a shorter one if the DB has no hole that big */
+	private Extent reserve() throws Exception {
+		PageId first = new PageId();
+		for (int size = EXTENT_SIZE;; size /= 2) {
+			try {
+				SystemDefs.JavabaseDB.allocate_page(first, size);
+			} catch (OutOfSpaceException e) {
+				if (size == 1)
+					throw e;
+				continue;
+			}
+			Extent extent = new Extent(first.pid, size, 0);
+			extents.put(extent.first, extent);
+			partial.add(extent.first);
+			addRecord(extent);
+			return extent;
+		}
+	}
+
+	/* append a record for `extent' to the directory, growing the chain */
+	private void addRecord(Extent extent) throws Exception {
+		extent.record = records.size();
+		records.add(extent);
+
+		if (extent.record == directory.size() * PER_PAGE) {
+			PageId pageno = new PageId();
+			SystemDefs.JavabaseDB.allocate_page(pageno);
+			Page page = pinPage(pageno, true);
+			Convert.setIntValue(0, COUNT, page.getpage());
+			Convert.setIntValue(INVALID_PAGE, NEXT, page.getpage());
+			unpinPage(pageno, true);
+
+			if (directory.isEmpty())
+				SystemDefs.JavabaseDB.add_file_entry(fileName, pageno);
+			else
+				setNext(directory.size() - 1, pageno.pid);
+			directory.add(pageno.pid);
+		}
+		write(extent);
+		setCount(extent.record / PER_PAGE);
+	}
+
+	/* drop the record of `extent', moving the last record into its place */
+	private void removeRecord(Extent extent) throws Exception {
+		Extent last = records.remove(records.size() - 1);
+		if (last != extent) {
+			last.record = extent.record;
+			records.set(last.record, last);
+			write(last);
+		}
+
+		int page = records.size() / PER_PAGE;
+		if (records.size() % PER_PAGE == 0 && page > 0) {
+			// the last directory page is empty now
+			setNext(page - 1, INVALID_PAGE);
+			SystemDefs.JavabaseBM.freePage(new PageId(directory.remove(page)));
+		} else {
+			setCount(page);
+		}
+	}
+
+	private void write(Extent extent) throws Exception {
+		PageId pageno = new PageId(directory.get(extent.record / PER_PAGE));
+		byte[] data = pinPage(pageno, false).getpage();
+		int pos = FIRST_RECORD + (extent.record % PER_PAGE) * RECORD_SIZE;
+		Convert.setIntValue(extent.first, pos, data);
+		Convert.setIntValue(extent.size, pos + 4, data);
+		Convert.setIntValue((int) (extent.used >>> 32), pos + 8, data);
+		Convert.setIntValue((int) extent.used, pos + 12, data);
+		unpinPage(pageno, true);
+	}
+
+	private void setCount(int page) throws Exception {
+		PageId pageno = new PageId(directory.get(page));
+		byte[] data = pinPage(pageno, false).getpage();
+		Convert.setIntValue(Math.min(PER_PAGE, records.size() - page
+				* PER_PAGE), COUNT, data);
+		unpinPage(pageno, true);
+	}
+
+	private void setNext(int page, int next) throws Exception {
+		PageId pageno = new PageId(directory.get(page));
+		byte[] data = pinPage(pageno, false).getpage();
+		Convert.setIntValue(next, NEXT, data);
+		unpinPage(pageno, true);
+	}
+
+	private static Page pinPage(PageId pageno, boolean empty)
+			throws PinPageException {
+		try {
+			Page page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, empty);
+			return page;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "");
+		}
+	}
+
+	private static void unpinPage(PageId pageno, boolean dirty)
+			throws UnpinPageException {
+		try {
+			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package btree;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTFileBlockScan is a block-at-a-time range scan over an integer key B+
+ * tree. Where BTFileScan.get_next() builds one KeyDataEntry per record,
+ * get_next_block() decodes the qualifying entries of the current leaf page
+ * straight out of the buffer frame into caller supplied arrays, one leaf per
+ * call. RIDs are handed back packed into a long, see packRid().
+ * <p>
+ * A scan is created by BTreeFile.new_block_scan() and must be closed with
+ * DestroyBTFileBlockScan() if it is abandoned before the end, because it
+ * keeps the current leaf pinned between calls.
+ */
+public class BTFileBlockScan implements GlobalConst {
+
+	BTreeFile bfile;
+	BTLeafPage leafPage;
+	RID curRid;
+	int nextSlot;
+	boolean hasEndkey;
+	int endkey;
+
+	/**
+	 * Fill keys and rids with the next qualifying entries of the scan. A call
+	 * never crosses a leaf page boundary once it has found an entry, so the
+	 * arrays should be sized for a full leaf for best results.
+	 *
+	 * @param keys
+	 *            receives the keys. Output parameter.
+	 * @param rids
+	 *            receives the packed rids, parallel to keys. Output
+	 *            parameter.
+	 * @return the number of entries filled in; 0 when the scan is done.
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public int get_next_block(int[] keys, long[] rids)
+			throws ScanIteratorException {
+		int max = Math.min(keys.length, rids.length);
+		int count = 0;
+
+		try {
+			while (leafPage != null) {
+				byte[] data = leafPage.getpage();
+				int slotCnt = leafPage.getSlotCnt();
+
+				while (nextSlot < slotCnt && count < max) {
+					int slot = HFPage.DPFIXED + nextSlot * HFPage.SIZE_OF_SLOT;
+					int length = getShort(data, slot);
+					int offset = getShort(data, slot + 2);
+					nextSlot++;
+
+					if (length == HFPage.EMPTY_SLOT)
+						continue;
+
+					int key = getInt(data, offset);
+					if (hasEndkey && key > endkey) {
+						finish();
+						return count;
+					}
+					keys[count] = key;
+					// leaf data is <slotNo, pageNo> behind the key
+					rids[count] = packRid(getInt(data, offset + length - 4),
+							getInt(data, offset + length - 8));
+					count++;
+				}
+
+				if (nextSlot < slotCnt)
+					return count; // arrays are full
+
+				leafPage = bfile.nextLeaf(leafPage, curRid);
+				nextSlot = 0;
+				if (count > 0)
+					return count; // one leaf per call
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+		return count;
+	}
+
+	/**
+	 * Stop the scan and unpin the current leaf page, if any.
+	 *
+	 * @exception ScanIteratorException
+	 *                error when unpin a page
+	 */
+	public void DestroyBTFileBlockScan() throws ScanIteratorException {
+		finish();
+	}
+
+	/**
+	 * Pack a rid into a long, page number in the high and slot number in the
+	 * low 32 bits.
+	 *
+	 * @param pageNo
+	 *            the page number of the rid
+	 * @param slotNo
+	 *            the slot number of the rid
+	 * @return the packed rid
+	 */
+	public static long packRid(int pageNo, int slotNo) {
+		return ((long) pageNo << 32) | (slotNo & 0xffffffffL);
+	}
+
+	/**
+	 * @param rid
+	 *            a rid packed by packRid()
+	 * @return its page number
+	 */
+	public static int ridPageNo(long rid) {
+		return (int) (rid >>> 32);
+	}
+
+	/**
+	 * @param rid
+	 *            a rid packed by packRid()
+	 * @return its slot number
+	 */
+	public static int ridSlotNo(long rid) {
+		return (int) rid;
+	}
+
+	private void finish() throws ScanIteratorException {
+		if (leafPage != null) {
+			try {
+				SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new ScanIteratorException(e, "");
+			}
+			leafPage = null;
+		}
+	}
+
+	// big endian, the same layout global.Convert writes
+	private static int getInt(byte[] data, int pos) {
+		return (data[pos] << 24) | ((data[pos + 1] & 0xff) << 16)
+				| ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+	}
+
+	private static short getShort(byte[] data, int pos) {
+		return (short) ((data[pos] << 8) | (data[pos + 1] & 0xff));
+	}
+}
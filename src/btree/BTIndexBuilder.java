@@ -0,0 +1,503 @@
+package btree;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * BTIndexBuilder builds a B+ tree over one field of a heap file by sorting
+ * instead of inserting. The (key, rid) pairs of the heap file are collected
+ * in memory up to a budget, sorted and written out as a run, a chain of
+ * temporary pages in the DB. The runs are then merged, as many at a time as
+ * the buffer pool has room for, until one merge is enough to hand every
+ * entry in key order to a BTBulkLoader. Every page of the heap file is read
+ * once and every entry is written and read about once per merge pass, so a
+ * build costs O(n log n) comparisons but close to O(n) I/O.
+ * <p>
+ * The data pages of the heap file, as listed by its directory, are handed
+ * out WINDOW at a time to a number of worker threads, which read them with
+ * HeapDirectory.readPages() in one trip through the lock and work on
+ * copies, so no page is pinned while it is parsed. Each worker pulls the
+ * keys out of its pages, sorts them and writes its own runs, so reading the
+ * records, sorting and encoding the runs scale with the threads. The
+ * buffer manager is not thread safe, so every pin, unpin and allocation is
+ * done under the lock of SystemDefs.JavabaseBM (see BTRangeSpliterator);
+ * only that part is serial. What a worker holds at the end stays in memory
+ * and joins the last merge directly.
+ * <p>
+ * Run pages are freed as soon as a merge has read them.
+ */
+class BTIndexBuilder implements GlobalConst {
+
+	/* run page layout */
+	private final static int NEXT = 0;
+	private final static int USED = 4;
+	private final static int FIRST_ENTRY = 8;
+
+	/* pages kept free for the bulk loader and the run being written */
+	private final static int RESERVED_FRAMES = 16;
+
+	/* heap pages a worker reads at a time */
+	private final static int WINDOW = 8;
+
+	/* a chain of run pages written front to back */
+	private static class RunWriter {
+		private PageId first;
+		private PageId current;
+		private byte[] data;
+		private int used;
+
+		void add(KeyDataEntry entry) throws Exception {
+			byte[] bytes = BT.getBytesFromEntry(entry);
+			if (current == null || used + 2 + bytes.length > MINIBASE_PAGESIZE) {
+				Page page = new Page();
+				PageId next = newPage(page);
+				Convert.setIntValue(INVALID_PAGE, NEXT, page.getpage());
+				if (current == null) {
+					first = next;
+				} else {
+					Convert.setIntValue(next.pid, NEXT, data);
+					close();
+				}
+				current = next;
+				data = page.getpage();
+				used = FIRST_ENTRY;
+			}
+			Convert.setShortValue((short) bytes.length, used, data);
+			System.arraycopy(bytes, 0, data, used + 2, bytes.length);
+			used += 2 + bytes.length;
+		}
+
+		/** @return the first page of the run, null if it is empty */
+		PageId finish() throws Exception {
+			if (current != null)
+				close();
+			return first;
+		}
+
+		private void close() throws Exception {
+			Convert.setIntValue(used, USED, data);
+			unpinPage(current, true);
+			current = null;
+		}
+	}
+
+	/* one sorted input of a merge */
+	private static abstract class Input {
+		final int order; // to keep equal keys in input order
+		KeyDataEntry entry; // the next entry, null at the end
+
+		Input(int order) {
+			this.order = order;
+		}
+
+		abstract void advance() throws Exception;
+
+		/* give back what has not been read yet */
+		abstract void discard() throws Exception;
+	}
+
+	/* reads a run back in order, freeing every page once it is read */
+	private static class RunReader extends Input {
+		private final int keyType;
+		private PageId current;
+		private byte[] data;
+		private int pos;
+		private int used;
+
+		RunReader(int order, PageId first, int keyType) throws Exception {
+			super(order);
+			this.keyType = keyType;
+			pin(first);
+			advance();
+		}
+
+		void advance() throws Exception {
+			while (current != null && pos >= used) {
+				PageId next = new PageId(Convert.getIntValue(NEXT, data));
+				unpinPage(current, false);
+				freePage(current);
+				current = null;
+				if (next.pid != INVALID_PAGE)
+					pin(next);
+			}
+			if (current == null) {
+				entry = null;
+				return;
+			}
+			int length = Convert.getShortValue(pos, data);
+			entry = BT.getEntryFromBytes(data, pos + 2, length, keyType,
+					NodeType.LEAF);
+			pos += 2 + length;
+		}
+
+		void discard() throws Exception {
+			while (current != null) {
+				pos = used;
+				advance();
+			}
+		}
+
+		private void pin(PageId pageno) throws Exception {
+			Page page = new Page();
+			pinPage(pageno, page);
+			current = pageno;
+			data = page.getpage();
+			pos = FIRST_ENTRY;
+			used = Convert.getIntValue(USED, data);
+		}
+	}
+
+	/* a sorted buffer that was never written out */
+	private static class BufferReader extends Input {
+		private final Iterator<KeyDataEntry> entries;
+
+		BufferReader(int order, List<KeyDataEntry> buffer) {
+			super(order);
+			entries = buffer.iterator();
+			advance();
+		}
+
+		void advance() {
+			entry = entries.hasNext() ? entries.next() : null;
+		}
+
+		void discard() {
+			entry = null;
+		}
+	}
+
+	/*
+	 * pulls the keys out of the data pages it takes from `next' and writes
+	 * them out in sorted runs; the last, partial run stays in `buffer'
+	 */
+	private class Worker implements Callable<Void> {
+		private final PageId[] pages;
+		private final AtomicInteger next;
+		private final int budget;
+		final ArrayList<KeyDataEntry> buffer = new ArrayList<KeyDataEntry>();
+		private int bufferBytes;
+
+		Worker(PageId[] pages, AtomicInteger next, int budget) {
+			this.pages = pages;
+			this.next = next;
+			this.budget = budget;
+		}
+
+		public Void call() throws Exception {
+			try {
+				byte[][] window = new byte[WINDOW][];
+				int i;
+				while (!failed
+						&& (i = next.getAndAdd(WINDOW)) < pages.length) {
+					int count = Math.min(WINDOW, pages.length - i);
+					HeapDirectory.readPages(pages, i, count, window);
+					for (int j = 0; j < count; j++)
+						read(pages[i + j], window[j]);
+				}
+				Collections.sort(buffer, KEY_ORDER);
+				return null;
+			} catch (Exception e) {
+				failed = true;
+				throw e;
+			}
+		}
+
+		/* the records of data page `pageno', copied into `data' */
+		private void read(PageId pageno, byte[] data) throws Exception {
+			HFPage page = new HFPage(new Page(data));
+			for (RID rid = page.firstRecord(); rid != null; rid = page
+					.nextRecord(rid)) {
+				KeyClass key = key(data, page.getSlotOffset(rid.slotNo));
+				add(key, new RID(new PageId(pageno.pid), rid.slotNo));
+			}
+		}
+
+		private void add(KeyClass key, RID rid) throws Exception {
+			if (BT.getKeyLength(key) > maxKeySize)
+				throw new KeyTooLongException(null, "");
+			buffer.add(new KeyDataEntry(key, rid));
+			bufferBytes += BT.getKeyDataLength(key, NodeType.LEAF);
+			if (bufferBytes >= budget)
+				spill();
+		}
+
+		/* sort the buffer and write it out as a run */
+		private void spill() throws Exception {
+			Collections.sort(buffer, KEY_ORDER);
+			RunWriter writer = new RunWriter();
+			try {
+				for (KeyDataEntry entry : buffer)
+					writer.add(entry);
+			} finally {
+				// written or not, build() has to give the pages back
+				PageId first = writer.finish();
+				if (first != null)
+					synchronized (runs) {
+						runs.add(first);
+					}
+			}
+			buffer.clear();
+			bufferBytes = 0;
+		}
+	}
+
+	private final static Comparator<KeyDataEntry> KEY_ORDER = new Comparator<KeyDataEntry>() {
+		public int compare(KeyDataEntry a, KeyDataEntry b) {
+			return compareKeys(a.key, b.key);
+		}
+	};
+
+	private final static Comparator<Input> INPUT_ORDER = new Comparator<Input>() {
+		public int compare(Input a, Input b) {
+			int c = compareKeys(a.entry.key, b.entry.key);
+			return c != 0 ? c : a.order - b.order;
+		}
+	};
+
+	private final int keyType;
+	private final int maxKeySize;
+	private final int memory;
+	private final int threads;
+	private final BTBulkLoader loader;
+
+	/* first pages of the runs written so far, oldest first */
+	private final LinkedList<PageId> runs = new LinkedList<PageId>();
+	/* set when a worker fails, to stop the others */
+	private volatile boolean failed;
+
+	/* the fields that make up a key, and their types for a composite key */
+	private int[] fieldNos;
+	private AttrType[] fieldTypes;
+
+	/**
+	 * @param bfile
+	 *            the index to build, which must be empty
+	 * @param fill
+	 *            how full to make each page, between 0.5 and 1
+	 * @param memory
+	 *            bytes of entries to sort in memory at a time, shared by the
+	 *            workers
+	 * @param threads
+	 *            number of worker threads, 1 to do everything in the calling
+	 *            thread
+	 */
+	BTIndexBuilder(BTreeFile bfile, double fill, int memory, int threads)
+			throws java.io.IOException {
+		BTreeHeaderPage header = bfile.getHeaderPage();
+		this.keyType = header.get_keyType();
+		this.maxKeySize = header.get_maxKeySize();
+		this.memory = Math.max(MINIBASE_PAGESIZE, memory);
+		this.threads = Math.max(1, threads);
+		this.loader = new BTBulkLoader(bfile.extentMap(), keyType, fill);
+	}
+
+	/**
+	 * Read field fieldNos[0] of every record of `heap', or a CompositeKey of
+	 * fields `fieldNos' if `types' is not null, and build the tree.
+	 *
+	 * @param types
+	 *            the types of all fields of the records
+	 * @return the root of the new tree, INVALID_PAGE if the file is empty
+	 */
+	PageId build(Heapfile heap, int[] fieldNos, AttrType[] types)
+			throws Exception {
+		this.fieldNos = fieldNos.clone();
+		if (types != null) {
+			fieldTypes = new AttrType[fieldNos.length];
+			for (int i = 0; i < fieldNos.length; i++) {
+				if (fieldNos[i] < 1 || fieldNos[i] > types.length)
+					throw new FieldNumberOutOfBoundException(null,
+							"TUPLE:TUPLE_FLDNO_OUT_OF_BOUND");
+				fieldTypes[i] = types[fieldNos[i] - 1];
+			}
+		}
+		ArrayList<List<KeyDataEntry>> buffers = new ArrayList<List<KeyDataEntry>>();
+		try {
+			PageId[] pages = HeapDirectory.dataPages(heap);
+			int workers = Math.max(1, Math.min(threads, pages.length));
+			AtomicInteger next = new AtomicInteger();
+			ArrayList<Worker> team = new ArrayList<Worker>();
+			for (int i = 0; i < workers; i++)
+				team.add(new Worker(pages, next, memory / workers));
+			run(team);
+			for (Worker worker : team)
+				if (!worker.buffer.isEmpty())
+					buffers.add(worker.buffer);
+
+			int fanIn = Math.max(2, SystemDefs.JavabaseBM
+					.getNumUnpinnedBuffers() - RESERVED_FRAMES);
+			int inputs;
+			while ((inputs = runs.size() + buffers.size()) > fanIn
+					&& runs.size() > 1)
+				merge(Math.min(runs.size(), Math.min(fanIn, inputs - fanIn + 1)),
+						null, null);
+			merge(runs.size(), buffers, loader);
+			return loader.finish();
+		} catch (Exception e) {
+			loader.abort();
+			for (PageId run : runs)
+				new RunReader(0, run, keyType).discard();
+			runs.clear();
+			throw e;
+		}
+	}
+
+	/* run the workers to the end, on threads of their own if there are more */
+	private void run(List<Worker> team) throws Exception {
+		if (team.size() == 1) {
+			team.get(0).call();
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(team.size());
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (Worker worker : team)
+				results.add(pool.submit(worker));
+			Exception error = null;
+			for (Future<Void> result : results) {
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+					failed = true;
+					if (error == null)
+						error = e.getCause() instanceof Exception ? (Exception) e
+								.getCause() : e;
+				}
+			}
+			if (error != null)
+				throw error;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/*
+	 * merge the `count' oldest runs and the sorted `buffers', if any, into a
+	 * new run, or into `out' if it is not null
+	 */
+	private void merge(int count, List<List<KeyDataEntry>> buffers,
+			BTBulkLoader out) throws Exception {
+		PriorityQueue<Input> queue = new PriorityQueue<Input>(Math.max(1,
+				count + (buffers == null ? 0 : buffers.size())), INPUT_ORDER);
+		for (int i = 0; i < count; i++) {
+			RunReader reader = new RunReader(i, runs.removeFirst(), keyType);
+			if (reader.entry != null)
+				queue.add(reader);
+		}
+		if (buffers != null) {
+			int order = count;
+			for (List<KeyDataEntry> buffer : buffers)
+				queue.add(new BufferReader(order++, buffer));
+		}
+
+		RunWriter writer = out == null ? new RunWriter() : null;
+		try {
+			while (!queue.isEmpty()) {
+				Input input = queue.poll();
+				KeyDataEntry entry = input.entry;
+				if (writer != null)
+					writer.add(entry);
+				else
+					out.add(entry.key, ((LeafData) entry.data).getData());
+				input.advance();
+				if (input.entry != null)
+					queue.add(input);
+			}
+		} catch (Exception e) {
+			// build() gives back what is left in the runs
+			for (Input input : queue)
+				input.discard();
+			if (writer != null && writer.finish() != null)
+				runs.add(writer.first);
+			throw e;
+		}
+		if (writer != null) {
+			PageId first = writer.finish();
+			if (first != null)
+				runs.add(first);
+		}
+	}
+
+	/* the key of the record at `offset', as written by Tuple.setHdr() */
+	private KeyClass key(byte[] data, int offset) throws Exception {
+		if (fieldTypes == null) {
+			int fieldNo = fieldNos[0];
+			int start = start(data, offset, fieldNo);
+			if (keyType == AttrType.attrInteger)
+				return new IntegerKey(Convert.getIntValue(start, data));
+			return new StringKey(Convert.getStrValue(start, data, end(data,
+					offset, fieldNo) - start));
+		}
+
+		Object[] values = new Object[fieldNos.length];
+		for (int i = 0; i < fieldNos.length; i++) {
+			int start = start(data, offset, fieldNos[i]);
+			switch (fieldTypes[i].attrType) {
+			case AttrType.attrInteger:
+				values[i] = Convert.getIntValue(start, data);
+				break;
+			case AttrType.attrReal:
+				values[i] = Convert.getFloValue(start, data);
+				break;
+			default:
+				values[i] = Convert.getStrValue(start, data, end(data,
+						offset, fieldNos[i]) - start);
+			}
+		}
+		return new CompositeKey(fieldTypes, values);
+	}
+
+	/* where field `fieldNo' of the record at `offset' starts */
+	private static int start(byte[] data, int offset, int fieldNo)
+			throws Exception {
+		int fields = Convert.getShortValue(offset, data);
+		if (fieldNo < 1 || fieldNo > fields)
+			throw new FieldNumberOutOfBoundException(null,
+					"TUPLE:TUPLE_FLDNO_OUT_OF_BOUND");
+		return offset + Convert.getShortValue(offset + 2 * fieldNo, data);
+	}
+
+	/* where field `fieldNo' of the record at `offset' ends */
+	private static int end(byte[] data, int offset, int fieldNo)
+			throws Exception {
+		return offset + Convert.getShortValue(offset + 2 * fieldNo + 2, data);
+	}
+
+	/* the buffer manager, one thread at a time */
+
+	private static PageId newPage(Page page) throws Exception {
+		synchronized (SystemDefs.JavabaseBM) {
+			return SystemDefs.JavabaseBM.newPage(page, 1);
+		}
+	}
+
+	private static void pinPage(PageId pageno, Page page) throws Exception {
+		synchronized (SystemDefs.JavabaseBM) {
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+		}
+	}
+
+	private static void unpinPage(PageId pageno, boolean dirty)
+			throws Exception {
+		synchronized (SystemDefs.JavabaseBM) {
+			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+		}
+	}
+
+	private static void freePage(PageId pageno) throws Exception {
+		synchronized (SystemDefs.JavabaseBM) {
+			SystemDefs.JavabaseBM.freePage(pageno);
+		}
+	}
+
+	private static int compareKeys(KeyClass a, KeyClass b) {
+		if (a instanceof IntegerKey)
+			return ((IntegerKey) a).getKey().compareTo(((IntegerKey) b).getKey());
+		return ((StringKey) a).getKey().compareTo(((StringKey) b).getKey());
+	}
+}
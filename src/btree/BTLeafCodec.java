@@ -0,0 +1,164 @@
+package btree;
+
+import java.io.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * On-disk encoding of the leaves of integer B+ trees, for
+ * diskmgr.CompressedDB. The entries of such a leaf are 12 bytes each, key,
+ * slot number and page number, and the keys come in order, so the keys are
+ * written as differences from the previous key, the slot numbers likewise,
+ * and the page numbers as differences from the smallest page number on the
+ * leaf (frame of reference), all as variable length integers. The slot
+ * directory is written as the distance of every record from where it would
+ * be if the records had been inserted in key order. A leaf of consecutive
+ * keys pointing into a heap file encodes to about a quarter of a page.
+ * <p>
+ * Only pages that are leaves by every measure are encoded: type LEAF, their
+ * own page number in the header, every entry 12 bytes long, and records and
+ * free space adding up. Everything else, including leaves of string keys,
+ * is stored as it is. The free space between the slot directory and the
+ * records is not stored; it comes back as zeroes.
+ * <p>
+ * <pre>
+ * CompressedDB.install(new BTLeafCodec());
+ * </pre>
+ */
+public class BTLeafCodec implements PageCodec, GlobalConst {
+
+	private final static int ENTRY = 12; // key, slot number, page number
+	private final static int SLOT_SIZE = HFPage.SIZE_OF_SLOT;
+	private final static int DPFIXED = HFPage.DPFIXED;
+
+	public int encode(int pid, byte[] page, byte[] out) {
+		int slots = getShort(page, HFPage.SLOT_CNT);
+		int usedPtr = getShort(page, HFPage.USED_PTR);
+		if (getShort(page, HFPage.TYPE) != NodeType.LEAF
+				|| getInt(page, HFPage.CUR_PAGE) != pid || slots <= 0
+				|| usedPtr != MAX_SPACE - slots * ENTRY
+				|| getShort(page, HFPage.FREE_SPACE) != usedPtr - DPFIXED
+						- slots * SLOT_SIZE)
+			return 0;
+
+		int minPage = Integer.MAX_VALUE;
+		for (int i = 0; i < slots; i++) {
+			int slot = DPFIXED + i * SLOT_SIZE;
+			int offset = getShort(page, slot + 2);
+			if (getShort(page, slot) != ENTRY || offset < usedPtr
+					|| offset > MAX_SPACE - ENTRY
+					|| (offset - usedPtr) % ENTRY != 0)
+				return 0;
+			minPage = Math.min(minPage, getInt(page, offset + 8));
+		}
+
+		System.arraycopy(page, 0, out, 0, DPFIXED);
+		int pos = putVarint(out, DPFIXED, zigzag(minPage));
+		int expected = MAX_SPACE - ENTRY;
+		int key = 0;
+		int slotNo = 0;
+		for (int i = 0; i < slots; i++) {
+			if (pos + 4 * 5 > out.length)
+				return 0; // four varints of up to 5 bytes might not fit
+			int offset = getShort(page, DPFIXED + i * SLOT_SIZE + 2);
+			int nextKey = getInt(page, offset);
+			int nextSlot = getInt(page, offset + 4);
+			pos = putVarint(out, pos, zigzag((offset - expected) / ENTRY));
+			pos = putVarint(out, pos, zigzag(nextKey - key));
+			pos = putVarint(out, pos, zigzag(nextSlot - slotNo));
+			pos = putVarint(out, pos, getInt(page, offset + 8) - minPage);
+			expected = offset - ENTRY;
+			key = nextKey;
+			slotNo = nextSlot;
+		}
+		return pos;
+	}
+
+	public void decode(byte[] in, byte[] page) throws IOException {
+		try {
+			java.util.Arrays.fill(page, (byte) 0);
+			System.arraycopy(in, 0, page, 0, DPFIXED);
+			int slots = getShort(page, HFPage.SLOT_CNT);
+			int usedPtr = getShort(page, HFPage.USED_PTR);
+			if (usedPtr != MAX_SPACE - slots * ENTRY)
+				throw new IOException("bad leaf encoding");
+
+			int[] pos = { DPFIXED };
+			int minPage = unzigzag(getVarint(in, pos));
+			int expected = MAX_SPACE - ENTRY;
+			int key = 0;
+			int slotNo = 0;
+			for (int i = 0; i < slots; i++) {
+				int offset = expected + ENTRY * unzigzag(getVarint(in, pos));
+				if (offset < usedPtr || offset > MAX_SPACE - ENTRY)
+					throw new IOException("bad leaf encoding");
+				expected = offset - ENTRY;
+				key += unzigzag(getVarint(in, pos));
+				slotNo += unzigzag(getVarint(in, pos));
+				int pageNo = minPage + getVarint(in, pos);
+
+				int slot = DPFIXED + i * SLOT_SIZE;
+				putShort(page, slot, ENTRY);
+				putShort(page, slot + 2, offset);
+				putInt(page, offset, key);
+				putInt(page, offset + 4, slotNo);
+				putInt(page, offset + 8, pageNo);
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("bad leaf encoding");
+		}
+	}
+
+	/* the page layout is big endian, as written by global.Convert */
+
+	private static int getShort(byte[] data, int pos) {
+		return (short) ((data[pos] & 0xff) << 8 | (data[pos + 1] & 0xff));
+	}
+
+	private static int getInt(byte[] data, int pos) {
+		return (data[pos] & 0xff) << 24 | (data[pos + 1] & 0xff) << 16
+				| (data[pos + 2] & 0xff) << 8 | (data[pos + 3] & 0xff);
+	}
+
+	private static void putShort(byte[] data, int pos, int value) {
+		data[pos] = (byte) (value >>> 8);
+		data[pos + 1] = (byte) value;
+	}
+
+	private static void putInt(byte[] data, int pos, int value) {
+		data[pos] = (byte) (value >>> 24);
+		data[pos + 1] = (byte) (value >>> 16);
+		data[pos + 2] = (byte) (value >>> 8);
+		data[pos + 3] = (byte) value;
+	}
+
+	private static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/* 7 bits a byte, low first, high bit set on all but the last byte */
+	private static int putVarint(byte[] out, int pos, int value) {
+		while ((value & ~0x7f) != 0) {
+			out[pos++] = (byte) (value & 0x7f | 0x80);
+			value >>>= 7;
+		}
+		out[pos++] = (byte) value;
+		return pos;
+	}
+
+	private static int getVarint(byte[] in, int[] pos) {
+		int value = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = in[pos[0]++];
+			value |= (b & 0x7f) << shift;
+			if (b >= 0)
+				return value;
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package btree;
+
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTRangeCache keeps the results of recent new_scan() ranges of a BTreeFile
+ * in memory, so that a range asked for again is read from a copy instead of
+ * from the leaves. A range is cached the second time it is scanned, and only
+ * if its result takes at most an eighth of the budget, so one large or one
+ * off scan cannot push out the ranges that are repeated. The least recently
+ * used ranges are dropped to stay within the budget.
+ * <p>
+ * insert() and Delete() drop exactly the cached ranges that hold the key
+ * they change; the others stay valid, because a cached result is a list of
+ * keys and record ids and does not depend on where the entries are stored.
+ * A scan of a cached range returns the entries as they were when it was
+ * opened, like one that has read the whole range at once. Changes made
+ * through another BTreeFile object on the same index are not seen.
+ * <p>
+ * The methods are synchronized, for the scans BTRangeSpliterator opens from
+ * other threads.
+ */
+class BTRangeCache {
+
+	/* ranges scanned once that are remembered, to admit the second scan */
+	private final static int SEEN = 1024;
+
+	/* the bounds of a range, as their values; null if open */
+	private static class Range {
+		final Object lo;
+		final Object hi;
+
+		Range(KeyClass lo, KeyClass hi) {
+			this.lo = lo == null ? null : value(lo);
+			this.hi = hi == null ? null : value(hi);
+		}
+
+		boolean contains(Object key) {
+			return (lo == null || compare(lo, key) <= 0)
+					&& (hi == null || compare(key, hi) <= 0);
+		}
+
+		public boolean equals(Object o) {
+			Range r = (Range) o;
+			return Objects.equals(lo, r.lo) && Objects.equals(hi, r.hi);
+		}
+
+		public int hashCode() {
+			return Objects.hashCode(lo) * 31 + Objects.hashCode(hi);
+		}
+	}
+
+	/* the entries of a range, in key order */
+	static class Result {
+		private final ArrayList<Object> keys = new ArrayList<Object>();
+		private int[] rids = new int[16]; // page and slot of every entry
+		private long bytes;
+
+		/* adds an entry; false once the result is over `limit' bytes */
+		boolean add(KeyDataEntry entry, long limit) {
+			Object key = value(entry.key);
+			RID rid = ((LeafData) entry.data).getData();
+			int n = keys.size();
+			if (2 * n == rids.length)
+				rids = Arrays.copyOf(rids, 4 * n);
+			keys.add(key);
+			rids[2 * n] = rid.pageNo.pid;
+			rids[2 * n + 1] = rid.slotNo;
+			// reference, record id and the key object itself
+			bytes += 12 + (key instanceof String ? 40 + 2 * ((String) key)
+					.length() : 16);
+			return bytes <= limit;
+		}
+
+		int size() {
+			return keys.size();
+		}
+
+		/* a copy of entry i, the caller may change it */
+		KeyDataEntry get(int i) {
+			Object key = keys.get(i);
+			return new KeyDataEntry(key instanceof Integer ? new IntegerKey(
+					(Integer) key) : new StringKey((String) key), new RID(
+					new PageId(rids[2 * i]), rids[2 * i + 1]));
+		}
+	}
+
+	/**
+	 * BTFileScan over a cached result; it pins no pages.
+	 */
+	static class Scan extends BTFileScan {
+		private final Result result;
+		private int next;
+
+		Scan(BTreeFile bfile, Result result, int maxKeysize) {
+			this.bfile = bfile;
+			this.result = result;
+			this.maxKeysize = maxKeysize;
+		}
+
+		public KeyDataEntry get_next() {
+			if (next == result.size())
+				return null;
+			didfirst = true;
+			return result.get(next++);
+		}
+
+		public void delete_current() throws ScanDeleteException {
+			if (!didfirst) {
+				System.out.println("No Record to delete!");
+				throw new ScanDeleteException();
+			}
+			KeyDataEntry entry = result.get(next - 1);
+			try {
+				bfile.Delete(entry.key, ((LeafData) entry.data).getData());
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new ScanDeleteException();
+			}
+		}
+
+		public void DestroyBTreeFileScan() {
+		}
+	}
+
+	private final long budget;
+	private long used;
+	private final LinkedHashMap<Range, Result> results = new LinkedHashMap<Range, Result>(
+			16, 0.75f, true);
+	// ranges scanned once; false if too large to cache
+	private final LinkedHashMap<Range, Boolean> seen = new LinkedHashMap<Range, Boolean>(
+			16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Range, Boolean> eldest) {
+			return size() > SEEN;
+		}
+	};
+
+	BTRangeCache(long budget) {
+		this.budget = budget;
+	}
+
+	/* the cached result of [lo, hi], or null */
+	synchronized Result get(KeyClass lo, KeyClass hi) {
+		return results.get(new Range(lo, hi));
+	}
+
+	/* whether [lo, hi] is scanned again and should be cached now */
+	synchronized boolean admit(KeyClass lo, KeyClass hi) {
+		Boolean fits = seen.put(new Range(lo, hi), Boolean.TRUE);
+		if (fits == Boolean.FALSE)
+			seen.put(new Range(lo, hi), fits);
+		return fits == Boolean.TRUE;
+	}
+
+	/* bytes a result may take */
+	long limit() {
+		return budget / 8;
+	}
+
+	/* cache the result of [lo, hi], or remember that it did not fit */
+	synchronized void put(KeyClass lo, KeyClass hi, Result result,
+			boolean fits) {
+		Range range = new Range(lo, hi);
+		if (!fits) {
+			seen.put(range, Boolean.FALSE);
+			return;
+		}
+		seen.remove(range);
+		Result old = results.put(range, result);
+		if (old != null)
+			used -= old.bytes;
+		used += result.bytes;
+		Iterator<Result> lru = results.values().iterator();
+		while (used > budget) {
+			used -= lru.next().bytes;
+			lru.remove();
+		}
+	}
+
+	/* `key' is inserted or deleted; drop the ranges that hold it */
+	synchronized void changed(KeyClass key) {
+		Object value = value(key);
+		Iterator<Map.Entry<Range, Result>> i = results.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<Range, Result> e = i.next();
+			if (e.getKey().contains(value)) {
+				used -= e.getValue().bytes;
+				i.remove();
+			}
+		}
+	}
+
+	synchronized void clear() {
+		results.clear();
+		seen.clear();
+		used = 0;
+	}
+
+	/* IntegerKey and StringKey have no equals() of their own */
+	private static Object value(KeyClass key) {
+		if (key instanceof IntegerKey)
+			return ((IntegerKey) key).getKey();
+		return ((StringKey) key).getKey();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static int compare(Object a, Object b) {
+		return ((Comparable<Object>) a).compareTo(b);
+	}
+}
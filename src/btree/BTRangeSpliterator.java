@@ -0,0 +1,158 @@
+package btree;
+
+import java.util.*;
+import java.util.function.*;
+
+import global.*;
+
+/**
+ * BTRangeSpliterator splits a range scan of a B+ tree into disjoint key
+ * sub-ranges, cut at separator keys taken from the upper index levels, so
+ * that StreamSupport.stream(spliterator, true) can run one BTFileScan per
+ * sub-range on the fork/join pool.
+ * <p>
+ * The buffer manager is not thread safe, so all page access of the sub-range
+ * scans is serialized on SystemDefs.JavabaseBM; entries are pulled out in
+ * batches under that lock and handed to the stream outside of it. Other
+ * threads touching the buffer manager at the same time must lock it too.
+ * <p>
+ * A sub-range scan keeps its current leaf pinned until it is drained. A
+ * stream that may stop early (findFirst, limit, ...) should be closed, e.g.
+ * <code>StreamSupport.stream(split, true).onClose(split::close)</code> in a
+ * try-with-resources block, so the leaves get unpinned.
+ */
+public class BTRangeSpliterator implements Spliterator<KeyDataEntry>,
+		GlobalConst {
+
+	/* entries pulled out of a sub-range scan per trip through the lock */
+	private final static int BATCH = 256;
+
+	private final BTreeFile bfile;
+	/* cuts[0] = lo_key, cuts[cuts.length - 1] = hi_key, separators between */
+	private final KeyClass[] cuts;
+	/* every spliterator split off the same scan, for close() */
+	private final List<BTRangeSpliterator> family;
+
+	private int first;
+	private final int last;
+
+	private BTFileScan scan;
+	private boolean done;
+	private final KeyDataEntry[] batch = new KeyDataEntry[BATCH];
+	private int batchPos;
+	private int batchLen;
+
+	BTRangeSpliterator(BTreeFile bfile, KeyClass[] cuts) {
+		this(bfile, cuts, 0, cuts.length - 1,
+				new ArrayList<BTRangeSpliterator>());
+	}
+
+	private BTRangeSpliterator(BTreeFile bfile, KeyClass[] cuts, int first,
+			int last, List<BTRangeSpliterator> family) {
+		this.bfile = bfile;
+		this.cuts = cuts;
+		this.first = first;
+		this.last = last;
+		this.family = family;
+		synchronized (family) {
+			family.add(this);
+		}
+	}
+
+	public boolean tryAdvance(Consumer<? super KeyDataEntry> action) {
+		if (batchPos == batchLen) {
+			if (done)
+				return false;
+			fill();
+			if (batchLen == 0)
+				return false;
+		}
+		KeyDataEntry entry = batch[batchPos];
+		batch[batchPos++] = null;
+		action.accept(entry);
+		return true;
+	}
+
+	/**
+	 * Hand the lower half of the remaining sub-ranges to a new spliterator.
+	 * Only possible before this one has started scanning.
+	 */
+	public Spliterator<KeyDataEntry> trySplit() {
+		if (scan != null || done || last - first < 2)
+			return null;
+		int mid = (first + last) >>> 1;
+		BTRangeSpliterator prefix = new BTRangeSpliterator(bfile, cuts, first,
+				mid, family);
+		first = mid;
+		return prefix;
+	}
+
+	public long estimateSize() {
+		return Long.MAX_VALUE;
+	}
+
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+
+	/**
+	 * Stop every scan of this spliterator and of those split off it, and
+	 * unpin their leaf pages.
+	 */
+	public void close() {
+		synchronized (family) {
+			for (BTRangeSpliterator s : family)
+				s.stop();
+		}
+	}
+
+	/*
+	 * Pull the next batch of entries of sub-ranges first..last out of the
+	 * tree. Upper cuts are exclusive except for hi_key itself, so entries
+	 * equal to a separator belong to the sub-range on its right.
+	 */
+	private void fill() {
+		batchPos = 0;
+		batchLen = 0;
+
+		synchronized (SystemDefs.JavabaseBM) {
+			try {
+				if (scan == null)
+					scan = bfile.new_scan(cuts[first], cuts[last]);
+
+				boolean exclusive = last < cuts.length - 1;
+				while (batchLen < BATCH) {
+					KeyDataEntry entry = scan.get_next();
+					if (entry == null) {
+						// BTFileScan unpins its leaf at the end of the range
+						scan = null;
+						done = true;
+						break;
+					}
+					if (exclusive && BT.keyCompare(entry.key, cuts[last]) >= 0) {
+						stop();
+						break;
+					}
+					batch[batchLen++] = entry;
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new IllegalStateException("parallel scan failed", e);
+			}
+		}
+	}
+
+	private void stop() {
+		synchronized (SystemDefs.JavabaseBM) {
+			if (scan != null) {
+				try {
+					scan.DestroyBTreeFileScan();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+				scan = null;
+			}
+			done = true;
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * BTReverseFileScan is the descending counterpart of BTFileScan. It starts on
+ * the right-most record <= hi_key and walks the leaf level right to left,
+ * following the previous page links, until it passes lo_key. A "top n by
+ * key" query therefore only touches the last few leaves of the range.
+ */
+public class BTReverseFileScan extends IndexFileScan implements GlobalConst {
+
+	BTreeFile bfile;
+	String treeFilename; // B+ tree we're scanning
+	BTLeafPage leafPage; // leaf page containing current record
+	RID curRid; // position in current leaf; note: this is
+				// the RID of the key/RID pair within the
+				// leaf page.
+	boolean didfirst; // false only before get_next is called
+	boolean dirty; // current leaf has been changed by delete_current
+	KeyClass endkey; // lo_key, we stop when we go below it
+	int keyType;
+	int maxKeysize;
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		KeyDataEntry entry;
+
+		if (leafPage == null)
+			return null;
+
+		try {
+			if (didfirst)
+				curRid.slotNo--;
+			didfirst = true;
+
+			while (curRid.slotNo < 0) {
+				// front of this leaf, go to the left neighbour
+				PageId prevpage = leafPage.getPrevPage();
+				SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), dirty);
+				dirty = false;
+				if (prevpage.pid == INVALID_PAGE) {
+					leafPage = null;
+					return null;
+				}
+
+				leafPage = new BTLeafPage(prevpage, keyType);
+				curRid.pageNo = leafPage.getCurPage();
+				curRid.slotNo = leafPage.getSlotCnt() - 1;
+			}
+
+			entry = leafPage.getCurrent(curRid);
+
+			if (endkey != null && BT.keyCompare(entry.key, endkey) < 0) {
+				// went below lo_key
+				SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), dirty);
+				leafPage = null;
+				return null;
+			}
+
+			return entry;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException();
+		}
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry. Records
+	 * to the left of it keep their slots, so the scan is not disturbed.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (leafPage == null || !didfirst) {
+			System.out.println("No Record to delete!");
+			throw new ScanDeleteException();
+		}
+
+		try {
+			KeyDataEntry entry = leafPage.getCurrent(curRid);
+			bfile.rangeChanged(entry.key);
+			bfile.leafChanged(leafPage.getCurPage());
+			leafPage.deleteSortedRecord(new RID(leafPage.getCurPage(),
+					curRid.slotNo));
+			dirty = true;
+			if (bfile.compactor != null)
+				bfile.compactor.changed(false, entry.key,
+						((LeafData) entry.data).getData());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException();
+		}
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key in BTFile
+	 */
+	public int keysize() {
+		return maxKeysize;
+	}
+
+	/**
+	 * destructor. unpin some pages if they are not unpinned already. and do
+	 * some clearing work.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception InvalidFrameNumberException
+	 *                error from the lower layer
+	 * @exception ReplacerException
+	 *                error from the lower layer
+	 * @exception PageUnpinnedException
+	 *                error from the lower layer
+	 * @exception HashEntryNotFoundException
+	 *                error from the lower layer
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (leafPage != null)
+			SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), dirty);
+		leafPage = null;
+	}
+}
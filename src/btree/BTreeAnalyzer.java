@@ -0,0 +1,242 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * BTreeAnalyzer measures the shape of a live B+ tree into BTreeStatistics,
+ * in place of reading the output of BT.printBTree.
+ * <p>
+ * analyze() visits every index page level by level and walks the whole leaf
+ * chain, pinning one page at a time. sample() is the cheap, incremental
+ * alternative: every call makes a few random root-to-leaf descents, and
+ * estimate() turns all descents so far into statistics. The estimates are
+ * Knuth's: a descent that picked one of n children on its way stands for
+ * n times as many pages below as it saw, which makes the page and key
+ * counts unbiased. Calls to sample() can be spread over time while the tree
+ * is being updated; each pins at most one page per level.
+ */
+public class BTreeAnalyzer implements GlobalConst {
+
+	/* more levels than a tree of 2^32 pages can have */
+	private final static int MAX_LEVELS = 32;
+
+	private final BTreeFile bfile;
+	private final Random random;
+
+	private Tally sampled = new Tally();
+	private long probes;
+
+	BTreeAnalyzer(BTreeFile bfile, long seed) {
+		this.bfile = bfile;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Visit every page of the tree.
+	 *
+	 * @return exact statistics
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTreeStatistics analyze() throws IOException, PinPageException,
+			UnpinPageException {
+		BTreeHeaderPage header = bfile.getHeaderPage();
+		int keyType = header.get_keyType();
+		Tally tally = new Tally();
+
+		if (header.get_rootId().pid == INVALID_PAGE)
+			return tally.statistics(1, true, 0);
+
+		ArrayList<Integer> level = new ArrayList<Integer>();
+		level.add(header.get_rootId().pid);
+
+		for (int depth = 0; depth < MAX_LEVELS; depth++) {
+			PageId first = new PageId(level.get(0));
+			boolean leaves = new BTSortedPage(pinPage(first), keyType)
+					.getType() == NodeType.LEAF;
+			unpinPage(first);
+
+			if (leaves) {
+				// follow the chain, that's the order a scan reads them in
+				PageId pageno = first;
+				while (pageno.pid != INVALID_PAGE) {
+					BTSortedPage leaf = new BTSortedPage(pinPage(pageno),
+							keyType);
+					PageId next = leaf.getNextPage();
+					tally.leaf(depth, pageno.pid, leaf, next.pid, 1);
+					unpinPage(pageno);
+					pageno = next;
+				}
+				break;
+			}
+
+			ArrayList<Integer> below = new ArrayList<Integer>();
+			for (int pid : level) {
+				PageId pageno = new PageId(pid);
+				BTSortedPage index = new BTSortedPage(pinPage(pageno), keyType);
+				int n = index.getSlotCnt();
+				tally.page(depth, n, 1);
+				below.add(index.getPrevPage().pid);
+				for (int i = 0; i < n; i++)
+					below.add(child(index, i));
+				unpinPage(pageno);
+			}
+			level = below;
+		}
+
+		return tally.statistics(1, true, 0);
+	}
+
+	/**
+	 * Make some more random root-to-leaf descents.
+	 *
+	 * @param count
+	 *            number of descents
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void sample(int count) throws IOException, PinPageException,
+			UnpinPageException {
+		BTreeHeaderPage header = bfile.getHeaderPage();
+		int keyType = header.get_keyType();
+
+		for (int probe = 0; probe < count; probe++) {
+			PageId pageno = header.get_rootId();
+			if (pageno.pid == INVALID_PAGE)
+				return;
+
+			double weight = 1;
+			for (int depth = 0; depth < MAX_LEVELS; depth++) {
+				BTSortedPage page = new BTSortedPage(pinPage(pageno), keyType);
+				int n = page.getSlotCnt();
+
+				if (page.getType() == NodeType.LEAF) {
+					sampled.leaf(depth, pageno.pid, page,
+							page.getNextPage().pid, weight);
+					unpinPage(pageno);
+					break;
+				}
+
+				sampled.page(depth, n, weight);
+				int pick = random.nextInt(n + 1);
+				PageId child = pick == 0 ? page.getPrevPage() : new PageId(
+						child(page, pick - 1));
+				unpinPage(pageno);
+				weight *= n + 1;
+				pageno = child;
+			}
+			probes++;
+		}
+	}
+
+	/**
+	 * @return the statistics estimated from all descents made by sample()
+	 *         since this analyzer was created or reset
+	 */
+	public BTreeStatistics estimate() {
+		return sampled.statistics(Math.max(probes, 1), false, probes);
+	}
+
+	/** Forget all descents made so far, e.g. after the tree has changed a lot. */
+	public void reset() {
+		sampled = new Tally();
+		probes = 0;
+	}
+
+	/* the child page of index entry `slot', behind the key */
+	private static int child(HFPage index, int slot) throws IOException {
+		int offset = index.getSlotOffset(slot);
+		int length = index.getSlotLength(slot);
+		return Convert.getIntValue(offset + length - 4, index.getpage());
+	}
+
+	private Page pinPage(PageId pageno) throws PinPageException {
+		try {
+			Page page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
+			return page;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "");
+		}
+	}
+
+	private void unpinPage(PageId pageno) throws UnpinPageException {
+		try {
+			SystemDefs.JavabaseBM.unpinPage(pageno, false /* = not DIRTY */);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+
+	/*
+	 * Weighted sums over the pages seen; divided by the number of descents
+	 * they are estimates, with weight 1 and no division they are exact.
+	 */
+	private static class Tally {
+		int height;
+		final double[] pages = new double[MAX_LEVELS];
+		final double[] entries = new double[MAX_LEVELS];
+		final double[] fill = new double[BTreeStatistics.FILL_BUCKETS];
+		double fillSum;
+		double links;
+		double contiguous;
+		double forward;
+
+		void page(int level, int n, double weight) {
+			pages[level] += weight;
+			entries[level] += weight * n;
+			height = Math.max(height, level + 1);
+		}
+
+		void leaf(int level, int pid, HFPage leaf, int next, double weight)
+				throws IOException {
+			page(level, leaf.getSlotCnt(), weight);
+
+			double used = 1 - (double) leaf.available_space()
+					/ (MAX_SPACE - HFPage.DPFIXED);
+			used = Math.max(0, Math.min(1, used));
+			fill[Math.min(fill.length - 1, (int) (used * fill.length))] += weight;
+			fillSum += weight * used;
+
+			if (next != INVALID_PAGE) {
+				links += weight;
+				if (next == pid + 1)
+					contiguous += weight;
+				if (next > pid)
+					forward += weight;
+			}
+		}
+
+		BTreeStatistics statistics(double probes, boolean exact, long count) {
+			double[] p = new double[height];
+			double[] e = new double[height];
+			for (int i = 0; i < height; i++) {
+				p[i] = pages[i] / probes;
+				e[i] = entries[i] / probes;
+			}
+			double leaves = height == 0 ? 0 : pages[height - 1];
+			double[] f = new double[fill.length];
+			for (int i = 0; i < f.length; i++)
+				f[i] = leaves == 0 ? 0 : fill[i] / leaves;
+
+			return new BTreeStatistics(height, p, e, f, leaves == 0 ? 0
+					: fillSum / leaves, links == 0 ? 0 : contiguous / links,
+					links == 0 ? 0 : forward / links, exact, count);
+		}
+	}
+}
@@ -8,6 +8,7 @@
 package btree;
 
 import java.io.*;
+import java.util.*;
 
 import diskmgr.*;
 import bufmgr.*;
@@ -62,6 +63,57 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	private PageId headerPageId;
 	private String dbname;
 
+	private final BTreeFileStats stats = new BTreeFileStats();
+	/*
+	 * pages pinned or allocated so far by each thread, so that the pins of
+	 * an operation are its own even while other threads use the file
+	 */
+	private final ThreadLocal<long[]> pinned = new ThreadLocal<long[]>() {
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+	// leaf positions of hot keys, for findRunStart
+	private final BTAdaptiveHash adaptiveHash = new BTAdaptiveHash();
+	private BTRangeCache rangeCache; // null unless setRangeCache()
+
+	BTCompactor compactor; // running compaction, told about every change
+	private BTExtentMap extents; // where the leaves come from
+
+	/**
+	 * @return the per-operation statistics of this index, see BTreeFileStats
+	 */
+	public BTreeFileStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * keep the results of range scans that are repeated in memory, see
+	 * BTRangeCache. new_scan() of a cached range then returns a scan that
+	 * reads a copy of the entries and pins no pages.
+	 * <p>
+	 * The cache belongs to this BTreeFile object and only sees the inserts
+	 * and deletes made through it. Do not turn it on while the index is
+	 * changed through another BTreeFile opened on it.
+	 *
+	 * @param bytes
+	 *            memory for the cached results; 0 turns the cache off
+	 */
+	public void setRangeCache(long bytes) {
+		rangeCache = bytes > 0 ? new BTRangeCache(bytes) : null;
+	}
+
+	/* `key' is about to be inserted or deleted, see BTRangeCache */
+	void rangeChanged(KeyClass key) {
+		if (rangeCache != null)
+			rangeCache.changed(key);
+	}
+
+	/* leaf `pageno' is changed by a scan, see BTAdaptiveHash */
+	void leafChanged(PageId pageno) {
+		adaptiveHash.changed(pageno);
+	}
+
 	/**
 	 * Access method to data member.
 	 * 
@@ -81,7 +133,23 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		}
 	}
 
+	private BTExtentMap open_extents(PageId header)
+			throws GetFileEntryException {
+		try {
+			return BTExtentMap.open(header);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new GetFileEntryException(e, "");
+		}
+	}
+
+	/* extent map of this index, for building trees next to it */
+	BTExtentMap extentMap() {
+		return extents;
+	}
+
 	private Page pinPage(PageId pageno) throws PinPageException {
+		pinned.get()[0]++;
 		try {
 			Page page = new Page();
 			SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
@@ -112,8 +180,10 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	}
 
 	private void freePage(PageId pageno) throws FreePageException {
+		adaptiveHash.changed(pageno);
 		try {
-			SystemDefs.JavabaseBM.freePage(pageno);
+			if (!extents.free(pageno))
+				SystemDefs.JavabaseBM.freePage(pageno);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new FreePageException(e, "");
@@ -121,6 +191,17 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	}
 
+	/* a new leaf page from the extents, next to `near' if possible; pinned */
+	private BTLeafPage newLeafPage(PageId near) throws ConstructPageException {
+		pinned.get()[0]++;
+		try {
+			return extents.newLeaf(near, false, headerPage.get_keyType());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "construct new page failed");
+		}
+	}
+
 	private void delete_file_entry(String filename)
 			throws DeleteFileEntryException {
 		try {
@@ -159,6 +240,9 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 		headerPageId = get_file_entry(filename);
 
+		// before the header is pinned, so that a failure leaves it unpinned
+		if (headerPageId != null)
+			extents = open_extents(headerPageId);
 		headerPage = new BTreeHeaderPage(headerPageId);
 		dbname = new String(filename);
 		/*
@@ -199,7 +283,16 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		{
 			headerPage = new BTreeHeaderPage();
 			headerPageId = headerPage.getPageId();
-			add_file_entry(filename, headerPageId);
+			try {
+				extents = open_extents(headerPageId);
+				add_file_entry(filename, headerPageId);
+			} catch (GetFileEntryException e) {
+				discardHeader();
+				throw e;
+			} catch (AddFileEntryException e) {
+				discardHeader();
+				throw e;
+			}
 			headerPage.set_magic0(MAGIC0);
 			headerPage.set_rootId(new PageId(INVALID_PAGE));
 			headerPage.set_keyType((short) keytype);
@@ -207,6 +300,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			headerPage.set_deleteFashion(delete_fashion);
 			headerPage.setType(NodeType.BTHEAD);
 		} else {
+			extents = open_extents(headerPageId);
 			headerPage = new BTreeHeaderPage(headerPageId);
 		}
 
@@ -214,6 +308,19 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	}
 
+	/* unpin and free the header page of an index that could not be created */
+	private void discardHeader() {
+		try {
+			if (extents != null)
+				extents.destroy();
+			SystemDefs.JavabaseBM.unpinPage(headerPageId, false);
+			SystemDefs.JavabaseBM.freePage(headerPageId);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		headerPage = null;
+	}
+
 	/**
 	 * Close the B+ tree file. Unpin header page.
 	 *
@@ -260,10 +367,18 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			PageId pgId = headerPage.get_rootId();
 			if (pgId.pid != INVALID_PAGE)
 				_destroyFile(pgId);
+			try {
+				extents.destroy();
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new FreePageException(e, "");
+			}
 			unpinPage(headerPageId);
 			freePage(headerPageId);
 			delete_file_entry(dbname);
 			headerPage = null;
+			if (rangeCache != null)
+				rangeCache.clear();
 		}
 	}
 
@@ -281,17 +396,30 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			RID rid = new RID();
 			PageId childId;
 			KeyDataEntry entry;
+			_destroyFile(indexPage.getPrevPage());
 			for (entry = indexPage.getFirst(rid); entry != null; entry = indexPage
 					.getNext(rid)) {
 				childId = ((IndexData) (entry.data)).getData();
 				_destroyFile(childId);
 			}
-		} else { // BTLeafPage
-
-			unpinPage(pageno);
-			freePage(pageno);
 		}
 
+		unpinPage(pageno);
+		freePage(pageno);
+
+	}
+
+	/*
+	 * Make newRoot the root of this index and free every page of the old
+	 * tree. Used by BTCompactor once the new tree is complete.
+	 */
+	void swapRoot(PageId newRoot) throws IOException, IteratorException,
+			PinPageException, ConstructPageException, UnpinPageException,
+			FreePageException {
+		PageId oldRoot = headerPage.get_rootId();
+		updateHeader(newRoot);
+		if (oldRoot.pid != INVALID_PAGE)
+			_destroyFile(oldRoot);
 	}
 
 	private void updateHeader(PageId newRoot) throws IOException,
@@ -352,6 +480,26 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 *                error when insert in index page
 	 */
 	public void insert(KeyClass key, RID rid) throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		long start = System.nanoTime();
+		long pins = pinned.get()[0];
+		try {
+			rangeChanged(key);
+			insertEntry(key, rid);
+			if (compactor != null)
+				compactor.changed(true, key, rid);
+		} finally {
+			stats.insert.record(pinned.get()[0] - pins, System.nanoTime()
+					- start);
+		}
+	}
+
+	private void insertEntry(KeyClass key, RID rid) throws KeyTooLongException,
 			KeyNotMatchException, LeafInsertRecException,
 			IndexInsertRecException, ConstructPageException,
 			UnpinPageException, PinPageException, NodeNotMatchException,
@@ -366,7 +514,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			BTLeafPage leafPage;
 			PageId root;
 			//creating a new leaf page
-			leafPage = new BTLeafPage(headerPage.get_keyType());
+			leafPage = newLeafPage(null);
 			//root is set as the leaf page(current page)
 			root = leafPage.getCurPage();
 			//header pointing to the root
@@ -387,6 +535,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			{
 				//creating a new Root Pagebecause split has occured 
 				BTIndexPage newRootPage = new BTIndexPage(headerPage.get_keyType());
+				pinned.get()[0]++;
+				stats.rootSplits.increment();
 				PageId newRootPageId = newRootPage.getCurPage();
 				
 				//inserting the key into the new root node
@@ -445,10 +595,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			}
 			
 			//Pinning the Page
-			pinPage(currentPageId);
-			
-			//we are again initializing the current index page
-			currentIndexPage = new BTIndexPage(currentPageId, headerPage.get_keyType());
+			//we are again pinning and initializing the current index page
+			currentIndexPage = new BTIndexPage(pinPage(currentPageId), headerPage.get_keyType());
 			
 			//If space is available in the index page we are inserting the key and returning null
 			if(currentIndexPage.available_space() >= BT.getKeyDataLength( upEntry.key, NodeType.INDEX))
@@ -467,6 +615,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			//initializing the objects
 			
 			newIndexPage = new BTIndexPage(headerPage.get_keyType());
+			pinned.get()[0]++;
+			stats.indexSplits.increment();
 			newIndexPageId = newIndexPage.getCurPage();
 			
 			KeyDataEntry tmpKeyDataEntry;
@@ -508,7 +658,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			if(currentIndexPage.available_space() < newIndexPage.available_space())
 			{
 				//Here we are inserting the undo entry
-				newIndexPage.insertKey(undoEntry.key, ((IndexData) upEntry.data).getData());
+				newIndexPage.insertKey(undoEntry.key, ((IndexData) undoEntry.data).getData());
 				//Here we are deleting the entry from the index node
 				currentIndexPage.deleteSortedRecord(undo_rid);	
 			}
@@ -554,6 +704,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			BTLeafPage currentLeafPage = new BTLeafPage(page, headerPage.get_keyType());
 			//initializing the cuurentPageId to the current leaf page
 			PageId currentLeafPageId = currentPageId;
+			//the entries of the leaf move, in it or to a new one
+			adaptiveHash.changed(currentLeafPageId);
 			
 			if(currentLeafPage.available_space() >= BT.getKeyDataLength(key, NodeType.LEAF))
 			{
@@ -564,7 +716,9 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			}
 			//3tem.out.println("working");
 			//We are creating a new leaf node for splitting as space is not available at the current page. 
-			BTLeafPage newLeafPage = new BTLeafPage(headerPage.get_keyType());
+			//taken from the extents, right behind the current leaf if possible
+			BTLeafPage newLeafPage = newLeafPage(currentLeafPageId);
+			stats.leafSplits.increment();
 			PageId newLeafPageId = newLeafPage.getCurPage();
 			
 			//for storing the data when the transferring of keys occur
@@ -579,6 +733,14 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			newLeafPage.setPrevPage(currentLeafPageId);
 			//setting the link of the next page of the current page to the new leaf page
 			currentLeafPage.setNextPage(newLeafPageId);
+			//the old right neighbour has to point back to the new leaf page
+			PageId oldNextPageId = newLeafPage.getNextPage();
+			if(oldNextPageId.pid != INVALID_PAGE)
+			{
+				BTLeafPage oldNextPage = new BTLeafPage(pinPage(oldNextPageId), headerPage.get_keyType());
+				oldNextPage.setPrevPage(newLeafPageId);
+				unpinPage(oldNextPageId, true);
+			}
 			
 			//transferring data from current leaf node to the new leaf node
 			for(tmpKeyDataEntryLeaf = currentLeafPage.getFirst(delLeafRid); tmpKeyDataEntryLeaf != null;
@@ -635,10 +797,11 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				currentLeafPage.insertRecord(key,rid);
 			}
 		
-			//un pinning the page for other processes to use
-			unpinPage(currentLeafPageId);
+			//un pinning the pages for other processes to use, both were changed
+			unpinPage(currentLeafPageId, true);
 			//filling up upEntry to pass up to the index
 			upEntry = new KeyDataEntry(newLeafPage.getFirst(delLeafRid).key, newLeafPageId);
+			unpinPage(newLeafPageId, true);
 			
 			return upEntry;		
 		}
@@ -702,12 +865,21 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			IndexFullDeleteException, LeafDeleteException, IteratorException,
 			ConstructPageException, DeleteRecException, IndexSearchException,
 			IOException {
-		if (headerPage.get_deleteFashion() == DeleteFashion.NAIVE_DELETE)
-			{
-			return NaiveDelete(key, rid);
-			}
-		else
+		if (headerPage.get_deleteFashion() != DeleteFashion.NAIVE_DELETE)
 			throw new DeleteFashionException(null, "");
+
+		long start = System.nanoTime();
+		long pins = pinned.get()[0];
+		try {
+			rangeChanged(key);
+			boolean deleted = NaiveDelete(key, rid);
+			if (deleted && compactor != null)
+				compactor.changed(false, key, rid);
+			return deleted;
+		} finally {
+			stats.delete.record(pinned.get()[0] - pins, System.nanoTime()
+					- start);
+		}
 	}
 
 	/*
@@ -753,6 +925,13 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			return pageLeaf;
 		}
 
+		// hot keys skip the descent; traces show every visit
+		if (lo_key != null && trace == null) {
+			pageLeaf = hashedRunStart(lo_key, startrid);
+			if (pageLeaf != null)
+				return pageLeaf;
+		}
+
 		page = pinPage(pageno);
 		sortPage = new BTSortedPage(page, headerPage.get_keyType());
 
@@ -835,9 +1014,142 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			}
 		}
 
+		if (trace == null)
+			adaptiveHash.record(lo_key, pageno, startrid.slotNo, pageLeaf
+					.getPrevPage().pid == INVALID_PAGE);
 		return pageLeaf;
 	}
 
+	/*
+	 * the start of the run of `key' where the adaptive hash last saw it,
+	 * pinned, with its position in `startrid'; null if the key is not hot
+	 * or the run is no longer there
+	 */
+	private BTLeafPage hashedRunStart(KeyClass key, RID startrid)
+			throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		if (!adaptiveHash.lookup(key, startrid)) {
+			stats.hashMisses.increment();
+			return null;
+		}
+		int keyType = headerPage.get_keyType();
+		Page page = pinPage(startrid.pageNo);
+		BTSortedPage sortPage = new BTSortedPage(page, keyType);
+		int slot = startrid.slotNo;
+		if (sortPage.getType() == NodeType.LEAF
+				&& slot < sortPage.getSlotCnt()
+				&& BT.keyCompare(keyAt(sortPage, slot), key) >= 0
+				&& (slot > 0 ? BT.keyCompare(keyAt(sortPage, slot - 1), key) < 0
+						: sortPage.getPrevPage().pid == INVALID_PAGE)) {
+			stats.hashHits.increment();
+			return new BTLeafPage(page, keyType);
+		}
+		unpinPage(startrid.pageNo); // the descent will record where it went
+		stats.hashMisses.increment();
+		return null;
+	}
+
+	private KeyClass keyAt(BTSortedPage page, int slot) throws IOException,
+			IteratorException {
+		try {
+			return BT.getEntryFromBytes(page.getpage(),
+					page.getSlotOffset(slot), page.getSlotLength(slot),
+					headerPage.get_keyType(), NodeType.LEAF).key;
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IteratorException(e, "bad leaf entry");
+		}
+	}
+
+	/*
+	 * findRunEnd is the mirror image of findRunStart: find the right-most
+	 * occurrence of a key <= hi_key, going all the way right if hi_key is
+	 * null. The descent follows the last separator <= hi_key, then the leaf
+	 * chain is walked left over leaves that hold nothing <= hi_key.
+	 * 
+	 * @param hi_key find right-most occurrence of a key <= hi_key
+	 * 
+	 * @param endrid it will return the rid of that record
+	 * 
+	 * @return return a BTLeafPage instance which is pinned. null if no key was
+	 * found.
+	 */
+
+	BTLeafPage findRunEnd(KeyClass hi_key, RID endrid) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		BTLeafPage pageLeaf;
+		BTIndexPage pageIndex;
+		Page page;
+		BTSortedPage sortPage;
+		PageId pageno;
+		PageId nextpageno;
+		KeyDataEntry curEntry;
+
+		pageno = headerPage.get_rootId();
+
+		if (pageno.pid == INVALID_PAGE) // no pages in the BTREE
+			return null;
+
+		page = pinPage(pageno);
+		sortPage = new BTSortedPage(page, headerPage.get_keyType());
+
+		if (trace != null) {
+			trace.writeBytes("VISIT node " + pageno + lineSep);
+			trace.flush();
+		}
+
+		while (sortPage.getType() == NodeType.INDEX) {
+			pageIndex = new BTIndexPage(page, headerPage.get_keyType());
+			nextpageno = pageIndex.getPrevPage();
+			curEntry = pageIndex.getFirst(endrid);
+			while (curEntry != null
+					&& (hi_key == null || BT.keyCompare(curEntry.key, hi_key) <= 0)) {
+
+				nextpageno = ((IndexData) curEntry.data).getData();
+				curEntry = pageIndex.getNext(endrid);
+			}
+
+			unpinPage(pageno);
+
+			pageno = nextpageno;
+			page = pinPage(pageno);
+			sortPage = new BTSortedPage(page, headerPage.get_keyType());
+
+			if (trace != null) {
+				trace.writeBytes("VISIT node " + pageno + lineSep);
+				trace.flush();
+			}
+		}
+
+		pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
+
+		while (true) {
+			// scan this leaf right to left for the last key <= hi_key
+			for (int slot = pageLeaf.getSlotCnt() - 1; slot >= 0; slot--) {
+				endrid.pageNo = pageLeaf.getCurPage();
+				endrid.slotNo = slot;
+				curEntry = pageLeaf.getCurrent(endrid);
+				if (curEntry != null
+						&& (hi_key == null || BT.keyCompare(curEntry.key, hi_key) <= 0)) {
+					// note that pageno/pageLeaf is still pinned;
+					// scan will unpin it when done
+					return pageLeaf;
+				}
+			}
+
+			// nothing here, have to go left
+			nextpageno = pageLeaf.getPrevPage();
+			unpinPage(pageno);
+			if (nextpageno.pid == INVALID_PAGE)
+				return null;
+
+			pageno = nextpageno;
+			pageLeaf = new BTLeafPage(pinPage(pageno), headerPage.get_keyType());
+		}
+	}
+
 	/*
 	 * Status BTreeFile::NaiveDelete (const void *key, const RID rid)
 	 * 
@@ -859,9 +1171,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			BTLeafPage leafPage;
 			//Iterator
 			RID crid = new RID();
-			RID nrid = new RID();
 			KeyDataEntry entry;
-			KeyDataEntry tmp;
 			PageId nextPage;
 			
 			
@@ -895,47 +1205,160 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 					 
 					 leafPage = new BTLeafPage(pinPage(nextPage),headerPage.get_keyType());
 					 //updating the entry to the new page
-					 entry = leafPage.getFirst(nrid);	
+					 entry = leafPage.getFirst(crid);	
 				}
-				//if the key is greater than the entry then no delete
-				if(BT.keyCompare(key, entry.key)>0)
+				//if the entry is greater than the key we are past the run of
+				//the key and there is nothing to delete
+				if(BT.keyCompare(entry.key, key)>0)
 				{
 					break;
 				}
 				
-				//we are traversing records in the leaf page
-				for(tmp = leafPage.getFirst(nrid); tmp != null ;tmp = leafPage.getNext(nrid))
+				//only the entry with the given rid is deleted, not any entry
+				//with the same key
+				if(((LeafData) entry.data).getData().equals(rid))
 				{
-					
-					
-					if(BT.keyCompare(tmp.key, key)==0)
-						{
-						
-						//Here we are deleting the entry
-						leafPage.deleteSortedRecord(nrid);
-						unpinPage(leafPage.getCurPage());
-						return true;
-						}
+					//Here we are deleting the entry
+					adaptiveHash.changed(leafPage.getCurPage());
+					leafPage.deleteSortedRecord(crid);
+					unpinPage(leafPage.getCurPage(), true);
+					return true;
 				}
-				//we are traversing to the next leaf page if the key is not found
-				//in the current leaf page
-				nextPage = leafPage.getNextPage();
 				
-				//If the next page is invalid then we have reached the end of the leaf pages 
-				// and the key is not found
-				if(nextPage.pid == INVALID_PAGE )
-					break;
-				unpinPage(leafPage.getCurPage());
-				leafPage = new BTLeafPage(nextPage ,headerPage.get_keyType());
-				pinPage(leafPage.getCurPage());
-				//updating the new entry
-				entry = leafPage.getFirst(crid);
+				//next record of the run, the loop above moves on to the next
+				//leaf page when this one is done
+				entry = leafPage.getNext(crid);
 					
 			}
 			
 			unpinPage(leafPage.getCurPage());
 			return false;
 	}
+
+	/**
+	 * look up a batch of keys in one pass over the leaf level. The probes are
+	 * sorted and answered in key order by one BTCursor: the tree is descended
+	 * once to the leaf holding the smallest probe, and the remaining probes
+	 * are found by following the leaf chain to the right. Probes far ahead of
+	 * the cursor are reached by descending from the root again, so sparse
+	 * batches don't degenerate into a full leaf walk.
+	 *
+	 * @param keys
+	 *            the probe keys, in any order, duplicates allowed. Input
+	 *            parameter.
+	 * @return an array parallel to keys; element i holds the rids of all
+	 *         records whose key equals keys[i], empty if there is none.
+	 * @exception KeyNotMatchException
+	 *                probe keys are not of the key type of this index
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public RID[][] multiGet(final KeyClass[] keys) throws KeyNotMatchException,
+			IOException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		int n = keys.length;
+		RID[][] result = new RID[n][];
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+
+		// checked up front, the descent would fail with its pages pinned
+		int keyType = headerPage.get_keyType();
+		for (KeyClass key : keys)
+			if (keyType == AttrType.attrInteger ? !(key instanceof IntegerKey)
+					: !(key instanceof StringKey))
+				throw new KeyNotMatchException(null,
+						"probe keys do not match the key type");
+
+		try {
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					try {
+						return BT.keyCompare(keys[a], keys[b]);
+					} catch (KeyNotMatchException e) {
+						throw new IllegalArgumentException(e);
+					}
+				}
+			});
+		} catch (IllegalArgumentException e) {
+			throw new KeyNotMatchException(e, "probe keys of different types");
+		}
+
+		ArrayList<RID> hits = new ArrayList<RID>();
+		BTCursor cursor = new_cursor();
+		KeyDataEntry entry;
+		int i;
+
+		try {
+			for (i = 0; i < n; i++) {
+				KeyClass probe = keys[order[i]];
+
+				if (i > 0 && BT.keyCompare(probe, keys[order[i - 1]]) == 0) {
+					// same key as the previous probe, share its answer
+					result[order[i]] = result[order[i - 1]];
+					continue;
+				}
+
+				// the run of entries equal to probe, it may span leaves
+				hits.clear();
+				for (entry = cursor.seek(probe); entry != null
+						&& BT.keyCompare(entry.key, probe) == 0; entry = cursor
+						.current()) {
+					hits.add(((LeafData) entry.data).getData());
+					cursor.get_next();
+				}
+				result[order[i]] = hits.toArray(new RID[hits.size()]);
+
+				if (entry == null)
+					break; // every remaining probe is past the last key
+			}
+		} catch (ScanIteratorException e) {
+			throw new IteratorException(e, "multiGet failed");
+		} finally {
+			try {
+				cursor.close();
+			} catch (ScanIteratorException e) {
+				throw new IteratorException(e, "multiGet failed");
+			}
+		}
+
+		for (i = 0; i < n; i++) {
+			if (result[i] == null)
+				result[i] = new RID[0];
+		}
+		return result;
+	}
+
+	/*
+	 * Unpin leafPage and pin its right sibling, skipping empty leaves. Returns
+	 * null (with nothing pinned) at the end of the leaf chain. curRid is left
+	 * on the new page, before its first record.
+	 */
+	BTLeafPage nextLeaf(BTLeafPage leafPage, RID curRid)
+			throws IOException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		PageId nextpageno;
+
+		do {
+			nextpageno = leafPage.getNextPage();
+			unpinPage(leafPage.getCurPage());
+			if (nextpageno.pid == INVALID_PAGE)
+				return null;
+			leafPage = new BTLeafPage(pinPage(nextpageno),
+					headerPage.get_keyType());
+		} while (leafPage.getFirst(curRid) == null);
+
+		return leafPage;
+	}
+
 	/**
 	 * create a scan with given keys Cases: (1) lo_key = null, hi_key = null
 	 * scan the whole index (2) lo_key = null, hi_key!= null range scan from min
@@ -972,6 +1395,54 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			return scan;
 		}
 
+		BTRangeCache cache = rangeCache;
+		if (cache != null) {
+			BTRangeCache.Result result = cache.get(lo_key, hi_key);
+			if (result != null) {
+				stats.rangeHits.increment();
+			} else {
+				stats.rangeMisses.increment();
+				if (cache.admit(lo_key, hi_key))
+					result = cacheRange(cache, lo_key, hi_key);
+			}
+			if (result != null)
+				return new BTRangeCache.Scan(this, result,
+						headerPage.get_maxKeySize());
+		}
+		return openScan(lo_key, hi_key);
+	}
+
+	/*
+	 * read the entries of [lo_key, hi_key] into `cache'; null if there are
+	 * too many
+	 */
+	private BTRangeCache.Result cacheRange(BTRangeCache cache,
+			KeyClass lo_key, KeyClass hi_key) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		BTRangeCache.Result result = new BTRangeCache.Result();
+		BTFileScan scan = openScan(lo_key, hi_key);
+		boolean fits = true;
+		try {
+			KeyDataEntry entry;
+			while (fits && (entry = scan.get_next()) != null)
+				fits = result.add(entry, cache.limit());
+			if (!fits)
+				scan.DestroyBTreeFileScan();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IteratorException(e, "range scan failed");
+		}
+		cache.put(lo_key, hi_key, result, fits);
+		return fits ? result : null;
+	}
+
+	private BTFileScan openScan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		BTFileScan scan = new BTFileScan();
+
 		scan.treeFilename = dbname;
 		scan.endkey = hi_key;
 		scan.didfirst = false;
@@ -982,10 +1453,347 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		scan.bfile = this;
 
 		// this sets up scan at the starting position, ready for iteration
+		long start = System.nanoTime();
+		long pins = pinned.get()[0];
+		try {
+			scan.leafPage = findRunStart(lo_key, scan.curRid);
+		} finally {
+			stats.scan.record(pinned.get()[0] - pins, System.nanoTime()
+					- start);
+		}
+		return scan;
+	}
+
+	/**
+	 * create an analyzer that reports the shape of this index: height, pages
+	 * per level, leaf fill and leaf chain layout. See BTreeAnalyzer.
+	 *
+	 * @param seed
+	 *            seed of the random descents made by BTreeAnalyzer.sample()
+	 * @return the new analyzer
+	 */
+	public BTreeAnalyzer new_analyzer(long seed) {
+		return new BTreeAnalyzer(this, seed);
+	}
+
+	/**
+	 * start an online compaction of this index, see BTCompactor. Only one
+	 * can run at a time.
+	 *
+	 * @param fill
+	 *            how full to pack the new pages, between 0.5 and 1; leave
+	 *            some room if inserts are expected
+	 * @return the compaction, to be driven by BTCompactor.step()
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public BTCompactor new_compactor(double fill) throws IOException {
+		if (compactor != null)
+			throw new IllegalStateException("a compaction is already running");
+		compactor = new BTCompactor(this, fill);
+		return compactor;
+	}
+
+	/**
+	 * fill this index with field `fieldNo' of every record of a heap file,
+	 * by an external merge sort and a bottom up bulk load instead of one
+	 * insert per record; see BTIndexBuilder. The data pages of the heap file
+	 * are read and sorted by one thread per processor, the pages are packed
+	 * to 90% and at most 1MB of entries are sorted in memory at a time.
+	 *
+	 * @param heap
+	 *            the heap file; its records must have been written with a
+	 *            header, see Tuple.setHdr()
+	 * @param fieldNo
+	 *            number of the field to index, from 1; it must be of the key
+	 *            type of this index
+	 * @exception IndexInsertRecException
+	 *                error while reading, sorting or loading; the index is
+	 *                left empty
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void buildFrom(Heapfile heap, int fieldNo)
+			throws IndexInsertRecException, IOException {
+		buildFrom(heap, fieldNo, 0.9, 1 << 20, Runtime.getRuntime()
+				.availableProcessors());
+	}
+
+	/**
+	 * fill this index from a heap file, see buildFrom(Heapfile, int).
+	 *
+	 * @param fill
+	 *            how full to pack the pages, between 0.5 and 1
+	 * @param memory
+	 *            bytes of entries to sort in memory at a time, shared by all
+	 *            threads
+	 * @param threads
+	 *            number of threads reading and sorting the heap file; while
+	 *            there is more than one, other threads must lock
+	 *            SystemDefs.JavabaseBM to use the buffer manager
+	 */
+	public void buildFrom(Heapfile heap, int fieldNo, double fill,
+			int memory, int threads) throws IndexInsertRecException,
+			IOException {
+		build(heap, new int[] { fieldNo }, null, fill, memory, threads);
+	}
+
+	/**
+	 * fill this index with a CompositeKey of fields `fieldNos' of every
+	 * record of a heap file, see buildFrom(Heapfile, int). The index must
+	 * have string keys of CompositeKey.maxKeySize().
+	 * <p>
+	 * This makes a covering index: list the fields that are searched on
+	 * first and then the fields the queries only read. A scan bounded by
+	 * CompositeKey.lowerBound() and upperBound() on the leading fields gets
+	 * all of them from CompositeKey.decode() of the keys it returns, and
+	 * never has to read the record from the heap file.
+	 *
+	 * @param types
+	 *            the types of all fields of the records, as for
+	 *            Tuple.setHdr()
+	 * @param fieldNos
+	 *            numbers of the fields that make up the key, from 1, in key
+	 *            order
+	 */
+	public void buildFrom(Heapfile heap, AttrType[] types, int[] fieldNos)
+			throws IndexInsertRecException, IOException {
+		buildFrom(heap, types, fieldNos, 0.9, 1 << 20, Runtime.getRuntime()
+				.availableProcessors());
+	}
+
+	/**
+	 * fill this index from a heap file, see buildFrom(Heapfile, AttrType[],
+	 * int[]) and buildFrom(Heapfile, int, double, int, int).
+	 */
+	public void buildFrom(Heapfile heap, AttrType[] types, int[] fieldNos,
+			double fill, int memory, int threads)
+			throws IndexInsertRecException, IOException {
+		if (headerPage.get_keyType() != AttrType.attrString)
+			throw new IllegalArgumentException(
+					"a composite index has string keys");
+		build(heap, fieldNos, types, fill, memory, threads);
+	}
+
+	private void build(Heapfile heap, int[] fieldNos, AttrType[] types,
+			double fill, int memory, int threads)
+			throws IndexInsertRecException, IOException {
+		if (headerPage.get_rootId().pid != INVALID_PAGE)
+			throw new IllegalStateException("index is not empty");
+		if (compactor != null)
+			throw new IllegalStateException("a compaction is running");
+
+		try {
+			PageId root = new BTIndexBuilder(this, fill, memory, threads)
+					.build(heap, fieldNos, types);
+			if (root.pid != INVALID_PAGE)
+				updateHeader(root);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IndexInsertRecException(e, "index build failed");
+		}
+	}
+
+	/**
+	 * create a cursor on this index. It is not positioned until its first
+	 * seek().
+	 *
+	 * @return the new cursor
+	 */
+	public BTCursor new_cursor() {
+		return new BTCursor(this);
+	}
+
+	/**
+	 * create a descending scan with given keys. It returns the records of
+	 * [lo_key, hi_key] from the largest key to the smallest, following the
+	 * previous page links of the leaves; the cases for lo_key and hi_key are
+	 * the same as for new_scan().
+	 *
+	 * @param lo_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTReverseFileScan new_scan_desc(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		BTReverseFileScan scan = new BTReverseFileScan();
+		if (headerPage.get_rootId().pid == INVALID_PAGE) {
+			scan.leafPage = null;
+			return scan;
+		}
+
+		scan.treeFilename = dbname;
+		scan.endkey = lo_key;
+		scan.didfirst = false;
+		scan.curRid = new RID();
+		scan.keyType = headerPage.get_keyType();
+		scan.maxKeysize = headerPage.get_maxKeySize();
+		scan.bfile = this;
+
+		// this sets up scan at the starting position, ready for iteration
+		scan.leafPage = findRunEnd(hi_key, scan.curRid);
+		return scan;
+	}
+
+	/**
+	 * create a block-at-a-time scan over an integer key index. The cases for
+	 * lo_key and hi_key are the same as for new_scan().
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                the index or one of the keys is not an integer key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTFileBlockScan new_block_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		if (headerPage.get_keyType() != AttrType.attrInteger
+				|| (lo_key != null && !(lo_key instanceof IntegerKey))
+				|| (hi_key != null && !(hi_key instanceof IntegerKey)))
+			throw new KeyNotMatchException(null, "block scan needs integer keys");
+
+		BTFileBlockScan scan = new BTFileBlockScan();
+		if (headerPage.get_rootId().pid == INVALID_PAGE) {
+			scan.leafPage = null;
+			return scan;
+		}
+
+		scan.bfile = this;
+		scan.curRid = new RID();
+		if (hi_key != null) {
+			scan.hasEndkey = true;
+			scan.endkey = ((IntegerKey) hi_key).getKey().intValue();
+		}
+
 		scan.leafPage = findRunStart(lo_key, scan.curRid);
+		scan.nextSlot = scan.curRid.slotNo;
 		return scan;
 	}
 
+	/**
+	 * create a scan of [lo_key, hi_key] that can be run in parallel. The
+	 * range is cut into up to parts disjoint sub-ranges at separator keys of
+	 * the upper index levels; see BTRangeSpliterator. Use it with
+	 * StreamSupport.stream(spliterator, true).
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning, null for the smallest.
+	 *            Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning, null for the largest. Input
+	 *            parameter.
+	 * @param parts
+	 *            the number of sub-ranges wanted, usually the number of
+	 *            worker threads. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTRangeSpliterator new_parallel_scan(KeyClass lo_key,
+			KeyClass hi_key, int parts) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		ArrayList<KeyClass> seps = new ArrayList<KeyClass>();
+		for (KeyClass key : separatorKeys(parts - 1)) {
+			if ((lo_key == null || BT.keyCompare(key, lo_key) > 0)
+					&& (hi_key == null || BT.keyCompare(key, hi_key) <= 0))
+				seps.add(key);
+		}
+
+		// pick parts - 1 evenly spaced cuts out of the separators
+		int ncuts = Math.min(Math.max(parts - 1, 0), seps.size());
+		KeyClass[] cuts = new KeyClass[ncuts + 2];
+		cuts[0] = lo_key;
+		for (int i = 1; i <= ncuts; i++)
+			cuts[i] = seps.get((int) ((long) i * seps.size() / (ncuts + 1)));
+		cuts[ncuts + 1] = hi_key;
+
+		return new BTRangeSpliterator(this, cuts);
+	}
+
+	/*
+	 * The separator keys of the highest index level that has at least
+	 * `wanted' of them (or of the lowest index level, if none has), in key
+	 * order.
+	 */
+	private ArrayList<KeyClass> separatorKeys(int wanted) throws IOException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		ArrayList<KeyClass> keys = new ArrayList<KeyClass>();
+		ArrayList<PageId> level = new ArrayList<PageId>();
+		PageId rootId = headerPage.get_rootId();
+		if (rootId.pid != INVALID_PAGE)
+			level.add(rootId);
+
+		while (!level.isEmpty()) {
+			ArrayList<KeyClass> levelKeys = new ArrayList<KeyClass>();
+			ArrayList<PageId> children = new ArrayList<PageId>();
+			RID rid = new RID();
+
+			for (PageId pageno : level) {
+				Page page = pinPage(pageno);
+				BTSortedPage sortPage = new BTSortedPage(page,
+						headerPage.get_keyType());
+				if (sortPage.getType() != NodeType.INDEX) {
+					unpinPage(pageno);
+					return keys; // reached the leaves
+				}
+				BTIndexPage indexPage = new BTIndexPage(page,
+						headerPage.get_keyType());
+				children.add(indexPage.getPrevPage());
+				for (KeyDataEntry entry = indexPage.getFirst(rid); entry != null; entry = indexPage
+						.getNext(rid)) {
+					levelKeys.add(entry.key);
+					children.add(((IndexData) entry.data).getData());
+				}
+				unpinPage(pageno);
+			}
+
+			keys = levelKeys;
+			if (keys.size() >= wanted)
+				break;
+			level = children;
+		}
+		return keys;
+	}
+
 	void trace_children(PageId id) throws IOException, IteratorException,
 			ConstructPageException, PinPageException, UnpinPageException {
 
@@ -0,0 +1,212 @@
+package btree;
+
+import java.lang.management.*;
+import java.util.concurrent.atomic.*;
+
+import javax.management.*;
+
+import global.*;
+
+/**
+ * Per-operation counters of one BTreeFile: how many operations of each kind
+ * ran, how many pages they pinned, how long they took, and how many leaf,
+ * index and root splits the inserts caused. Pages per op that grow while the
+ * workload stays the same point at the shape of the index (height, splits)
+ * rather than at the workload.
+ * <p>
+ * Counters are LongAdders, so recording costs a few uncontended adds. The
+ * pages of an operation are counted by the thread that runs it, so they
+ * are its own also while other threads use the file, like the sub-range
+ * scans of a parallel stream.
+ * For new_scan only the descent to the first leaf is measured; the leaves a
+ * BTFileScan pins while it iterates are not.
+ */
+public class BTreeFileStats implements BTreeFileStatsMBean {
+
+	/**
+	 * Count, pages pinned and latency of one kind of operation.
+	 */
+	public static class Op {
+		private final LongAdder count = new LongAdder();
+		private final LongAdder pages = new LongAdder();
+		/** latency of the operation */
+		public final LatencyHistogram latency = new LatencyHistogram();
+
+		void record(long pinned, long nanos) {
+			count.increment();
+			pages.add(pinned);
+			latency.record(nanos);
+		}
+
+		/** @return the number of operations recorded */
+		public long getCount() {
+			return count.sum();
+		}
+
+		/** @return the pages pinned by all of them */
+		public long getPages() {
+			return pages.sum();
+		}
+
+		/** @return the mean number of pages pinned per operation */
+		public double getPagesPerOp() {
+			long n = count.sum();
+			return n == 0 ? 0 : (double) pages.sum() / n;
+		}
+
+		void reset() {
+			count.reset();
+			pages.reset();
+			latency.reset();
+		}
+
+		public String toString() {
+			return "n=" + getCount() + " pages/op="
+					+ String.format("%.2f", getPagesPerOp()) + " mean="
+					+ latency.getMean() / 1000 + "us p99<="
+					+ latency.getPercentile(99) / 1000 + "us";
+		}
+	}
+
+	/** BTreeFile.insert */
+	public final Op insert = new Op();
+	/** BTreeFile.Delete */
+	public final Op delete = new Op();
+	/** BTreeFile.new_scan, positioning only */
+	public final Op scan = new Op();
+
+	final LongAdder leafSplits = new LongAdder();
+	final LongAdder indexSplits = new LongAdder();
+	final LongAdder rootSplits = new LongAdder();
+	final LongAdder hashHits = new LongAdder();
+	final LongAdder hashMisses = new LongAdder();
+	final LongAdder rangeHits = new LongAdder();
+	final LongAdder rangeMisses = new LongAdder();
+
+	BTreeFileStats() {
+	}
+
+	public long getInserts() {
+		return insert.getCount();
+	}
+
+	public double getInsertPagesPerOp() {
+		return insert.getPagesPerOp();
+	}
+
+	public long getInsertLatencyMeanMicros() {
+		return insert.latency.getMean() / 1000;
+	}
+
+	public long getInsertLatencyP99Micros() {
+		return insert.latency.getPercentile(99) / 1000;
+	}
+
+	public long getDeletes() {
+		return delete.getCount();
+	}
+
+	public double getDeletePagesPerOp() {
+		return delete.getPagesPerOp();
+	}
+
+	public long getDeleteLatencyMeanMicros() {
+		return delete.latency.getMean() / 1000;
+	}
+
+	public long getDeleteLatencyP99Micros() {
+		return delete.latency.getPercentile(99) / 1000;
+	}
+
+	public long getScans() {
+		return scan.getCount();
+	}
+
+	public double getScanPagesPerOp() {
+		return scan.getPagesPerOp();
+	}
+
+	public long getScanLatencyMeanMicros() {
+		return scan.latency.getMean() / 1000;
+	}
+
+	public long getScanLatencyP99Micros() {
+		return scan.latency.getPercentile(99) / 1000;
+	}
+
+	public long getLeafSplits() {
+		return leafSplits.sum();
+	}
+
+	public long getIndexSplits() {
+		return indexSplits.sum();
+	}
+
+	/** @return splits of the root, i.e. how often the tree grew a level */
+	public long getRootSplits() {
+		return rootSplits.sum();
+	}
+
+	/**
+	 * @return searches for the start of a run that went straight to the leaf
+	 *         through the adaptive hash, see BTAdaptiveHash
+	 */
+	public long getAdaptiveHashHits() {
+		return hashHits.sum();
+	}
+
+	/** @return searches for the start of a run that descended from the root */
+	public long getAdaptiveHashMisses() {
+		return hashMisses.sum();
+	}
+
+	/**
+	 * @return scans answered from the range cache, see
+	 *         BTreeFile.setRangeCache()
+	 */
+	public long getRangeCacheHits() {
+		return rangeHits.sum();
+	}
+
+	/** @return scans that read the leaves while the range cache is on */
+	public long getRangeCacheMisses() {
+		return rangeMisses.sum();
+	}
+
+	/** Zero all counters and histograms. */
+	public void reset() {
+		insert.reset();
+		delete.reset();
+		scan.reset();
+		leafSplits.reset();
+		indexSplits.reset();
+		rootSplits.reset();
+		hashHits.reset();
+		hashMisses.reset();
+		rangeHits.reset();
+		rangeMisses.reset();
+	}
+
+	/**
+	 * Publish these statistics on the platform MBean server as
+	 * minibase:type=BTreeFile,name=&lt;name&gt;.
+	 *
+	 * @param name
+	 *            the name part of the object name, e.g. the index file name
+	 * @exception JMException
+	 *                the MBean server refused it
+	 */
+	public void register(String name) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				new ObjectName("minibase:type=BTreeFile,name=" + name));
+	}
+
+	public String toString() {
+		return "insert[" + insert + "] delete[" + delete + "] scan[" + scan
+				+ "] leafSplits=" + getLeafSplits() + " indexSplits="
+				+ getIndexSplits() + " rootSplits=" + getRootSplits()
+				+ " hashHits=" + getAdaptiveHashHits() + " hashMisses="
+				+ getAdaptiveHashMisses() + " rangeHits=" + getRangeCacheHits()
+				+ " rangeMisses=" + getRangeCacheMisses();
+	}
+}
@@ -0,0 +1,47 @@
+package btree;
+
+/**
+ * JMX view of BTreeFileStats. Latencies are in microseconds.
+ */
+public interface BTreeFileStatsMBean {
+
+	long getInserts();
+
+	double getInsertPagesPerOp();
+
+	long getInsertLatencyMeanMicros();
+
+	long getInsertLatencyP99Micros();
+
+	long getDeletes();
+
+	double getDeletePagesPerOp();
+
+	long getDeleteLatencyMeanMicros();
+
+	long getDeleteLatencyP99Micros();
+
+	long getScans();
+
+	double getScanPagesPerOp();
+
+	long getScanLatencyMeanMicros();
+
+	long getScanLatencyP99Micros();
+
+	long getLeafSplits();
+
+	long getIndexSplits();
+
+	long getRootSplits();
+
+	long getAdaptiveHashHits();
+
+	long getAdaptiveHashMisses();
+
+	long getRangeCacheHits();
+
+	long getRangeCacheMisses();
+
+	void reset();
+}
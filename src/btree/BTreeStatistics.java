@@ -0,0 +1,137 @@
+package btree;
+
+/**
+ * The shape of a B+ tree as measured by BTreeAnalyzer: its height, pages and
+ * entries per level, how full the leaves are and how much of the leaf chain
+ * is laid out in page order. Level 0 is the root, level getHeight() - 1 the
+ * leaves.
+ * <p>
+ * Statistics from BTreeAnalyzer.analyze() are exact; those from a sampler
+ * are estimates (see isExact()), good enough to decide whether an index
+ * needs to be rebuilt, or as key counts for selectivity estimates.
+ */
+public class BTreeStatistics {
+
+	/** number of buckets of the leaf fill histogram, 10% each */
+	public final static int FILL_BUCKETS = 10;
+
+	private final int height;
+	private final double[] pages;
+	private final double[] entries;
+	private final double[] fill;
+	private final double meanFill;
+	private final double contiguous;
+	private final double forward;
+	private final boolean exact;
+	private final long probes;
+
+	BTreeStatistics(int height, double[] pages, double[] entries,
+			double[] fill, double meanFill, double contiguous, double forward,
+			boolean exact, long probes) {
+		this.height = height;
+		this.pages = pages;
+		this.entries = entries;
+		this.fill = fill;
+		this.meanFill = meanFill;
+		this.contiguous = contiguous;
+		this.forward = forward;
+		this.exact = exact;
+		this.probes = probes;
+	}
+
+	/** @return the number of levels, 0 for an empty tree */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @param level
+	 *            0 for the root
+	 * @return the number of pages on that level
+	 */
+	public long getPages(int level) {
+		return Math.round(pages[level]);
+	}
+
+	/**
+	 * @param level
+	 *            0 for the root
+	 * @return the number of entries on that level: separator keys on index
+	 *         levels, data entries on the leaf level
+	 */
+	public long getEntries(int level) {
+		return Math.round(entries[level]);
+	}
+
+	/** @return the number of leaf pages */
+	public long getLeafPages() {
+		return height == 0 ? 0 : getPages(height - 1);
+	}
+
+	/** @return the number of data entries in the index */
+	public long getKeys() {
+		return height == 0 ? 0 : getEntries(height - 1);
+	}
+
+	/**
+	 * @return the fraction of leaves in each FILL_BUCKETS bucket of fill
+	 *         factor, [0%, 10%) first
+	 */
+	public double[] getFillHistogram() {
+		return fill.clone();
+	}
+
+	/** @return the mean fill factor of the leaves, between 0 and 1 */
+	public double getMeanLeafFill() {
+		return meanFill;
+	}
+
+	/**
+	 * @return the fraction of leaf chain links that point to the physically
+	 *         next page; a freshly bulk loaded index is close to 1
+	 */
+	public double getLeafContiguity() {
+		return contiguous;
+	}
+
+	/**
+	 * @return the fraction of leaf chain links that point to a higher page
+	 *         number, i.e. that a forward scan follows without seeking back
+	 */
+	public double getForwardLinks() {
+		return forward;
+	}
+
+	/** @return true if every page was visited, false for a sample */
+	public boolean isExact() {
+		return exact;
+	}
+
+	/** @return the number of root-to-leaf probes a sample is based on */
+	public long getProbes() {
+		return probes;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		String nl = System.getProperty("line.separator");
+		sb.append("height ").append(height).append(", ").append(getKeys())
+				.append(" keys in ").append(getLeafPages()).append(" leaves")
+				.append(exact ? "" : " (estimated from " + probes + " probes)")
+				.append(nl);
+		for (int level = 0; level < height; level++)
+			sb.append(String.format("level %d: %d pages, %d entries, %.1f per page",
+					level, getPages(level), getEntries(level),
+					pages[level] == 0 ? 0 : entries[level] / pages[level]))
+					.append(nl);
+		sb.append(String.format("leaf fill: mean %.1f%%,", meanFill * 100));
+		for (int i = 0; i < FILL_BUCKETS; i++)
+			sb.append(String.format(" %d%%:%.1f%%", i * 100 / FILL_BUCKETS,
+					fill[i] * 100));
+		sb.append(nl);
+		sb.append(String.format(
+				"leaf chain: %.1f%% contiguous, %.1f%% forward", contiguous * 100,
+				forward * 100));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,209 @@
+package btree;
+
+import java.io.*;
+
+import global.*;
+
+/**
+ * CompositeKey is a key over several attributes, encoded so that comparing
+ * two encodings compares the keys attribute by attribute. Integers are
+ * written big endian with the sign bit flipped, reals likewise after the
+ * bits of negative numbers are inverted, and strings as UTF-8 with every 0
+ * byte escaped as 0 0xff and a 0 1 terminator, so a string sorts before
+ * every longer string it is a prefix of, whatever follows it.
+ * <p>
+ * The encoding is kept in a StringKey, one char per byte, so a composite
+ * index is an ordinary index of key type AttrType.attrString (see
+ * maxKeySize()) and BT.keyCompare() compares two keys with one
+ * String.compareTo(), which is an unsigned compare of byte strings. Keys
+ * read back from the index are plain StringKeys; decode() gives back the
+ * values. Strings are in code point order, which differs from the order of
+ * StringKey only for characters above U+FFFF.
+ * <p>
+ * A scan from lowerBound() to upperBound() of the same leading values
+ * returns every key that starts with them, so one index serves predicates
+ * on any prefix of its attributes.
+ */
+public class CompositeKey extends StringKey {
+
+	/* a char above every byte, to end an upper bound */
+	private final static char PAST_PREFIX = (char) 0x100;
+
+	private final AttrType[] types;
+	private final Object[] values;
+
+	/**
+	 * @param types
+	 *            type of every attribute: attrInteger, attrReal or
+	 *            attrString
+	 * @param values
+	 *            an Integer, Float or String for every attribute
+	 * @exception IllegalArgumentException
+	 *                a value is missing or does not match its type
+	 */
+	public CompositeKey(AttrType[] types, Object[] values) {
+		super(encode(types, values));
+		if (values.length != types.length)
+			throw new IllegalArgumentException(types.length
+					+ " values expected, got " + values.length);
+		this.types = types.clone();
+		this.values = values.clone();
+	}
+
+	/** @return the types of the attributes */
+	public AttrType[] getTypes() {
+		return types.clone();
+	}
+
+	/** @return the values of the attributes */
+	public Object[] getValues() {
+		return values.clone();
+	}
+
+	/**
+	 * @return the smallest key whose leading attributes are `prefix'
+	 * @exception IllegalArgumentException
+	 *                a value does not match its type
+	 */
+	public static StringKey lowerBound(AttrType[] types, Object[] prefix) {
+		return new StringKey(encode(types, prefix));
+	}
+
+	/**
+	 * @return a key greater than every key whose leading attributes are
+	 *         `prefix' and smaller than every other greater key; it is never
+	 *         stored, so an inclusive scan up to it stops just past them
+	 * @exception IllegalArgumentException
+	 *                a value does not match its type
+	 */
+	public static StringKey upperBound(AttrType[] types, Object[] prefix) {
+		return new StringKey(encode(types, prefix) + PAST_PREFIX);
+	}
+
+	/**
+	 * @param types
+	 *            the types the key was made with
+	 * @param key
+	 *            a key of a composite index
+	 * @return the values of its attributes
+	 * @exception IllegalArgumentException
+	 *                the key is no encoding of `types'
+	 */
+	public static Object[] decode(AttrType[] types, KeyClass key) {
+		if (!(key instanceof StringKey))
+			throw new IllegalArgumentException("not a composite key: " + key);
+		String bytes = ((StringKey) key).getKey();
+		Object[] values = new Object[types.length];
+		int pos = 0;
+		try {
+			for (int i = 0; i < types.length; i++) {
+				switch (types[i].attrType) {
+				case AttrType.attrInteger:
+					values[i] = getInt(bytes, pos) ^ Integer.MIN_VALUE;
+					pos += 4;
+					break;
+				case AttrType.attrReal:
+					int bits = getInt(bytes, pos);
+					values[i] = Float.intBitsToFloat(bits < 0 ? bits
+							^ Integer.MIN_VALUE : ~bits);
+					pos += 4;
+					break;
+				case AttrType.attrString:
+					ByteArrayOutputStream utf = new ByteArrayOutputStream();
+					for (;; pos++) {
+						int b = bytes.charAt(pos);
+						if (b == 0 && bytes.charAt(++pos) == 1)
+							break;
+						utf.write(b);
+					}
+					pos++;
+					values[i] = new String(utf.toByteArray(), "UTF-8");
+					break;
+				default:
+					throw new IllegalArgumentException("unsupported type "
+							+ types[i]);
+				}
+			}
+		} catch (StringIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("truncated composite key");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		if (pos != bytes.length())
+			throw new IllegalArgumentException("composite key too long");
+		return values;
+	}
+
+	/**
+	 * @param types
+	 *            type of every attribute
+	 * @param strSizes
+	 *            maximum length of every string attribute, in order, as for
+	 *            Tuple.setHdr()
+	 * @return the key size to create a composite index with, for
+	 *         BTreeFile(String, int, int, int)
+	 */
+	public static int maxKeySize(AttrType[] types, short[] strSizes) {
+		int size = 2; // the length that precedes a stored StringKey
+		int strings = 0;
+		for (AttrType type : types) {
+			if (type.attrType == AttrType.attrString)
+				// up to 3 bytes of UTF-8 a char, 2 bytes a stored byte
+				size += 6 * strSizes[strings++] + 3;
+			else
+				size += 8;
+		}
+		return size;
+	}
+
+	private static String encode(AttrType[] types, Object[] values) {
+		if (values.length > types.length)
+			throw new IllegalArgumentException(types.length
+					+ " values at most, got " + values.length);
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			Object value = values[i];
+			switch (types[i].attrType) {
+			case AttrType.attrInteger:
+				if (!(value instanceof Integer))
+					break;
+				putInt(out, (Integer) value ^ Integer.MIN_VALUE);
+				continue;
+			case AttrType.attrReal:
+				if (!(value instanceof Float))
+					break;
+				int bits = Float.floatToIntBits((Float) value);
+				putInt(out, bits < 0 ? ~bits : bits ^ Integer.MIN_VALUE);
+				continue;
+			case AttrType.attrString:
+				if (!(value instanceof String))
+					break;
+				try {
+					for (byte b : ((String) value).getBytes("UTF-8")) {
+						out.append((char) (b & 0xff));
+						if (b == 0)
+							out.append((char) 0xff);
+					}
+				} catch (UnsupportedEncodingException e) {
+					throw new IllegalStateException(e);
+				}
+				out.append((char) 0).append((char) 1);
+				continue;
+			}
+			throw new IllegalArgumentException("attribute " + (i + 1) + ": "
+					+ value + " is no " + types[i]);
+		}
+		return out.toString();
+	}
+
+	private static void putInt(StringBuilder out, int value) {
+		out.append((char) (value >>> 24)).append((char) (value >>> 16 & 0xff))
+				.append((char) (value >>> 8 & 0xff))
+				.append((char) (value & 0xff));
+	}
+
+	private static int getInt(String bytes, int pos) {
+		return bytes.charAt(pos) << 24 | bytes.charAt(pos + 1) << 16
+				| bytes.charAt(pos + 2) << 8 | bytes.charAt(pos + 3);
+	}
+}
@@ -0,0 +1,632 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * HashFile is a disk based linear hash index, for equality lookups that do
+ * not need the order of a B+ tree. Every bucket is a chain of HFPages, a
+ * primary page and overflow pages, holding (key, rid) records. A key is
+ * hashed to the bucket h mod 2^level, or h mod 2^(level + 1) if that bucket
+ * has already been split in this round. Whenever the records fill more than
+ * MAX_LOAD of the bucket pages, the next bucket in turn is split, so the
+ * file grows one bucket at a time and overflow chains stay short.
+ * <p>
+ * The page numbers of the buckets are kept in a chain of directory pages
+ * and in memory while the index is open, and the header page stays pinned
+ * like that of a BTreeFile, so a lookup costs one page access unless its
+ * bucket has overflowed. Overflow pages emptied by Delete() are given back;
+ * buckets are never merged.
+ * <p>
+ * new_scan() returns the record ids of one key; there are no range scans.
+ */
+public class HashFile extends IndexFile implements GlobalConst {
+
+	private final static int MAGIC = 0x4c484153;
+	/* page type of bucket pages */
+	final static short BUCKET = 14;
+
+	/* header page layout */
+	private final static int MAGIC_POS = 0;
+	private final static int KEY_TYPE = 4;
+	private final static int MAX_KEY_SIZE = 8;
+	private final static int LEVEL = 12;
+	private final static int NEXT_SPLIT = 16;
+	private final static int ENTRIES = 20;
+	private final static int USED = 24; // two ints
+	private final static int DIRECTORY = 32;
+
+	/* directory page layout: next directory page, then page numbers */
+	private final static int DIR_NEXT = 0;
+	private final static int DIR_FIRST = 4;
+	private final static int PER_DIRECTORY = (MINIBASE_PAGESIZE - DIR_FIRST) / 4;
+
+	/* space for records and slots on a bucket page */
+	private final static int BUCKET_SPACE = MAX_SPACE - HFPage.DPFIXED;
+	/* a bucket is split when the records fill this much of the buckets */
+	private final static double MAX_LOAD = 0.5;
+	/* record id after the key in a record */
+	private final static int RID_SIZE = 8;
+
+	private final String dbname;
+	private PageId headerPageId;
+	private Page headerPage; // pinned while open, null once closed
+	private int keyType;
+	private int maxKeySize;
+
+	private int level;
+	private int nextSplit; // next bucket to split
+	private int entries;
+	private long used; // bytes of records and slots
+	private int[] buckets = new int[16]; // primary page of every bucket
+	private final ArrayList<PageId> directory = new ArrayList<PageId>();
+
+	/**
+	 * Open an existing hash index.
+	 *
+	 * @param filename
+	 *            the name of the index
+	 * @exception GetFileEntryException
+	 *                there is no such file
+	 * @exception PinPageException
+	 *                failed when pin a page
+	 * @exception ConstructPageException
+	 *                the file is not a hash index
+	 * @exception UnpinPageException
+	 *                failed when unpin a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public HashFile(String filename) throws GetFileEntryException,
+			PinPageException, ConstructPageException, UnpinPageException,
+			IOException {
+		dbname = filename;
+		headerPageId = get_file_entry(filename);
+		if (headerPageId == null)
+			throw new GetFileEntryException(null, "no index " + filename);
+		open();
+	}
+
+	/**
+	 * If the hash index exists, open it; else create it.
+	 *
+	 * @param filename
+	 *            the name of the index
+	 * @param keytype
+	 *            AttrType.attrInteger or AttrType.attrString
+	 * @param keysize
+	 *            the maximum size of a key
+	 * @exception GetFileEntryException
+	 *                can not get the file from DB
+	 * @exception AddFileEntryException
+	 *                can not add the file to DB
+	 * @exception PinPageException
+	 *                failed when pin a page
+	 * @exception UnpinPageException
+	 *                failed when unpin a page
+	 * @exception ConstructPageException
+	 *                a new page could not be allocated, or the file is not a
+	 *                hash index of that key type
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public HashFile(String filename, int keytype, int keysize)
+			throws GetFileEntryException, AddFileEntryException,
+			PinPageException, UnpinPageException, ConstructPageException,
+			IOException {
+		dbname = filename;
+		headerPageId = get_file_entry(filename);
+		if (headerPageId != null) {
+			open();
+			if (keyType != keytype) {
+				unpinPage(headerPageId, false);
+				headerPage = null;
+				throw new ConstructPageException(null, dbname
+						+ " has another key type");
+			}
+			return;
+		}
+		if (keysize + RID_SIZE + HFPage.SIZE_OF_SLOT > BUCKET_SPACE)
+			throw new IllegalArgumentException("key size " + keysize
+					+ " does not fit on a page");
+
+		headerPage = new Page();
+		headerPageId = newPage(headerPage);
+		keyType = keytype;
+		maxKeySize = keysize;
+		Convert.setIntValue(MAGIC, MAGIC_POS, headerPage.getpage());
+		Convert.setIntValue(keyType, KEY_TYPE, headerPage.getpage());
+		Convert.setIntValue(maxKeySize, MAX_KEY_SIZE, headerPage.getpage());
+		Convert.setIntValue(INVALID_PAGE, DIRECTORY, headerPage.getpage());
+		addBucket(0, newBucket());
+		writeHeader();
+		add_file_entry(filename, headerPageId);
+	}
+
+	/**
+	 * Close the hash index. Unpin the header page.
+	 *
+	 * @exception UnpinPageException
+	 *                error from the lower layer
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void close() throws UnpinPageException, IOException {
+		if (headerPage != null) {
+			unpinPage(headerPageId, true);
+			headerPage = null;
+		}
+	}
+
+	/**
+	 * Destroy the whole hash index.
+	 *
+	 * @exception PinPageException
+	 *                failed when pin a page
+	 * @exception UnpinPageException
+	 *                failed when unpin a page
+	 * @exception FreePageException
+	 *                failed when free a page
+	 * @exception DeleteFileEntryException
+	 *                failed when delete the file from DB
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void destroyFile() throws PinPageException, UnpinPageException,
+			FreePageException, DeleteFileEntryException, IOException {
+		if (headerPage == null)
+			return;
+		for (int i = 0; i < bucketCount(); i++) {
+			PageId pageno = new PageId(buckets[i]);
+			while (pageno.pid != INVALID_PAGE) {
+				PageId next = new HFPage(pinPage(pageno)).getNextPage();
+				unpinPage(pageno, false);
+				freePage(pageno);
+				pageno = next;
+			}
+		}
+		for (PageId pageno : directory)
+			freePage(pageno);
+		unpinPage(headerPageId, false);
+		freePage(headerPageId);
+		delete_file_entry(dbname);
+		headerPage = null;
+	}
+
+	/**
+	 * insert record with the given key and rid
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not of the key type of the index
+	 * @exception PinPageException
+	 *                failed when pin a page
+	 * @exception UnpinPageException
+	 *                failed when unpin a page
+	 * @exception ConstructPageException
+	 *                a new page could not be allocated
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void insert(KeyClass key, RID rid) throws KeyTooLongException,
+			KeyNotMatchException, PinPageException, UnpinPageException,
+			ConstructPageException, IOException {
+		byte[] record = record(key, rid);
+		if (record.length - RID_SIZE > maxKeySize)
+			throw new KeyTooLongException(null, "");
+
+		add(bucket(hash(record, 0, record.length - RID_SIZE)), record);
+		entries++;
+		used += record.length + HFPage.SIZE_OF_SLOT;
+		if (used > MAX_LOAD * BUCKET_SPACE * bucketCount())
+			split();
+		writeHeader();
+	}
+
+	/**
+	 * delete the record with the given key and rid
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @return true if the record was found and deleted
+	 * @exception KeyNotMatchException
+	 *                key is not of the key type of the index
+	 * @exception PinPageException
+	 *                failed when pin a page
+	 * @exception UnpinPageException
+	 *                failed when unpin a page
+	 * @exception FreePageException
+	 *                failed when free an empty overflow page
+	 * @exception DeleteRecException
+	 *                the record could not be deleted from its page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public boolean Delete(KeyClass key, RID rid) throws KeyNotMatchException,
+			PinPageException, UnpinPageException, FreePageException,
+			DeleteRecException, IOException {
+		byte[] record = record(key, rid);
+		PageId prev = null;
+		PageId pageno = new PageId(buckets[bucket(hash(record, 0,
+				record.length - RID_SIZE))]);
+		while (pageno.pid != INVALID_PAGE) {
+			HFPage page = new HFPage(pinPage(pageno));
+			PageId next = page.getNextPage();
+			RID found = null;
+			for (RID cur = page.firstRecord(); cur != null && found == null; cur = page
+					.nextRecord(cur))
+				if (matches(page, cur, record, record.length))
+					found = cur;
+			if (found == null) {
+				unpinPage(pageno, false);
+				prev = pageno;
+				pageno = next;
+				continue;
+			}
+
+			try {
+				page.deleteRecord(found);
+			} catch (InvalidSlotNumberException e) {
+				unpinPage(pageno, false);
+				throw new DeleteRecException(e, "delete record failed");
+			}
+			boolean empty = prev != null && page.empty();
+			unpinPage(pageno, true);
+			if (empty)
+				unlink(prev, pageno, next);
+			entries--;
+			used -= record.length + HFPage.SIZE_OF_SLOT;
+			writeHeader();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * create a scan of the records with the given key. The records are
+	 * read when the scan is created, so it holds no page pinned.
+	 *
+	 * @param key
+	 *            the key to look up
+	 * @return the scan
+	 * @exception KeyNotMatchException
+	 *                key is not of the key type of the index
+	 * @exception PinPageException
+	 *                failed when pin a page
+	 * @exception UnpinPageException
+	 *                failed when unpin a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public HashFileScan new_scan(KeyClass key) throws KeyNotMatchException,
+			PinPageException, UnpinPageException, IOException {
+		byte[] record = record(key, new RID(new PageId(INVALID_PAGE), 0));
+		int keyLength = record.length - RID_SIZE;
+		ArrayList<RID> rids = new ArrayList<RID>();
+		PageId pageno = new PageId(buckets[bucket(hash(record, 0, keyLength))]);
+		while (pageno.pid != INVALID_PAGE) {
+			HFPage page = new HFPage(pinPage(pageno));
+			byte[] data = page.getHFpageArray();
+			for (RID cur = page.firstRecord(); cur != null; cur = page
+					.nextRecord(cur)) {
+				if (!matches(page, cur, record, keyLength))
+					continue;
+				int offset = page.getSlotOffset(cur.slotNo) + keyLength;
+				rids.add(new RID(new PageId(Convert.getIntValue(offset, data)),
+						Convert.getIntValue(offset + 4, data)));
+			}
+			PageId next = page.getNextPage();
+			unpinPage(pageno, false);
+			pageno = next;
+		}
+		return new HashFileScan(this, key, rids, maxKeySize);
+	}
+
+	/** @return the number of records in the index */
+	public int getEntryCount() {
+		return entries;
+	}
+
+	/** @return the number of buckets */
+	public int getBucketCount() {
+		return bucketCount();
+	}
+
+	/* split bucket `nextSplit' in two and advance the split pointer */
+	private void split() throws PinPageException, UnpinPageException,
+			ConstructPageException, IOException {
+		int old = nextSplit;
+		int added = bucketCount();
+		addBucket(added, newBucket());
+		if (++nextSplit == 1 << level) {
+			level++;
+			nextSplit = 0;
+		}
+
+		// move the records that hash to the new bucket
+		ArrayList<byte[]> moved = new ArrayList<byte[]>();
+		PageId pageno = new PageId(buckets[old]);
+		while (pageno.pid != INVALID_PAGE) {
+			HFPage page = new HFPage(pinPage(pageno));
+			byte[] data = page.getHFpageArray();
+			ArrayList<RID> leaving = new ArrayList<RID>();
+			for (RID cur = page.firstRecord(); cur != null; cur = page
+					.nextRecord(cur)) {
+				int offset = page.getSlotOffset(cur.slotNo);
+				int length = page.getSlotLength(cur.slotNo);
+				if (bucket(hash(data, offset, length - RID_SIZE)) == added) {
+					moved.add(Arrays.copyOfRange(data, offset, offset + length));
+					leaving.add(cur);
+				}
+			}
+			// from the last slot down, so no slot moves before it is deleted
+			for (int i = leaving.size() - 1; i >= 0; i--) {
+				try {
+					page.deleteRecord(leaving.get(i));
+				} catch (InvalidSlotNumberException e) {
+					unpinPage(pageno, true);
+					throw new IOException("bucket page " + pageno.pid
+							+ " is corrupt");
+				}
+			}
+			PageId next = page.getNextPage();
+			unpinPage(pageno, !leaving.isEmpty());
+			pageno = next;
+		}
+		// overflow pages of the old bucket left empty stay in its chain,
+		// for the records inserted into it later
+		for (byte[] record : moved)
+			add(added, record);
+	}
+
+	/* put `record' in the first page of `bucket' with room for it */
+	private void add(int bucket, byte[] record) throws PinPageException,
+			UnpinPageException, ConstructPageException, IOException {
+		PageId pageno = new PageId(buckets[bucket]);
+		while (true) {
+			HFPage page = new HFPage(pinPage(pageno));
+			if (page.insertRecord(record) != null) {
+				unpinPage(pageno, true);
+				return;
+			}
+			PageId next = page.getNextPage();
+			if (next.pid == INVALID_PAGE) {
+				next = newBucket();
+				page.setNextPage(next);
+				unpinPage(pageno, true);
+			} else {
+				unpinPage(pageno, false);
+			}
+			pageno = next;
+		}
+	}
+
+	/* take the empty overflow page `pageno' out of its chain and free it */
+	private void unlink(PageId prev, PageId pageno, PageId next)
+			throws PinPageException, UnpinPageException, FreePageException,
+			IOException {
+		HFPage page = new HFPage(pinPage(prev));
+		page.setNextPage(next);
+		unpinPage(prev, true);
+		freePage(pageno);
+	}
+
+	/* does the record in `slot' start with the first `length' bytes of `record' */
+	private static boolean matches(HFPage page, RID slot, byte[] record,
+			int length) throws IOException {
+		if (page.getSlotLength(slot.slotNo) != record.length)
+			return false;
+		byte[] data = page.getHFpageArray();
+		int offset = page.getSlotOffset(slot.slotNo);
+		for (int i = 0; i < length; i++)
+			if (data[offset + i] != record[i])
+				return false;
+		return true;
+	}
+
+	/* a record: the key as it is stored in a B+ tree, then the rid */
+	private byte[] record(KeyClass key, RID rid) throws KeyNotMatchException,
+			IOException {
+		if (keyType == AttrType.attrInteger ? !(key instanceof IntegerKey)
+				: !(key instanceof StringKey))
+			throw new KeyNotMatchException(null, "key types do not match");
+		int keyLength = BT.getKeyLength(key);
+		byte[] record = new byte[keyLength + RID_SIZE];
+		if (key instanceof IntegerKey)
+			Convert.setIntValue(((IntegerKey) key).getKey(), 0, record);
+		else
+			Convert.setStrValue(((StringKey) key).getKey(), 0, record);
+		Convert.setIntValue(rid.pageNo.pid, keyLength, record);
+		Convert.setIntValue(rid.slotNo, keyLength + 4, record);
+		return record;
+	}
+
+	/* FNV-1a, then the finalizer of MurmurHash3 to spread the low bits */
+	private static int hash(byte[] data, int offset, int length) {
+		int h = 0x811c9dc5;
+		for (int i = offset; i < offset + length; i++)
+			h = (h ^ (data[i] & 0xff)) * 0x01000193;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private int bucket(int hash) {
+		int bucket = hash & ((1 << level) - 1);
+		if (bucket < nextSplit)
+			bucket = hash & ((1 << (level + 1)) - 1);
+		return bucket;
+	}
+
+	private int bucketCount() {
+		return (1 << level) + nextSplit;
+	}
+
+	/* a new, empty bucket page, unpinned */
+	private PageId newBucket() throws ConstructPageException,
+			UnpinPageException, IOException {
+		Page page = new Page();
+		PageId pageno = newPage(page);
+		HFPage bucket = new HFPage();
+		bucket.init(pageno, page);
+		bucket.setType(BUCKET);
+		unpinPage(pageno, true);
+		return pageno;
+	}
+
+	/* record the primary page of bucket `index' in the directory */
+	private void addBucket(int index, PageId pageno) throws PinPageException,
+			UnpinPageException, ConstructPageException, IOException {
+		if (index == buckets.length)
+			buckets = Arrays.copyOf(buckets, 2 * index);
+		buckets[index] = pageno.pid;
+
+		int dir = index / PER_DIRECTORY;
+		if (dir == directory.size()) {
+			Page page = new Page();
+			PageId dirId = newPage(page);
+			Convert.setIntValue(INVALID_PAGE, DIR_NEXT, page.getpage());
+			unpinPage(dirId, true);
+			if (dir == 0) {
+				Convert.setIntValue(dirId.pid, DIRECTORY, headerPage.getpage());
+			} else {
+				PageId last = directory.get(dir - 1);
+				Convert.setIntValue(dirId.pid, DIR_NEXT, pinPage(last)
+						.getpage());
+				unpinPage(last, true);
+			}
+			directory.add(dirId);
+		}
+		PageId dirId = directory.get(dir);
+		Convert.setIntValue(pageno.pid, DIR_FIRST + 4
+				* (index % PER_DIRECTORY), pinPage(dirId).getpage());
+		unpinPage(dirId, true);
+	}
+
+	/* pin the header page and read it and the directory */
+	private void open() throws PinPageException, UnpinPageException,
+			ConstructPageException, IOException {
+		headerPage = pinPage(headerPageId);
+		byte[] data = headerPage.getpage();
+		if (Convert.getIntValue(MAGIC_POS, data) != MAGIC) {
+			unpinPage(headerPageId, false);
+			headerPage = null;
+			throw new ConstructPageException(null, dbname
+					+ " is not a hash index");
+		}
+		keyType = Convert.getIntValue(KEY_TYPE, data);
+		maxKeySize = Convert.getIntValue(MAX_KEY_SIZE, data);
+		level = Convert.getIntValue(LEVEL, data);
+		nextSplit = Convert.getIntValue(NEXT_SPLIT, data);
+		entries = Convert.getIntValue(ENTRIES, data);
+		used = (long) Convert.getIntValue(USED, data) << 32
+				| Convert.getIntValue(USED + 4, data) & 0xffffffffL;
+
+		int count = bucketCount();
+		buckets = new int[Math.max(16, Integer.highestOneBit(count) * 2)];
+		PageId dirId = new PageId(Convert.getIntValue(DIRECTORY, data));
+		while (dirId.pid != INVALID_PAGE) {
+			directory.add(dirId);
+			byte[] dir = pinPage(dirId).getpage();
+			int first = (directory.size() - 1) * PER_DIRECTORY;
+			for (int i = first; i < count && i < first + PER_DIRECTORY; i++)
+				buckets[i] = Convert.getIntValue(DIR_FIRST + 4 * (i - first),
+						dir);
+			PageId next = new PageId(Convert.getIntValue(DIR_NEXT, dir));
+			unpinPage(dirId, false);
+			dirId = next;
+		}
+	}
+
+	/*
+	 * store the counters in the header page and mark its frame dirty, so
+	 * that they are written with the next flush even while it is pinned
+	 */
+	private void writeHeader() throws PinPageException, UnpinPageException,
+			IOException {
+		byte[] data = headerPage.getpage();
+		Convert.setIntValue(level, LEVEL, data);
+		Convert.setIntValue(nextSplit, NEXT_SPLIT, data);
+		Convert.setIntValue(entries, ENTRIES, data);
+		Convert.setIntValue((int) (used >>> 32), USED, data);
+		Convert.setIntValue((int) used, USED + 4, data);
+		pinPage(headerPageId);
+		unpinPage(headerPageId, true);
+	}
+
+	private PageId get_file_entry(String filename)
+			throws GetFileEntryException {
+		try {
+			return SystemDefs.JavabaseDB.get_file_entry(filename);
+		} catch (Exception e) {
+			throw new GetFileEntryException(e, "");
+		}
+	}
+
+	private void add_file_entry(String filename, PageId pageno)
+			throws AddFileEntryException {
+		try {
+			SystemDefs.JavabaseDB.add_file_entry(filename, pageno);
+		} catch (Exception e) {
+			throw new AddFileEntryException(e, "");
+		}
+	}
+
+	private void delete_file_entry(String filename)
+			throws DeleteFileEntryException {
+		try {
+			SystemDefs.JavabaseDB.delete_file_entry(filename);
+		} catch (Exception e) {
+			throw new DeleteFileEntryException(e, "");
+		}
+	}
+
+	private Page pinPage(PageId pageno) throws PinPageException {
+		try {
+			Page page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+			return page;
+		} catch (Exception e) {
+			throw new PinPageException(e, "");
+		}
+	}
+
+	private void unpinPage(PageId pageno, boolean dirty)
+			throws UnpinPageException {
+		try {
+			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+		} catch (Exception e) {
+			throw new UnpinPageException(e, "");
+		}
+	}
+
+	private PageId newPage(Page page) throws ConstructPageException {
+		try {
+			return SystemDefs.JavabaseBM.newPage(page, 1);
+		} catch (Exception e) {
+			throw new ConstructPageException(e, "new page failed");
+		}
+	}
+
+	private void freePage(PageId pageno) throws FreePageException {
+		try {
+			SystemDefs.JavabaseBM.freePage(pageno);
+		} catch (Exception e) {
+			throw new FreePageException(e, "");
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package btree;
+
+import java.util.*;
+
+import global.*;
+
+/**
+ * HashFileScan returns the records of one key of a HashFile, see
+ * HashFile.new_scan(). The record ids are read when the scan is created,
+ * so the scan holds no page pinned and need not be destroyed.
+ */
+public class HashFileScan extends IndexFileScan {
+
+	private final HashFile file;
+	private final KeyClass key;
+	private final List<RID> rids;
+	private final int keysize;
+	private int next;
+	private RID current; // returned last and not deleted yet
+
+	HashFileScan(HashFile file, KeyClass key, List<RID> rids, int keysize) {
+		this.file = file;
+		this.key = key;
+		this.rids = rids;
+		this.keysize = keysize;
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return the next entry, null if there are no more
+	 */
+	public KeyDataEntry get_next() {
+		if (next == rids.size()) {
+			current = null;
+			return null;
+		}
+		current = rids.get(next++);
+		return new KeyDataEntry(key, current);
+	}
+
+	/**
+	 * Delete the entry get_next() returned last from the index.
+	 *
+	 * @exception ScanDeleteException
+	 *                there is no such entry, or the delete failed
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (current == null)
+			throw new ScanDeleteException(null, "no current entry");
+		try {
+			file.Delete(key, current);
+		} catch (Exception e) {
+			throw new ScanDeleteException(e, "delete current failed");
+		}
+		current = null;
+	}
+
+	/** @return the maximum key size of the index */
+	public int keysize() {
+		return keysize;
+	}
+}
@@ -0,0 +1,233 @@
+package bufmgr;
+
+import java.lang.management.*;
+import java.util.concurrent.atomic.*;
+
+import javax.management.*;
+
+import global.*;
+
+/**
+ * Counters and latency histograms of the buffer manager and the disk below
+ * it, kept up to date by InstrumentedBufMgr and diskmgr.InstrumentedDB.
+ * Read them through snapshot(), or over JMX after register().
+ */
+public class BufMgrStats implements BufMgrStatsMBean {
+
+	private final String replacer;
+	private final int numBuffers;
+
+	final AtomicLong pins = new AtomicLong();
+	final AtomicLong hits = new AtomicLong();
+	final AtomicLong misses = new AtomicLong();
+	final AtomicLong newPages = new AtomicLong();
+	final AtomicLong freedPages = new AtomicLong();
+	final AtomicLong evictions = new AtomicLong();
+	final AtomicLong dirtyWriteBacks = new AtomicLong();
+	final AtomicLong flushWrites = new AtomicLong();
+
+	private final AtomicLong diskReads = new AtomicLong();
+	private final AtomicLong diskWrites = new AtomicLong();
+	private final AtomicLong diskAllocations = new AtomicLong();
+
+	/** latency of diskmgr.DB.read_page */
+	public final LatencyHistogram readLatency = new LatencyHistogram();
+	/** latency of diskmgr.DB.write_page */
+	public final LatencyHistogram writeLatency = new LatencyHistogram();
+
+	BufMgrStats(String replacer, int numBuffers) {
+		this.replacer = replacer;
+		this.numBuffers = numBuffers;
+	}
+
+	/**
+	 * Count a page read from disk.
+	 *
+	 * @param nanos
+	 *            how long it took
+	 */
+	public void diskRead(long nanos) {
+		diskReads.incrementAndGet();
+		readLatency.record(nanos);
+	}
+
+	/**
+	 * Count a page written to disk.
+	 *
+	 * @param nanos
+	 *            how long it took
+	 */
+	public void diskWrite(long nanos) {
+		diskWrites.incrementAndGet();
+		writeLatency.record(nanos);
+	}
+
+	/** Count a run of pages allocated on disk. */
+	public void diskAllocation() {
+		diskAllocations.incrementAndGet();
+	}
+
+	public String getReplacer() {
+		return replacer;
+	}
+
+	public int getNumBuffers() {
+		return numBuffers;
+	}
+
+	public long getPins() {
+		return pins.get();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public double getHitRatio() {
+		long h = hits.get();
+		long lookups = h + misses.get();
+		return lookups == 0 ? 1.0 : (double) h / lookups;
+	}
+
+	public long getNewPages() {
+		return newPages.get();
+	}
+
+	public long getFreedPages() {
+		return freedPages.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getDirtyWriteBacks() {
+		return dirtyWriteBacks.get();
+	}
+
+	public long getFlushWrites() {
+		return flushWrites.get();
+	}
+
+	public long getDiskReads() {
+		return diskReads.get();
+	}
+
+	public long getDiskWrites() {
+		return diskWrites.get();
+	}
+
+	public long getDiskAllocations() {
+		return diskAllocations.get();
+	}
+
+	public long getReadLatencyMeanMicros() {
+		return readLatency.getMean() / 1000;
+	}
+
+	public long getReadLatencyP99Micros() {
+		return readLatency.getPercentile(99) / 1000;
+	}
+
+	public long getWriteLatencyMeanMicros() {
+		return writeLatency.getMean() / 1000;
+	}
+
+	public long getWriteLatencyP99Micros() {
+		return writeLatency.getPercentile(99) / 1000;
+	}
+
+	/** Zero all counters and histograms. */
+	public void reset() {
+		pins.set(0);
+		hits.set(0);
+		misses.set(0);
+		newPages.set(0);
+		freedPages.set(0);
+		evictions.set(0);
+		dirtyWriteBacks.set(0);
+		flushWrites.set(0);
+		diskReads.set(0);
+		diskWrites.set(0);
+		diskAllocations.set(0);
+		readLatency.reset();
+		writeLatency.reset();
+	}
+
+	/**
+	 * @return a consistent-enough copy of the counters, for logging or for
+	 *         diffing two points in time
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Publish these statistics on the platform MBean server as
+	 * minibase:type=BufMgr,name=&lt;name&gt;.
+	 *
+	 * @param name
+	 *            the name part of the object name
+	 * @exception JMException
+	 *                the MBean server refused it
+	 */
+	public void register(String name) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				new ObjectName("minibase:type=BufMgr,name=" + name));
+	}
+
+	/**
+	 * Point-in-time copy of BufMgrStats.
+	 */
+	public static class Snapshot {
+		public final long pins;
+		public final long hits;
+		public final long misses;
+		public final long newPages;
+		public final long freedPages;
+		public final long evictions;
+		public final long dirtyWriteBacks;
+		public final long flushWrites;
+		public final long diskReads;
+		public final long diskWrites;
+		public final long diskAllocations;
+		public final long readLatencyMean;
+		public final long readLatencyP99;
+		public final long writeLatencyMean;
+		public final long writeLatencyP99;
+
+		Snapshot(BufMgrStats s) {
+			pins = s.getPins();
+			hits = s.getHits();
+			misses = s.getMisses();
+			newPages = s.getNewPages();
+			freedPages = s.getFreedPages();
+			evictions = s.getEvictions();
+			dirtyWriteBacks = s.getDirtyWriteBacks();
+			flushWrites = s.getFlushWrites();
+			diskReads = s.getDiskReads();
+			diskWrites = s.getDiskWrites();
+			diskAllocations = s.getDiskAllocations();
+			readLatencyMean = s.readLatency.getMean();
+			readLatencyP99 = s.readLatency.getPercentile(99);
+			writeLatencyMean = s.writeLatency.getMean();
+			writeLatencyP99 = s.writeLatency.getPercentile(99);
+		}
+
+		public String toString() {
+			return "pins=" + pins + " hits=" + hits + " misses=" + misses
+					+ " evictions=" + evictions + " dirtyWriteBacks="
+					+ dirtyWriteBacks + " flushWrites=" + flushWrites
+					+ " newPages=" + newPages + " freedPages=" + freedPages
+					+ " diskReads=" + diskReads + " diskWrites=" + diskWrites
+					+ " diskAllocations=" + diskAllocations + " readMean="
+					+ readLatencyMean / 1000 + "us readP99<=" + readLatencyP99
+					/ 1000 + "us writeMean=" + writeLatencyMean / 1000
+					+ "us writeP99<=" + writeLatencyP99 / 1000 + "us";
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package bufmgr;
+
+/**
+ * JMX view of BufMgrStats. Latencies are in microseconds.
+ */
+public interface BufMgrStatsMBean {
+
+	String getReplacer();
+
+	int getNumBuffers();
+
+	long getPins();
+
+	long getHits();
+
+	long getMisses();
+
+	double getHitRatio();
+
+	long getNewPages();
+
+	long getFreedPages();
+
+	long getEvictions();
+
+	long getDirtyWriteBacks();
+
+	long getFlushWrites();
+
+	long getDiskReads();
+
+	long getDiskWrites();
+
+	long getDiskAllocations();
+
+	long getReadLatencyMeanMicros();
+
+	long getReadLatencyP99Micros();
+
+	long getWriteLatencyMeanMicros();
+
+	long getWriteLatencyP99Micros();
+
+	void reset();
+}
@@ -0,0 +1,155 @@
+package bufmgr;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * A BufMgr that keeps BufMgrStats: pins, hits and misses, new and freed
+ * pages, evictions and the dirty pages written back by them. It works
+ * together with diskmgr.InstrumentedDB, which reports the disk reads and
+ * writes; the writes tell a write-back from a clean eviction.
+ * An eviction is counted when a page is loaded into a frame that held
+ * another one.
+ * <p>
+ * The page a load replaced is the one the replacer actually picked: pinPage
+ * hands out the frame itself as the content of the Page, so the frames are
+ * told apart by their byte arrays and the page each one holds is tracked
+ * here, on pin and free. A frame whose page was freed is reused without an
+ * eviction.
+ * <p>
+ * Use install() right after the SystemDefs constructor, before any file is
+ * opened.
+ */
+public class InstrumentedBufMgr extends BufMgr {
+
+	private final BufMgrStats stats;
+
+	/* marks a frame whose page was freed */
+	private final static int FREED = -1;
+
+	/* the page in every frame used so far, or FREED, by frame */
+	private final IdentityHashMap<byte[], Integer> frames = new IdentityHashMap<byte[], Integer>();
+	/* the frame of every page in the pool */
+	private final HashMap<Integer, byte[]> resident = new HashMap<Integer, byte[]>();
+
+	/**
+	 * Create an instrumented buffer manager. Prefer install().
+	 *
+	 * @param numbufs
+	 *            number of buffer frames
+	 * @param replacerArg
+	 *            name of the replacement policy, as for BufMgr
+	 */
+	public InstrumentedBufMgr(int numbufs, String replacerArg) {
+		super(numbufs, replacerArg);
+		stats = new BufMgrStats(replacerArg, numbufs);
+	}
+
+	/**
+	 * Replace SystemDefs.JavabaseBM and SystemDefs.JavabaseDB with
+	 * instrumented ones of the same size, on the same database file. The
+	 * InstrumentedDB passes the calls on to the DB installed before, which
+	 * is opened again. Nothing may be pinned.
+	 *
+	 * @param replacerArg
+	 *            name of the replacement policy, as for SystemDefs
+	 * @return the statistics of the new buffer manager
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception ChainException
+	 *                the old buffer pool could not be flushed or the
+	 *                database could not be reopened
+	 */
+	public static BufMgrStats install(String replacerArg) throws IOException,
+			chainexception.ChainException {
+		String dbname = SystemDefs.JavabaseDB.db_name();
+		SystemDefs.JavabaseBM.flushAllPages();
+		SystemDefs.JavabaseDB.closeDB();
+
+		InstrumentedBufMgr bm = new InstrumentedBufMgr(
+				SystemDefs.JavabaseBM.getNumBuffers(), replacerArg);
+		SystemDefs.JavabaseBM = bm;
+		InstrumentedDB db = new InstrumentedDB(bm.stats, SystemDefs.JavabaseDB);
+		SystemDefs.JavabaseDB = db;
+		db.openDB(dbname);
+		return bm.stats;
+	}
+
+	/** @return the statistics of this buffer manager */
+	public BufMgrStats getStats() {
+		return stats;
+	}
+
+	public void pinPage(PageId pin_pgid, Page page, boolean emptyPage)
+			throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException,
+			PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException {
+		long writes = stats.getDiskWrites();
+
+		super.pinPage(pin_pgid, page, emptyPage);
+
+		stats.pins.incrementAndGet();
+		byte[] frame = page.getpage();
+		Integer held = frames.put(frame, pin_pgid.pid);
+		if (held != null && held == pin_pgid.pid) {
+			stats.hits.incrementAndGet();
+			return;
+		}
+		// an empty page (newPage) takes a frame without a read
+		if (!emptyPage)
+			stats.misses.incrementAndGet();
+		resident.put(pin_pgid.pid, frame);
+		if (held != null && held != FREED) {
+			resident.remove(held);
+			stats.evictions.incrementAndGet();
+			// any disk write since the pin began was the old page going back
+			if (stats.getDiskWrites() != writes)
+				stats.dirtyWriteBacks.incrementAndGet();
+		}
+	}
+
+	public PageId newPage(Page firstpage, int howmany)
+			throws BufferPoolExceededException, HashOperationException,
+			ReplacerException, HashEntryNotFoundException,
+			InvalidFrameNumberException, PagePinnedException,
+			PageUnpinnedException, PageNotReadException, BufMgrException,
+			DiskMgrException, IOException {
+		PageId pageId = super.newPage(firstpage, howmany);
+		if (pageId != null)
+			stats.newPages.incrementAndGet();
+		return pageId;
+	}
+
+	public void freePage(PageId globalPageId) throws InvalidBufferException,
+			ReplacerException, HashOperationException,
+			InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException,
+			PageUnpinnedException, HashEntryNotFoundException,
+			BufMgrException, DiskMgrException, IOException {
+		super.freePage(globalPageId);
+		stats.freedPages.incrementAndGet();
+		byte[] frame = resident.remove(globalPageId.pid);
+		if (frame != null)
+			frames.put(frame, FREED);
+	}
+
+	public void flushPage(PageId pageid) throws HashOperationException,
+			PageUnpinnedException, PagePinnedException, PageNotFoundException,
+			BufMgrException, IOException {
+		long writes = stats.getDiskWrites();
+		super.flushPage(pageid);
+		stats.flushWrites.addAndGet(stats.getDiskWrites() - writes);
+	}
+
+	public void flushAllPages() throws HashOperationException,
+			PageUnpinnedException, PagePinnedException, PageNotFoundException,
+			BufMgrException, IOException {
+		long writes = stats.getDiskWrites();
+		super.flushAllPages();
+		stats.flushWrites.addAndGet(stats.getDiskWrites() - writes);
+	}
+}
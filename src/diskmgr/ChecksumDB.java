@@ -0,0 +1,210 @@
+package diskmgr;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.zip.*;
+
+import global.*;
+
+/**
+ * A DB that stamps a CRC32C on every page it writes and checks it when the
+ * page is read back, so a corrupt page or a torn write is reported by
+ * read_page as a PageChecksumException instead of being handed to the
+ * buffer pool. Only disk reads are verified; a page that is already in the
+ * buffer pool costs nothing extra to pin.
+ * <p>
+ * The pages are full to the last byte with data of the upper layers, so the
+ * checksums are kept next to the database, in &lt;db name&gt;.crc, one long
+ * per page: the checksum with bit 32 set, or 0 for a page that was never
+ * written by a ChecksumDB and is not checked. Neither file is synced, like
+ * DB's own writes, so after a crash of the machine a page may not match
+ * its checksum because only one of the two writes reached the disk; such a
+ * page is reported like any other mismatch.
+ * <p>
+ * The file starts with a random number that is also kept in unused bytes of
+ * the first directory page, so checksums left behind by an older database
+ * of the same name are recognized and dropped. Once it has checksums, a
+ * database must only be written through a ChecksumDB.
+ * <p>
+ * Use install() right after the SystemDefs constructor, or construct one in
+ * place of a DB.
+ */
+public class ChecksumDB extends SpaceMapDB {
+
+	private final static String SUFFIX = ".crc";
+	private final static long STAMPED = 1L << 32;
+	/* random number on page 0, between the file entries and NUM_DB_PAGE */
+	private final static int DB_ID = 1012;
+	private final static int HEADER = 8;
+
+	private final CRC32C crc = new CRC32C();
+	private final byte[] entry = new byte[8];
+	private RandomAccessFile sumFile;
+	private long[] sums = new long[0];
+	private long id;
+
+	/**
+	 * Replace SystemDefs.JavabaseDB with a ChecksumDB on the same database
+	 * file. Nothing may be pinned.
+	 *
+	 * @return the new database
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception chainexception.ChainException
+	 *                the buffer pool could not be flushed or the database
+	 *                could not be reopened
+	 */
+	public static ChecksumDB install() throws IOException,
+			chainexception.ChainException {
+		String dbname = SystemDefs.JavabaseDB.db_name();
+		SystemDefs.JavabaseBM.flushAllPages();
+		SystemDefs.JavabaseDB.closeDB();
+
+		ChecksumDB db = new ChecksumDB();
+		SystemDefs.JavabaseDB = db;
+		db.openDB(dbname);
+		return db;
+	}
+
+	public void openDB(String fname) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		// find out before any page is read whether the checksums are ours
+		long dbId = readId(fname);
+		openSums(fname, dbId);
+		super.openDB(fname);
+		grow(db_num_pages());
+		if (id == 0)
+			setId();
+	}
+
+	public void openDB(String fname, int num_pgs) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		openSums(fname, 0);
+		super.openDB(fname, num_pgs);
+		grow(db_num_pages());
+		setId();
+	}
+
+	public void closeDB() throws IOException {
+		super.closeDB();
+		sumFile.close();
+		sumFile = null;
+	}
+
+	public void DBDestroy() throws IOException {
+		super.DBDestroy();
+		sumFile.close();
+		sumFile = null;
+		new File(db_name() + SUFFIX).delete();
+	}
+
+	public void read_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		super.read_page(pageno, apage);
+		verify(pageno, apage);
+	}
+
+	public void write_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		if (pageno.pid >= 0 && pageno.pid < sums.length) {
+			long sum = checksum(apage);
+			if (sums[pageno.pid] != sum) {
+				sums[pageno.pid] = sum;
+				ByteBuffer.wrap(entry).putLong(sum);
+				sumFile.seek(HEADER + (long) pageno.pid * 8);
+				sumFile.write(entry);
+			}
+		}
+		super.write_page(pageno, apage);
+	}
+
+	/**
+	 * @return the random number that tells this database apart from older
+	 *         ones of the same name, for files kept next to it
+	 */
+	protected long getId() {
+		return id;
+	}
+
+	/**
+	 * Read the number of a database that is not open yet straight from its
+	 * file.
+	 *
+	 * @return the number, 0 if the database has none
+	 */
+	protected static long readId(String fname) throws IOException {
+		RandomAccessFile dbFile = new RandomAccessFile(fname, "r");
+		try {
+			dbFile.seek(DB_ID);
+			return dbFile.readLong();
+		} finally {
+			dbFile.close();
+		}
+	}
+
+	/* check a page read from disk against its checksum */
+	private void verify(PageId pageno, Page apage)
+			throws PageChecksumException {
+		long stored = pageno.pid < sums.length ? sums[pageno.pid] : 0;
+		if (stored != 0 && stored != checksum(apage))
+			throw new PageChecksumException(null, "DB page " + pageno.pid
+					+ " checksum mismatch");
+	}
+
+	private long checksum(Page apage) {
+		crc.reset();
+		crc.update(apage.getpage(), 0, GlobalConst.MINIBASE_PAGESIZE);
+		return STAMPED | crc.getValue();
+	}
+
+	/*
+	 * open the checksum file and read it if it belongs to database `dbId',
+	 * else start it over
+	 */
+	private void openSums(String fname, long dbId) throws IOException {
+		sumFile = new RandomAccessFile(fname + SUFFIX, "rw");
+		id = sumFile.length() >= HEADER ? sumFile.readLong() : 0;
+		if (dbId == 0 || id != dbId) {
+			id = 0;
+			sumFile.setLength(0);
+			sums = new long[0];
+			return;
+		}
+
+		byte[] data = new byte[(int) ((sumFile.length() - HEADER) & ~7L)];
+		sumFile.readFully(data);
+		sums = new long[data.length / 8];
+		ByteBuffer.wrap(data).asLongBuffer().get(sums);
+	}
+
+	/* give the database a new number; its pages have no checksums yet */
+	private void setId() throws IOException, DiskMgrException {
+		do
+			id = new Random().nextLong();
+		while (id == 0);
+
+		PageId first = new PageId(0);
+		Page page = new Page();
+		try {
+			SystemDefs.JavabaseBM.pinPage(first, page, false);
+			Convert.setIntValue((int) (id >>> 32), DB_ID, page.getpage());
+			Convert.setIntValue((int) id, DB_ID + 4, page.getpage());
+			SystemDefs.JavabaseBM.unpinPage(first, true);
+		} catch (Exception e) {
+			throw new DiskMgrException(e, "DB.java: pinPage() failed");
+		}
+
+		sumFile.seek(0);
+		sumFile.writeLong(id);
+	}
+
+	/* make room for the checksums of `pages' pages */
+	private void grow(int pages) {
+		if (pages > sums.length) {
+			long[] larger = new long[pages];
+			System.arraycopy(sums, 0, larger, 0, sums.length);
+			sums = larger;
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package diskmgr;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import global.*;
+
+/**
+ * A DB that stores the pages a PageCodec knows how to encode in encoded
+ * form, and decodes them into the buffer frame when they are read. An
+ * encoded page takes the place of the plain page in the database file,
+ * padded with zeroes. Pages the codec leaves alone are read and written as
+ * before.
+ * <p>
+ * DB keeps every page at a fixed place in the file and reads and writes
+ * whole pages, so here the encoding saves neither space nor bandwidth: a
+ * page read costs the same whether it is encoded or not, plus the decoding.
+ * What it gives is the encoded size of every page, see getEncodedPages(),
+ * with the encoding checked on every read.
+ * <p>
+ * The encoded length of every page is kept in &lt;db name&gt;.cmp, one
+ * short per page, 0 for a plain page, after the number of the database (see
+ * ChecksumDB). A page that becomes encoded has its length written before
+ * the page, one that stops being encoded after it, so a write that is torn
+ * half way shows up as a checksum mismatch, not as a page decoded from the
+ * wrong bytes. DBDestroy removes the file with the database.
+ * <p>
+ * Use install() right after the SystemDefs constructor, or construct one in
+ * place of a DB. The same codec has to be given every time the database is
+ * opened.
+ */
+public class CompressedDB extends ChecksumDB {
+
+	private final static String SUFFIX = ".cmp";
+	private final static int HEADER = 8;
+
+	private PageCodec codec;
+	private RandomAccessFile mapFile;
+	private short[] lengths = new short[0];
+
+	private final byte[] encoded = new byte[GlobalConst.MINIBASE_PAGESIZE];
+	private final byte[] entry = new byte[2];
+
+	public CompressedDB() {
+	}
+
+	/**
+	 * @param codec
+	 *            encoding of the pages, null to write every page plain
+	 */
+	public CompressedDB(PageCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Replace SystemDefs.JavabaseDB with a CompressedDB on the same database
+	 * file. Nothing may be pinned.
+	 *
+	 * @param codec
+	 *            encoding of the pages
+	 * @return the new database
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception chainexception.ChainException
+	 *                the buffer pool could not be flushed or the database
+	 *                could not be reopened
+	 */
+	public static CompressedDB install(PageCodec codec) throws IOException,
+			chainexception.ChainException {
+		String dbname = SystemDefs.JavabaseDB.db_name();
+		SystemDefs.JavabaseBM.flushAllPages();
+		SystemDefs.JavabaseDB.closeDB();
+
+		CompressedDB db = new CompressedDB(codec);
+		SystemDefs.JavabaseDB = db;
+		db.openDB(dbname);
+		return db;
+	}
+
+	/**
+	 * Change the codec pages are encoded with from now on. Pages already
+	 * encoded are still decoded with the new one.
+	 */
+	public void setCodec(PageCodec codec) {
+		this.codec = codec;
+	}
+
+	/** @return the codec, null if none */
+	public PageCodec getCodec() {
+		return codec;
+	}
+
+	public void openDB(String fname) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		// the lengths are needed as soon as the first page is read
+		openMap(fname, readId(fname));
+		super.openDB(fname);
+		grow(db_num_pages());
+		writeId();
+	}
+
+	public void openDB(String fname, int num_pgs) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		openMap(fname, 0);
+		super.openDB(fname, num_pgs);
+		grow(db_num_pages());
+		writeId();
+	}
+
+	public void closeDB() throws IOException {
+		super.closeDB();
+		mapFile.close();
+		mapFile = null;
+	}
+
+	public void DBDestroy() throws IOException {
+		super.DBDestroy();
+		mapFile.close();
+		mapFile = null;
+		new File(db_name() + SUFFIX).delete();
+	}
+
+	public void read_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		int length = pageno.pid >= 0 && pageno.pid < lengths.length ? lengths[pageno.pid]
+				: 0;
+		if (length == 0) {
+			super.read_page(pageno, apage);
+			return;
+		}
+		if (codec == null)
+			throw new FileIOException(null, "DB page " + pageno.pid
+					+ " is encoded and there is no codec");
+
+		// the encoding as written, padded with zeroes and checksummed
+		super.read_page(pageno, new Page(encoded));
+		codec.decode(encoded, apage.getpage());
+	}
+
+	public void write_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		boolean mapped = pageno.pid >= 0 && pageno.pid < lengths.length;
+		int length = 0;
+		if (codec != null && mapped) {
+			Arrays.fill(encoded, (byte) 0);
+			length = codec.encode(pageno.pid, apage.getpage(), encoded);
+		}
+
+		if (length == 0) {
+			super.write_page(pageno, apage);
+			if (mapped)
+				setLength(pageno.pid, 0);
+		} else {
+			setLength(pageno.pid, length);
+			super.write_page(pageno, new Page(encoded));
+		}
+	}
+
+	/** @return the number of pages stored encoded */
+	public int getEncodedPages() {
+		int pages = 0;
+		for (short length : lengths)
+			if (length != 0)
+				pages++;
+		return pages;
+	}
+
+	/*
+	 * open the length file and read it if it belongs to database `dbId',
+	 * else start it over
+	 */
+	private void openMap(String fname, long dbId) throws IOException {
+		mapFile = new RandomAccessFile(fname + SUFFIX, "rw");
+		long id = mapFile.length() >= HEADER ? mapFile.readLong() : 0;
+		if (dbId == 0 || id != dbId) {
+			mapFile.setLength(0);
+			lengths = new short[0];
+			return;
+		}
+
+		byte[] data = new byte[(int) ((mapFile.length() - HEADER) & ~1L)];
+		mapFile.readFully(data);
+		lengths = new short[data.length / 2];
+		ByteBuffer.wrap(data).asShortBuffer().get(lengths);
+	}
+
+	/* ChecksumDB may have given the database a new number */
+	private void writeId() throws IOException {
+		mapFile.seek(0);
+		mapFile.writeLong(getId());
+	}
+
+	private void setLength(int pid, int length) throws IOException {
+		if (lengths[pid] == length)
+			return;
+		lengths[pid] = (short) length;
+		ByteBuffer.wrap(entry).putShort((short) length);
+		mapFile.seek(HEADER + (long) pid * 2);
+		mapFile.write(entry);
+	}
+
+	/* make room for the lengths of `pages' pages */
+	private void grow(int pages) {
+		if (pages > lengths.length) {
+			short[] larger = new short[pages];
+			System.arraycopy(lengths, 0, larger, 0, lengths.length);
+			lengths = larger;
+		}
+	}
+}
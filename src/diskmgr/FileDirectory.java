@@ -0,0 +1,196 @@
+package diskmgr;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+
+/**
+ * In-memory copy of the file directory of a database, kept next to the
+ * directory pages by SpaceMapDB. DB looks a name up by reading the chain of
+ * directory pages and comparing names one entry at a time, and adding a file
+ * walks the chain once more for a free entry. Here the names are hashed to
+ * the page and entry that hold them, and the free entries are kept in chain
+ * order, so looking up, adding and deleting a file cost O(1) page accesses
+ * however many files the database has.
+ * <p>
+ * The directory pages keep the layout of DB and are updated in place on
+ * every change. A free entry is reused in the same order as DB would: the
+ * first one in the chain.
+ */
+class FileDirectory implements GlobalConst {
+
+	/* where a file entry lives */
+	private static class Entry {
+		final int page; // position of the directory page in the chain
+		final int slot;
+		final int start; // first page of the file
+
+		Entry(int page, int slot, int start) {
+			this.page = page;
+			this.slot = slot;
+			this.start = start;
+		}
+	}
+
+	/*
+	 * The layout of DB's directory pages: the next page, the number of
+	 * entries, then the entries, each a first page and a name. The first
+	 * page of the database ends with the number of pages instead.
+	 */
+	private final static int NEXT_PAGE = 0;
+	private final static int NUM_OF_ENTRIES = 4;
+	private final static int START_FILE_ENTRIES = 8;
+	private final static int SIZE_OF_FILE_ENTRY = 4 + MAX_NAME + 2;
+	private final static int DIR_PAGE_USED_BYTES = 8 + 8;
+
+	private final DB db;
+	private final HashMap<String, Entry> files = new HashMap<String, Entry>();
+	/* free entries, as page position << 16 | slot */
+	private final TreeSet<Long> free = new TreeSet<Long>();
+	/* directory pages, in chain order; page 0 first */
+	private final ArrayList<Integer> pages = new ArrayList<Integer>();
+
+	/**
+	 * Read the directory of `db', which must be open.
+	 */
+	FileDirectory(DB db) throws DiskMgrException, IOException {
+		this.db = db;
+
+		PageId pageno = new PageId(0);
+		while (pageno.pid != INVALID_PAGE) {
+			int position = pages.size();
+			pages.add(pageno.pid);
+			byte[] data = pinPage(pageno, false).getpage();
+			int entries = Convert.getIntValue(NUM_OF_ENTRIES, data);
+			for (int i = 0; i < entries; i++) {
+				int offset = START_FILE_ENTRIES + i * SIZE_OF_FILE_ENTRY;
+				int start = Convert.getIntValue(offset, data);
+				if (start == INVALID_PAGE)
+					free.add(key(position, i));
+				else
+					files.put(Convert.getStrValue(offset + 4, data,
+							MAX_NAME + 2), new Entry(position, i, start));
+			}
+			PageId next = new PageId(Convert.getIntValue(NEXT_PAGE, data));
+			unpinPage(pageno, false);
+			pageno = next;
+		}
+	}
+
+	/**
+	 * @return the first page of file `name', null if there is no such file
+	 */
+	PageId get(String name) {
+		Entry entry = files.get(name);
+		return entry == null ? null : new PageId(entry.start);
+	}
+
+	/**
+	 * Add a file entry, growing the directory by one page if it is full.
+	 */
+	void add(String name, PageId start) throws FileNameTooLongException,
+			InvalidPageNumberException, InvalidRunSizeException,
+			DuplicateEntryException, OutOfSpaceException, FileIOException,
+			IOException, DiskMgrException {
+		if (name.length() >= MAX_NAME)
+			throw new FileNameTooLongException(null, "DB filename too long");
+		if (start.pid < 0 || start.pid >= db.db_num_pages())
+			throw new InvalidPageNumberException(null, " DB bad page number");
+		if (files.containsKey(name))
+			throw new DuplicateEntryException(null,
+					"DB fileentry already exists");
+
+		if (free.isEmpty())
+			grow();
+		long slot = free.pollFirst();
+		int position = (int) (slot >>> 16);
+		int i = (int) (slot & 0xffff);
+
+		PageId pageno = new PageId(pages.get(position));
+		setFileEntry(pinPage(pageno, false), i, start.pid, name);
+		unpinPage(pageno, true);
+		files.put(name, new Entry(position, i, start.pid));
+	}
+
+	/**
+	 * Delete a file entry. The directory page stays in the chain.
+	 */
+	void delete(String name) throws FileEntryNotFoundException,
+			DiskMgrException, IOException {
+		Entry entry = files.get(name);
+		if (entry == null)
+			throw new FileEntryNotFoundException(null, "DB file not found");
+
+		PageId pageno = new PageId(pages.get(entry.page));
+		setFileEntry(pinPage(pageno, false), entry.slot, INVALID_PAGE, "\0");
+		unpinPage(pageno, true);
+		files.remove(name);
+		free.add(key(entry.page, entry.slot));
+	}
+
+	/** @return the number of files in the directory */
+	int size() {
+		return files.size();
+	}
+
+	/* append an empty directory page to the chain */
+	private void grow() throws OutOfSpaceException, InvalidRunSizeException,
+			InvalidPageNumberException, FileIOException, DiskMgrException,
+			IOException {
+		PageId pageno = new PageId();
+		db.allocate_page(pageno);
+
+		// what new DBDirectoryPage(page) writes, on a zeroed page: DB leaves
+		// the names of free entries as the frame held them, then fails to
+		// read them when it looks a file up
+		byte[] data = pinPage(pageno, true).getpage();
+		Arrays.fill(data, (byte) 0);
+		int entries = (MAX_SPACE - DIR_PAGE_USED_BYTES) / SIZE_OF_FILE_ENTRY;
+		Convert.setIntValue(INVALID_PAGE, NEXT_PAGE, data);
+		Convert.setIntValue(entries, NUM_OF_ENTRIES, data);
+		for (int i = 0; i < entries; i++) {
+			Convert.setIntValue(INVALID_PAGE, START_FILE_ENTRIES + i
+					* SIZE_OF_FILE_ENTRY, data);
+			free.add(key(pages.size(), i));
+		}
+		unpinPage(pageno, true);
+
+		PageId last = new PageId(pages.get(pages.size() - 1));
+		Convert.setIntValue(pageno.pid, NEXT_PAGE, pinPage(last, false)
+				.getpage());
+		unpinPage(last, true);
+		pages.add(pageno.pid);
+	}
+
+	private static void setFileEntry(Page page, int slot, int start,
+			String name) throws IOException {
+		int offset = START_FILE_ENTRIES + slot * SIZE_OF_FILE_ENTRY;
+		Convert.setIntValue(start, offset, page.getpage());
+		Convert.setStrValue(name, offset + 4, page.getpage());
+	}
+
+	private static long key(int position, int slot) {
+		return (long) position << 16 | slot;
+	}
+
+	private static Page pinPage(PageId pageno, boolean empty)
+			throws DiskMgrException {
+		try {
+			Page page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, empty);
+			return page;
+		} catch (Exception e) {
+			throw new DiskMgrException(e, "DB.java: pinPage() failed");
+		}
+	}
+
+	private static void unpinPage(PageId pageno, boolean dirty)
+			throws DiskMgrException {
+		try {
+			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+		} catch (Exception e) {
+			throw new DiskMgrException(e, "DB.java: unpinPage() failed");
+		}
+	}
+}
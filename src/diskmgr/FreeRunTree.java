@@ -0,0 +1,135 @@
+package diskmgr;
+
+/**
+ * In-memory index of the free pages of a database, kept next to the on-disk
+ * space map by SpaceMapDB. The pages are held in a bitmap of 64-page words
+ * (bit set = page in use) with a segment tree on top. Every tree node knows
+ * the longest free run in its range and the free runs touching either end
+ * of it, so the lowest run of n free pages is found in O(log pages), just
+ * like the first fit DB.allocate_page finds by scanning the whole map.
+ */
+class FreeRunTree {
+
+	private final int numPages;
+	private final long[] used;
+	private final int leaves; // power of two >= used.length
+
+	/* per node: free run at the low end, at the high end, longest; length */
+	private final int[] prefix;
+	private final int[] suffix;
+	private final int[] best;
+	private final int[] length;
+
+	/**
+	 * @param numPages
+	 *            number of pages in the database; all start out in use
+	 */
+	FreeRunTree(int numPages) {
+		this.numPages = numPages;
+		used = new long[(numPages + 63) / 64];
+		int n = 1;
+		while (n < Math.max(1, used.length))
+			n *= 2;
+		leaves = n;
+		prefix = new int[2 * n];
+		suffix = new int[2 * n];
+		best = new int[2 * n];
+		length = new int[2 * n];
+
+		for (int i = 0; i < used.length; i++)
+			used[i] = -1L;
+		// no free runs anywhere yet, so only the lengths are non zero
+		for (int node = 2 * n - 1; node > 0; node--)
+			length[node] = node >= n ? 64 : 2 * length[2 * node];
+	}
+
+	/** @return the number of pages this tree covers */
+	int numPages() {
+		return numPages;
+	}
+
+	/**
+	 * Mark pages [first, first + run) in use (inUse true) or free.
+	 */
+	void set(int first, int run, boolean inUse) {
+		int end = first + run;
+		int page = first;
+		while (page < end) {
+			int word = page >>> 6;
+			int from = page & 63;
+			int to = Math.min(64, from + end - page);
+			long mask = to - from == 64 ? -1L : ((1L << (to - from)) - 1) << from;
+			long bits = inUse ? used[word] | mask : used[word] & ~mask;
+			// pages past the end of the database never become free
+			if (word == used.length - 1 && (numPages & 63) != 0)
+				bits |= -1L << (numPages & 63);
+			used[word] = bits;
+			update(word);
+			page += to - from;
+		}
+	}
+
+	/**
+	 * @return true if page `pid' is in use
+	 */
+	boolean isUsed(int pid) {
+		return (used[pid >>> 6] & (1L << (pid & 63))) != 0;
+	}
+
+	/**
+	 * @param run
+	 *            number of consecutive free pages wanted, at least 1
+	 * @return the lowest first page of such a run, -1 if there is none
+	 */
+	int find(int run) {
+		if (best[1] < run)
+			return -1;
+		int node = 1;
+		int start = 0; // first page of node's range
+		while (node < leaves) {
+			int left = 2 * node;
+			int right = left + 1;
+			if (best[left] >= run) {
+				node = left;
+			} else if (suffix[left] + prefix[right] >= run) {
+				return start + length[left] - suffix[left];
+			} else {
+				start += length[left];
+				node = right;
+			}
+		}
+		return start + lowestRun(used[node - leaves], run);
+	}
+
+	/* recompute the leaf of `word' and its ancestors */
+	private void update(int word) {
+		int node = word + leaves;
+		long bits = used[word];
+		long free = ~bits;
+		prefix[node] = Long.numberOfTrailingZeros(bits);
+		suffix[node] = Long.numberOfLeadingZeros(bits);
+		int longest = 0;
+		for (long x = free; x != 0; x &= x << 1)
+			longest++;
+		best[node] = longest;
+
+		for (node >>>= 1; node > 0; node >>>= 1) {
+			int l = 2 * node;
+			int r = l + 1;
+			prefix[node] = prefix[l] == length[l] ? length[l] + prefix[r]
+					: prefix[l];
+			suffix[node] = suffix[r] == length[r] ? length[r] + suffix[l]
+					: suffix[r];
+			best[node] = Math.max(Math.max(best[l], best[r]), suffix[l]
+					+ prefix[r]);
+		}
+	}
+
+	/* lowest bit starting `run' free bits in a word that has them */
+	private static int lowestRun(long bits, int run) {
+		long x = ~bits;
+		for (int i = 1; i < run; i++)
+			x &= x >>> 1;
+		return Long.numberOfTrailingZeros(x);
+	}
+}
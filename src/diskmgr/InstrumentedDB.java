@@ -0,0 +1,127 @@
+package diskmgr;
+
+import java.io.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * A DB that counts and times the page reads and writes and counts the page
+ * allocations of another DB into a BufMgrStats. It is installed together
+ * with bufmgr.InstrumentedBufMgr, see InstrumentedBufMgr.install(), and
+ * passes every call on to the DB that was installed before, so the
+ * database stays what it was: a plain DB writes pages as DB does, and a
+ * ChecksumDB or CompressedDB installed first goes on checksumming or
+ * encoding them, with the read and write times including that.
+ */
+public class InstrumentedDB extends DB {
+
+	private final BufMgrStats stats;
+	private final DB db;
+
+	/**
+	 * @param stats
+	 *            where to count the disk traffic
+	 * @param db
+	 *            the database to pass the calls on to
+	 */
+	public InstrumentedDB(BufMgrStats stats, DB db) {
+		this.stats = stats;
+		this.db = db;
+	}
+
+	public void openDB(String fname) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		db.openDB(fname);
+	}
+
+	public void openDB(String fname, int num_pgs) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		db.openDB(fname, num_pgs);
+	}
+
+	public void closeDB() throws IOException {
+		db.closeDB();
+	}
+
+	public void DBDestroy() throws IOException {
+		db.DBDestroy();
+	}
+
+	public void read_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		long start = System.nanoTime();
+		db.read_page(pageno, apage);
+		stats.diskRead(System.nanoTime() - start);
+	}
+
+	public void write_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		long start = System.nanoTime();
+		db.write_page(pageno, apage);
+		stats.diskWrite(System.nanoTime() - start);
+	}
+
+	public void allocate_page(PageId start_page_num)
+			throws OutOfSpaceException, InvalidRunSizeException,
+			InvalidPageNumberException, FileIOException, DiskMgrException,
+			IOException {
+		allocate_page(start_page_num, 1);
+	}
+
+	public void allocate_page(PageId start_page_num, int run_size)
+			throws OutOfSpaceException, InvalidRunSizeException,
+			InvalidPageNumberException, FileIOException, DiskMgrException,
+			IOException {
+		db.allocate_page(start_page_num, run_size);
+		stats.diskAllocation();
+	}
+
+	public void deallocate_page(PageId start_page_num, int run_size)
+			throws InvalidRunSizeException, InvalidPageNumberException,
+			IOException, FileIOException, DiskMgrException {
+		db.deallocate_page(start_page_num, run_size);
+	}
+
+	public void deallocate_page(PageId start_page_num)
+			throws InvalidRunSizeException, InvalidPageNumberException,
+			IOException, FileIOException, DiskMgrException {
+		db.deallocate_page(start_page_num);
+	}
+
+	public void add_file_entry(String fname, PageId start_page_num)
+			throws FileNameTooLongException, InvalidPageNumberException,
+			InvalidRunSizeException, DuplicateEntryException,
+			OutOfSpaceException, FileIOException, IOException,
+			DiskMgrException {
+		db.add_file_entry(fname, start_page_num);
+	}
+
+	public void delete_file_entry(String fname)
+			throws FileEntryNotFoundException, IOException, FileIOException,
+			InvalidPageNumberException, DiskMgrException {
+		db.delete_file_entry(fname);
+	}
+
+	public PageId get_file_entry(String name) throws IOException,
+			FileIOException, InvalidPageNumberException, DiskMgrException {
+		return db.get_file_entry(name);
+	}
+
+	public String db_name() {
+		return db.db_name();
+	}
+
+	public int db_num_pages() {
+		return db.db_num_pages();
+	}
+
+	public int db_page_size() {
+		return db.db_page_size();
+	}
+
+	public void dump_space_map() throws DiskMgrException, IOException,
+			FileIOException, InvalidPageNumberException {
+		db.dump_space_map();
+	}
+}
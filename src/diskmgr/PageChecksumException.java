@@ -0,0 +1,15 @@
+package diskmgr;
+
+/**
+ * Thrown by ChecksumDB.read_page when a page read from disk does not match
+ * the checksum it was written with: the page is corrupt or its last write
+ * was torn.
+ */
+public class PageChecksumException extends FileIOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public PageChecksumException(Exception e, String name) {
+		super(e, name);
+	}
+}
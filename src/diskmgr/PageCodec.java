@@ -0,0 +1,37 @@
+package diskmgr;
+
+import java.io.*;
+
+/**
+ * An on-disk encoding of some kinds of pages, used by CompressedDB. A codec
+ * looks at a page when it is written and either encodes it or leaves it
+ * alone; encoded pages are decoded again when they are read.
+ */
+public interface PageCodec {
+
+	/**
+	 * Encode a page.
+	 *
+	 * @param pid
+	 *            page number of the page
+	 * @param page
+	 *            the page, MINIBASE_PAGESIZE bytes; not to be changed
+	 * @param out
+	 *            where to put the encoding, MINIBASE_PAGESIZE bytes
+	 * @return the length of the encoding, or 0 if this page is not encoded;
+	 *         also 0 if the encoding would not fit in out
+	 */
+	int encode(int pid, byte[] page, byte[] out) throws IOException;
+
+	/**
+	 * Decode a page encoded by encode().
+	 *
+	 * @param in
+	 *            the encoding, possibly followed by zeroes
+	 * @param page
+	 *            where to put the page, MINIBASE_PAGESIZE bytes
+	 * @exception IOException
+	 *                the encoding is not valid
+	 */
+	void decode(byte[] in, byte[] page) throws IOException;
+}
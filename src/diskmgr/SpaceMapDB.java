@@ -0,0 +1,179 @@
+package diskmgr;
+
+import java.io.*;
+
+import global.*;
+
+/**
+ * A DB whose allocate_page finds free runs in an in-memory FreeRunTree
+ * instead of scanning the space map bit by bit, so page allocation costs
+ * O(log pages) rather than O(pages). The tree is loaded from the space map
+ * when the database is opened and every change is written through to the
+ * space map pages, which keep the layout of DB: page 1 onwards, one bit per
+ * page, low bit first. Allocation is still first fit, so the pages handed
+ * out are the same ones DB would pick.
+ * <p>
+ * The file directory is cached the same way in a FileDirectory, so
+ * get_file_entry, add_file_entry and delete_file_entry no longer read the
+ * whole chain of directory pages.
+ * <p>
+ * Use install() right after the SystemDefs constructor, or construct one in
+ * place of a DB.
+ */
+public class SpaceMapDB extends DB {
+
+	private final static int BITS_PER_PAGE = GlobalConst.MINIBASE_PAGESIZE * 8;
+
+	private FreeRunTree free;
+	private FileDirectory directory;
+
+	/**
+	 * Replace SystemDefs.JavabaseDB with a SpaceMapDB on the same database
+	 * file. Nothing may be pinned.
+	 *
+	 * @return the new database
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception chainexception.ChainException
+	 *                the buffer pool could not be flushed or the database
+	 *                could not be reopened
+	 */
+	public static SpaceMapDB install() throws IOException,
+			chainexception.ChainException {
+		String dbname = SystemDefs.JavabaseDB.db_name();
+		SystemDefs.JavabaseBM.flushAllPages();
+		SystemDefs.JavabaseDB.closeDB();
+
+		SpaceMapDB db = new SpaceMapDB();
+		SystemDefs.JavabaseDB = db;
+		db.openDB(dbname);
+		return db;
+	}
+
+	public void openDB(String fname) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		super.openDB(fname);
+		load();
+	}
+
+	public void openDB(String fname, int num_pgs) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		super.openDB(fname, num_pgs);
+		load();
+	}
+
+	public void allocate_page(PageId start_page_num, int run_size)
+			throws OutOfSpaceException, InvalidRunSizeException,
+			InvalidPageNumberException, FileIOException, DiskMgrException,
+			IOException {
+		if (run_size < 0)
+			throw new InvalidRunSizeException(null, "Negative run_size");
+
+		int first = free.find(Math.max(1, run_size));
+		if (first < 0)
+			throw new OutOfSpaceException(null, "No space left");
+
+		start_page_num.pid = first;
+		setBits(first, run_size, true);
+	}
+
+	public void deallocate_page(PageId start_page_num, int run_size)
+			throws InvalidRunSizeException, InvalidPageNumberException,
+			IOException, FileIOException, DiskMgrException {
+		super.deallocate_page(start_page_num, run_size);
+		free.set(start_page_num.pid, run_size, false);
+	}
+
+	public void deallocate_page(PageId start_page_num)
+			throws InvalidRunSizeException, InvalidPageNumberException,
+			IOException, FileIOException, DiskMgrException {
+		super.deallocate_page(start_page_num);
+		free.set(start_page_num.pid, 1, false);
+	}
+
+	public PageId get_file_entry(String name) throws IOException,
+			FileIOException, InvalidPageNumberException, DiskMgrException {
+		return directory.get(name);
+	}
+
+	public void add_file_entry(String fname, PageId start_page_num)
+			throws FileNameTooLongException, InvalidPageNumberException,
+			InvalidRunSizeException, DuplicateEntryException,
+			OutOfSpaceException, FileIOException, IOException,
+			DiskMgrException {
+		directory.add(fname, start_page_num);
+	}
+
+	public void delete_file_entry(String fname)
+			throws FileEntryNotFoundException, IOException, FileIOException,
+			InvalidPageNumberException, DiskMgrException {
+		directory.delete(fname);
+	}
+
+	/* build the tree from the space map pages, then read the directory */
+	private void load() throws DiskMgrException, IOException {
+		int pages = db_num_pages();
+		free = new FreeRunTree(pages);
+
+		for (int map = 0; map * BITS_PER_PAGE < pages; map++) {
+			PageId pageno = new PageId(1 + map);
+			byte[] data = pinPage(pageno).getpage();
+			int first = map * BITS_PER_PAGE;
+			int last = Math.min(pages, first + BITS_PER_PAGE);
+			int runStart = -1;
+			for (int pid = first; pid <= last; pid++) {
+				boolean isFree = pid < last
+						&& (data[(pid - first) >> 3] & (1 << (pid & 7))) == 0;
+				if (isFree && runStart < 0)
+					runStart = pid;
+				else if (!isFree && runStart >= 0) {
+					free.set(runStart, pid - runStart, false);
+					runStart = -1;
+				}
+			}
+			unpinPage(pageno, false);
+		}
+		directory = new FileDirectory(this);
+	}
+
+	/* write [first, first + run) to the tree and to the space map pages */
+	private void setBits(int first, int run, boolean inUse)
+			throws DiskMgrException, IOException {
+		free.set(first, run, inUse);
+
+		int pid = first;
+		int end = first + run;
+		while (pid < end) {
+			PageId pageno = new PageId(1 + pid / BITS_PER_PAGE);
+			int last = Math.min(end, (pid / BITS_PER_PAGE + 1) * BITS_PER_PAGE);
+			byte[] data = pinPage(pageno).getpage();
+			for (; pid < last; pid++) {
+				int pos = (pid % BITS_PER_PAGE) >> 3;
+				if (inUse)
+					data[pos] |= 1 << (pid & 7);
+				else
+					data[pos] &= ~(1 << (pid & 7));
+			}
+			unpinPage(pageno, true);
+		}
+	}
+
+	private Page pinPage(PageId pageno) throws DiskMgrException {
+		try {
+			Page page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+			return page;
+		} catch (Exception e) {
+			throw new DiskMgrException(e, "DB.java: pinPage() failed");
+		}
+	}
+
+	private void unpinPage(PageId pageno, boolean dirty)
+			throws DiskMgrException {
+		try {
+			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+		} catch (Exception e) {
+			throw new DiskMgrException(e, "DB.java: unpinPage() failed");
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package global;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A cheap latency histogram with power-of-two buckets: bucket i counts the
+ * samples in [2^i, 2^(i+1)) nanoseconds. Recording is a couple of atomic
+ * increments, so it can sit on hot paths; percentiles are only as exact as
+ * the bucket they fall in (the upper bound of it is reported).
+ */
+public class LatencyHistogram {
+
+	private final AtomicLongArray buckets = new AtomicLongArray(64);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos
+	 *            the latency of one operation, in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 1)
+			nanos = 1;
+		buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long m;
+		while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos))
+			;
+	}
+
+	/** @return the number of samples recorded */
+	public long getCount() {
+		return count.get();
+	}
+
+	/** @return the mean latency in nanoseconds, 0 if there are no samples */
+	public long getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : total.get() / n;
+	}
+
+	/** @return the largest latency recorded, in nanoseconds */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param p
+	 *            the percentile wanted, between 0 and 100
+	 * @return an upper bound of the p-th percentile latency in nanoseconds, 0
+	 *         if there are no samples
+	 */
+	public long getPercentile(double p) {
+		long n = count.get();
+		if (n == 0)
+			return 0;
+		long rank = (long) Math.ceil(n * p / 100);
+		long seen = 0;
+		for (int i = 0; i < 64; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank)
+				return i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+		}
+		return max.get();
+	}
+
+	/** Forget all samples. */
+	public void reset() {
+		for (int i = 0; i < 64; i++)
+			buckets.set(i, 0);
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	public String toString() {
+		return "n=" + getCount() + " mean=" + getMean() / 1000 + "us p50<="
+				+ getPercentile(50) / 1000 + "us p99<=" + getPercentile(99)
+				/ 1000 + "us max=" + getMax() / 1000 + "us";
+	}
+}
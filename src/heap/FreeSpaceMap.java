@@ -0,0 +1,109 @@
+package heap;
+
+import java.util.*;
+
+import global.*;
+
+/**
+ * FreeSpaceMap is the in-memory index of a MappedHeapfile's directory: for
+ * every data page, where its DataPageInfo record is and how many bytes it
+ * has free. The pages are also kept in buckets of GRAIN bytes of free
+ * space, so a page with room for a record is found by looking at a few
+ * buckets instead of reading the directory.
+ * <p>
+ * It also keeps the directory pages that have room for another
+ * DataPageInfo, and the last directory page, where new ones are linked in.
+ */
+class FreeSpaceMap implements GlobalConst {
+
+	/* bytes of free space a bucket covers */
+	private final static int GRAIN = 32;
+
+	/* where a data page's DataPageInfo is, and its free space */
+	static class Entry {
+		final RID dirRid;
+		int space;
+
+		Entry(RID dirRid, int space) {
+			this.dirRid = dirRid;
+			this.space = space;
+		}
+	}
+
+	private final HashMap<Integer, Entry> pages = new HashMap<Integer, Entry>();
+	// bucket b holds the pages with b * GRAIN to (b + 1) * GRAIN - 1 bytes free
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final LinkedHashSet<Integer>[] buckets = new LinkedHashSet[MINIBASE_PAGESIZE
+			/ GRAIN + 1];
+	private final LinkedHashSet<Integer> roomyDirs = new LinkedHashSet<Integer>();
+	int lastDir;
+
+	FreeSpaceMap() {
+		for (int b = 0; b < buckets.length; b++)
+			buckets[b] = new LinkedHashSet<Integer>();
+	}
+
+	/* data page `pid', its DataPageInfo at `dirRid', has `space' bytes free */
+	void put(int pid, RID dirRid, int space) {
+		remove(pid);
+		pages.put(pid, new Entry(dirRid, space));
+		buckets[bucket(space)].add(pid);
+	}
+
+	/* the free space of data page `pid' is now `space' */
+	void update(int pid, int space) {
+		Entry entry = pages.get(pid);
+		buckets[bucket(entry.space)].remove(pid);
+		entry.space = space;
+		buckets[bucket(space)].add(pid);
+	}
+
+	/* data page `pid' is freed */
+	void remove(int pid) {
+		Entry entry = pages.remove(pid);
+		if (entry != null)
+			buckets[bucket(entry.space)].remove(pid);
+	}
+
+	/* @return where the DataPageInfo of `pid' is, or null */
+	Entry get(int pid) {
+		return pages.get(pid);
+	}
+
+	/*
+	 * @return a data page with at least `size' bytes free, from the fullest
+	 * bucket that is sure to have them; INVALID_PAGE if there is none
+	 */
+	int find(int size) {
+		for (int b = (size + GRAIN - 1) / GRAIN; b < buckets.length; b++)
+			if (!buckets[b].isEmpty())
+				return buckets[b].iterator().next();
+		return INVALID_PAGE;
+	}
+
+	/* directory page `pid' has room for another DataPageInfo, or not */
+	void dirRoom(int pid, boolean room) {
+		if (room)
+			roomyDirs.add(pid);
+		else
+			roomyDirs.remove(pid);
+	}
+
+	/* @return a directory page with room, or INVALID_PAGE */
+	int roomyDir() {
+		return roomyDirs.isEmpty() ? INVALID_PAGE : roomyDirs.iterator()
+				.next();
+	}
+
+	private static int bucket(int space) {
+		return Math.max(space, 0) / GRAIN;
+	}
+
+	void clear() {
+		pages.clear();
+		for (LinkedHashSet<Integer> bucket : buckets)
+			bucket.clear();
+		roomyDirs.clear();
+		lastDir = INVALID_PAGE;
+	}
+}
@@ -0,0 +1,105 @@
+package heap;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * HeapDirectory lists the data pages of a heap file by walking its
+ * directory pages, the DataPageInfo records a Scan follows one after the
+ * other, so that the data pages can be handed out to several readers, and
+ * reads them for those readers a few at a time.
+ * <p>
+ * The pages are read through SystemDefs.JavabaseBM under its lock; see
+ * btree.BTRangeSpliterator.
+ */
+public class HeapDirectory implements GlobalConst {
+
+	/**
+	 * @param heap
+	 *            an open heap file
+	 * @return the data pages of `heap' that hold at least one record, in
+	 *         directory order
+	 * @exception HFBufMgrException
+	 *                a directory page could not be pinned or unpinned
+	 * @exception InvalidTupleSizeException
+	 *                a directory record is not a DataPageInfo
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public static PageId[] dataPages(Heapfile heap) throws HFBufMgrException,
+			InvalidTupleSizeException, IOException {
+		ArrayList<PageId> pages = new ArrayList<PageId>();
+		PageId dirPageId = new PageId(heap._firstDirPageId.pid);
+		while (dirPageId.pid != INVALID_PAGE) {
+			HFPage dirPage = new HFPage();
+			pinPage(dirPageId, dirPage);
+			PageId next;
+			try {
+				for (RID rid = dirPage.firstRecord(); rid != null; rid = dirPage
+						.nextRecord(rid)) {
+					DataPageInfo info = new DataPageInfo(dirPage.getRecord(rid));
+					if (info.recct > 0)
+						pages.add(new PageId(info.pageId.pid));
+				}
+				next = dirPage.getNextPage();
+			} catch (InvalidSlotNumberException e) {
+				throw new InvalidTupleSizeException(e, "bad directory slot");
+			} finally {
+				unpinPage(dirPageId);
+			}
+			dirPageId = next;
+		}
+		return pages.toArray(new PageId[pages.size()]);
+	}
+
+	/**
+	 * copy pages `from' to `from + count - 1' of `pages' into `into', in one
+	 * trip through the lock, so that they are read one after the other and
+	 * none stays pinned while the copies are used.
+	 *
+	 * @param into
+	 *            buffers of MINIBASE_PAGESIZE bytes; null entries are
+	 *            allocated
+	 * @exception HFBufMgrException
+	 *                a page could not be pinned or unpinned
+	 */
+	public static void readPages(PageId[] pages, int from, int count,
+			byte[][] into) throws HFBufMgrException {
+		synchronized (SystemDefs.JavabaseBM) {
+			for (int i = 0; i < count; i++) {
+				Page page = new Page();
+				pinPage(pages[from + i], page);
+				if (into[i] == null)
+					into[i] = new byte[MINIBASE_PAGESIZE];
+				System.arraycopy(page.getpage(), 0, into[i], 0,
+						MINIBASE_PAGESIZE);
+				unpinPage(pages[from + i]);
+			}
+		}
+	}
+
+	private static void pinPage(PageId pageno, Page page)
+			throws HFBufMgrException {
+		try {
+			synchronized (SystemDefs.JavabaseBM) {
+				SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+			}
+		} catch (Exception e) {
+			throw new HFBufMgrException(e, "HeapDirectory.java: pinPage() failed");
+		}
+	}
+
+	private static void unpinPage(PageId pageno) throws HFBufMgrException {
+		try {
+			synchronized (SystemDefs.JavabaseBM) {
+				SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			}
+		} catch (Exception e) {
+			throw new HFBufMgrException(e,
+					"HeapDirectory.java: unpinPage() failed");
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package heap;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * HeapSpliterator scans the records of a heap file in directory order, like
+ * a Scan, but splits the data pages into disjoint runs, so that
+ * StreamSupport.stream(spliterator, true) reads and processes them on the
+ * fork/join pool.
+ * <p>
+ * The buffer manager is not thread safe, so pages are read under the lock
+ * of SystemDefs.JavabaseBM, WINDOW pages at a time: each trip through the
+ * lock reads the next pages of the run ahead of the records being handed
+ * out, copies them and unpins them again, and the records are handed to the
+ * stream from the copies outside of it. Nothing stays pinned between two
+ * calls, so a stream that stops early needs no closing.
+ * <p>
+ * Every record is handed out in the same Tuple object of the spliterator,
+ * which only holds it until the action returns; copy it (new
+ * Tuple(tuple)) to keep it. Call setHdr() on it before reading its fields.
+ */
+public class HeapSpliterator implements Spliterator<Tuple>, GlobalConst {
+
+	/* data pages read per trip through the lock */
+	private final static int WINDOW = 8;
+
+	private final PageId[] pages;
+	private int next; // first page not read yet
+	private final int end;
+
+	private final byte[][] window = new byte[WINDOW][];
+	private int windowPos; // next page of the window to scan
+	private int windowLen;
+
+	private final HFPage page = new HFPage();
+	private RID rid; // next record on page, null if there is none
+	private final Tuple tuple = new Tuple(new byte[0], 0, 0);
+
+	/**
+	 * @param heap
+	 *            an open heap file; it must not change during the scan
+	 * @exception HFBufMgrException
+	 *                a directory page could not be pinned or unpinned
+	 * @exception InvalidTupleSizeException
+	 *                a directory record is not a DataPageInfo
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public HeapSpliterator(Heapfile heap) throws HFBufMgrException,
+			InvalidTupleSizeException, IOException {
+		this(HeapDirectory.dataPages(heap), 0);
+	}
+
+	private HeapSpliterator(PageId[] pages, int first) {
+		this(pages, first, pages.length);
+	}
+
+	private HeapSpliterator(PageId[] pages, int first, int end) {
+		this.pages = pages;
+		this.next = first;
+		this.end = end;
+	}
+
+	public boolean tryAdvance(Consumer<? super Tuple> action) {
+		try {
+			while (rid == null) {
+				if (windowPos == windowLen) {
+					if (next == end)
+						return false;
+					windowLen = Math.min(WINDOW, end - next);
+					windowPos = 0;
+					HeapDirectory.readPages(pages, next, windowLen, window);
+					next += windowLen;
+				}
+				page.openHFpage(new Page(window[windowPos++]));
+				rid = page.firstRecord();
+			}
+			tuple.tupleInit(page.getHFpageArray(),
+					page.getSlotOffset(rid.slotNo),
+					page.getSlotLength(rid.slotNo));
+			rid = page.nextRecord(rid);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IllegalStateException("heap scan failed", e);
+		}
+		action.accept(tuple);
+		return true;
+	}
+
+	/**
+	 * Hand the first half of the pages not read yet to a new spliterator.
+	 * Only possible between two windows, as the pages of a window come
+	 * before them.
+	 */
+	public Spliterator<Tuple> trySplit() {
+		if (rid != null || windowPos < windowLen || end - next < 2)
+			return null;
+		int mid = (next + end) >>> 1;
+		HeapSpliterator prefix = new HeapSpliterator(pages, next, mid);
+		next = mid;
+		return prefix;
+	}
+
+	/** @return the data pages left, not the records */
+	public long estimateSize() {
+		return end - next + windowLen - windowPos;
+	}
+
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+}
@@ -0,0 +1,383 @@
+package heap;
+
+import java.io.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * MappedHeapfile is a Heapfile whose inserts and deletes find their pages in
+ * a FreeSpaceMap instead of walking the directory. Heapfile.insertRecord()
+ * reads DataPageInfo records from the first directory page on until one has
+ * room, so an insert into a file of n pages reads O(n) directory records;
+ * here it pins the data page the map picks and the directory page of its
+ * DataPageInfo, however large the file is.
+ * <p>
+ * The pages on disk are those of a Heapfile, and the free space the map is
+ * bucketed by is the availspace of the DataPageInfo records, which is kept
+ * up to date as before. The map is built from the directory when the file
+ * is opened, one read of the directory pages, so the file can be reopened
+ * as a Heapfile or a MappedHeapfile. Records must not be inserted or
+ * deleted through another Heapfile object of the same file while this one
+ * is open, as its map would not see the change.
+ * <p>
+ * insertRecords() inserts a batch of records page by page: it keeps the
+ * page it is filling pinned and updates its DataPageInfo once, when it
+ * moves on to the next page.
+ */
+public class MappedHeapfile extends Heapfile {
+
+	private final FreeSpaceMap map = new FreeSpaceMap();
+
+	/**
+	 * open the heap file `name', or create it if it does not exist; see
+	 * Heapfile(String).
+	 *
+	 * @exception HFException
+	 *                heapfile exception, or a directory record is not a
+	 *                DataPageInfo
+	 * @exception HFBufMgrException
+	 *                exception thrown from bufmgr layer
+	 * @exception HFDiskMgrException
+	 *                exception thrown from diskmgr layer
+	 * @exception IOException
+	 *                I/O errors
+	 */
+	public MappedHeapfile(String name) throws HFException, HFBufMgrException,
+			HFDiskMgrException, IOException {
+		super(name);
+		try {
+			load();
+		} catch (InvalidSlotNumberException e) {
+			throw new HFException(e, "bad directory slot");
+		} catch (InvalidTupleSizeException e) {
+			throw new HFException(e, "bad directory record");
+		}
+	}
+
+	/*
+	 * read every DataPageInfo into the map
+	 */
+	private void load() throws HFBufMgrException, InvalidSlotNumberException,
+			InvalidTupleSizeException, IOException {
+		map.clear();
+		PageId dirPageId = new PageId(_firstDirPageId.pid);
+		while (dirPageId.pid != INVALID_PAGE) {
+			HFPage dirPage = new HFPage();
+			pinPage(dirPageId, dirPage);
+			PageId next;
+			try {
+				for (RID rid = dirPage.firstRecord(); rid != null; rid = dirPage
+						.nextRecord(rid)) {
+					DataPageInfo info = new DataPageInfo(dirPage.getRecord(rid));
+					map.put(info.pageId.pid, new RID(new PageId(dirPageId.pid),
+							rid.slotNo), info.availspace);
+				}
+				map.dirRoom(dirPageId.pid,
+						dirPage.available_space() >= DataPageInfo.size);
+				map.lastDir = dirPageId.pid;
+				next = dirPage.getNextPage();
+			} finally {
+				unpinPage(dirPageId, false);
+			}
+			dirPageId = next;
+		}
+	}
+
+	/**
+	 * Insert record into file, return its Rid.
+	 *
+	 * @param recPtr
+	 *            pointer of the record
+	 * @return the rid of the record
+	 *
+	 * @exception InvalidSlotNumberException
+	 *                invalid slot number
+	 * @exception InvalidTupleSizeException
+	 *                invalid tuple size
+	 * @exception SpaceNotAvailableException
+	 *                no space left
+	 * @exception HFException
+	 *                heapfile exception
+	 * @exception HFBufMgrException
+	 *                exception thrown from bufmgr layer
+	 * @exception HFDiskMgrException
+	 *                exception thrown from diskmgr layer
+	 * @exception IOException
+	 *                I/O errors
+	 */
+	public RID insertRecord(byte[] recPtr) throws InvalidSlotNumberException,
+			InvalidTupleSizeException, SpaceNotAvailableException,
+			HFException, HFBufMgrException, HFDiskMgrException, IOException {
+		return insertRecords(new byte[][] { recPtr })[0];
+	}
+
+	/**
+	 * Insert records into file, filling one page after the other, see
+	 * insertRecord().
+	 *
+	 * @param recPtrs
+	 *            the records
+	 * @return the rids of the records, in the same order
+	 *
+	 * @exception SpaceNotAvailableException
+	 *                a record is too large for a page; none are inserted
+	 */
+	public RID[] insertRecords(byte[][] recPtrs)
+			throws InvalidSlotNumberException, InvalidTupleSizeException,
+			SpaceNotAvailableException, HFException, HFBufMgrException,
+			HFDiskMgrException, IOException {
+		for (byte[] recPtr : recPtrs)
+			if (recPtr.length > MINIBASE_PAGESIZE - HFPage.DPFIXED)
+				throw new SpaceNotAvailableException(null,
+						"no available space");
+
+		RID[] rids = new RID[recPtrs.length];
+		HFPage page = null;
+		PageId pageId = null;
+		int added = 0; // records inserted into page
+		try {
+			for (int i = 0; i < recPtrs.length; i++) {
+				RID rid = page == null ? null : page.insertRecord(recPtrs[i]);
+				if (rid == null) {
+					if (page != null) {
+						release(pageId, page, added);
+						page = null;
+					}
+					int pid = map.find(recPtrs[i].length);
+					pageId = pid == INVALID_PAGE ? newDataPage() : new PageId(
+							pid);
+					HFPage target = new HFPage();
+					pinPage(pageId, target);
+					page = target;
+					added = 0;
+					rid = page.insertRecord(recPtrs[i]);
+					if (rid == null)
+						throw new HFException(null, "no space to insert rec.");
+				}
+				added++;
+				rids[i] = rid;
+			}
+		} finally {
+			if (page != null)
+				release(pageId, page, added);
+		}
+		return rids;
+	}
+
+	/**
+	 * Delete record from file with given rid.
+	 *
+	 * @return true record deleted false:record not found
+	 * @exception InvalidSlotNumberException
+	 *                invalid slot number
+	 * @exception InvalidTupleSizeException
+	 *                invalid tuple size
+	 * @exception HFException
+	 *                heapfile exception
+	 * @exception HFBufMgrException
+	 *                exception thrown from bufmgr layer
+	 * @exception HFDiskMgrException
+	 *                exception thrown from diskmgr layer
+	 * @exception Exception
+	 *                other exception
+	 */
+	public boolean deleteRecord(RID rid) throws InvalidSlotNumberException,
+			InvalidTupleSizeException, HFException, HFBufMgrException,
+			HFDiskMgrException, Exception {
+		FreeSpaceMap.Entry entry = map.get(rid.pageNo.pid);
+		if (entry == null)
+			return false;
+
+		HFPage page = new HFPage();
+		pinPage(rid.pageNo, page);
+		int space;
+		try {
+			page.deleteRecord(rid);
+			space = page.available_space();
+		} finally {
+			unpinPage(rid.pageNo, true);
+		}
+
+		PageId dirPageId = entry.dirRid.pageNo;
+		HFPage dirPage = new HFPage();
+		pinPage(dirPageId, dirPage);
+		DataPageInfo info = new DataPageInfo(dirPage.returnRecord(entry.dirRid));
+		info.recct--;
+		info.availspace = space;
+		if (info.recct >= 1) {
+			info.flushToTuple();
+			unpinPage(dirPageId, true);
+			map.update(rid.pageNo.pid, space);
+			return true;
+		}
+
+		// the data page is empty: free it and drop its DataPageInfo
+		freePage(rid.pageNo);
+		map.remove(rid.pageNo.pid);
+		dirPage.deleteRecord(entry.dirRid);
+		PageId prevDirId = dirPage.getPrevPage();
+		if (!dirPage.empty() || prevDirId.pid == INVALID_PAGE) {
+			unpinPage(dirPageId, true);
+			map.dirRoom(dirPageId.pid, true);
+			return true;
+		}
+
+		// so is its directory page, and it is not the first one
+		PageId nextDirId = dirPage.getNextPage();
+		HFPage neighbour = new HFPage();
+		pinPage(prevDirId, neighbour);
+		neighbour.setNextPage(nextDirId);
+		unpinPage(prevDirId, true);
+		if (nextDirId.pid != INVALID_PAGE) {
+			pinPage(nextDirId, neighbour);
+			neighbour.setPrevPage(prevDirId);
+			unpinPage(nextDirId, true);
+		}
+		unpinPage(dirPageId, false);
+		freePage(dirPageId);
+		map.dirRoom(dirPageId.pid, false);
+		if (map.lastDir == dirPageId.pid)
+			map.lastDir = prevDirId.pid;
+		return true;
+	}
+
+	/**
+	 * Delete the file from the database, see Heapfile.deleteFile().
+	 */
+	public void deleteFile() throws InvalidSlotNumberException,
+			FileAlreadyDeletedException, InvalidTupleSizeException,
+			HFBufMgrException, HFDiskMgrException, IOException {
+		super.deleteFile();
+		map.clear();
+	}
+
+	/*
+	 * unpin a data page records were inserted into, and write its record
+	 * count and free space to its DataPageInfo and the map
+	 */
+	private void release(PageId pageId, HFPage page, int added)
+			throws InvalidSlotNumberException, InvalidTupleSizeException,
+			HFBufMgrException, IOException {
+		int space = page.available_space();
+		unpinPage(pageId, true);
+
+		RID dirRid = map.get(pageId.pid).dirRid;
+		HFPage dirPage = new HFPage();
+		pinPage(dirRid.pageNo, dirPage);
+		try {
+			DataPageInfo info = new DataPageInfo(dirPage.returnRecord(dirRid));
+			info.recct += added;
+			info.availspace = space;
+			info.flushToTuple();
+		} finally {
+			unpinPage(dirRid.pageNo, true);
+		}
+		map.update(pageId.pid, space);
+	}
+
+	/*
+	 * allocate an empty data page and add its DataPageInfo to a directory
+	 * page with room, or to a new one at the end of the directory
+	 */
+	private PageId newDataPage() throws HFException, HFBufMgrException,
+			InvalidSlotNumberException, InvalidTupleSizeException,
+			IOException {
+		int dirPid = map.roomyDir();
+		if (dirPid == INVALID_PAGE)
+			dirPid = newDirPage();
+
+		HFPage page = new HFPage();
+		PageId pageId = newPage(page);
+		page.init(pageId, page);
+		DataPageInfo info = new DataPageInfo();
+		info.pageId.pid = pageId.pid;
+		info.recct = 0;
+		info.availspace = page.available_space();
+		unpinPage(pageId, true);
+
+		PageId dirPageId = new PageId(dirPid);
+		HFPage dirPage = new HFPage();
+		pinPage(dirPageId, dirPage);
+		RID dirRid;
+		try {
+			dirRid = dirPage.insertRecord(info.convertToTuple()
+					.getTupleByteArray());
+			if (dirRid == null)
+				throw new HFException(null, "no space to insert rec.");
+			map.dirRoom(dirPid, dirPage.available_space() >= DataPageInfo.size);
+		} finally {
+			unpinPage(dirPageId, true);
+		}
+		map.put(pageId.pid, dirRid, info.availspace);
+		return pageId;
+	}
+
+	/*
+	 * link a new directory page after the last one
+	 */
+	private int newDirPage() throws HFBufMgrException, IOException {
+		HFPage dirPage = new HFPage();
+		PageId dirPageId = newPage(dirPage);
+		dirPage.init(dirPageId, dirPage);
+		dirPage.setNextPage(new PageId(INVALID_PAGE));
+		PageId lastDirId = new PageId(map.lastDir);
+		dirPage.setPrevPage(lastDirId);
+		unpinPage(dirPageId, true);
+
+		HFPage lastDir = new HFPage();
+		pinPage(lastDirId, lastDir);
+		lastDir.setNextPage(dirPageId);
+		unpinPage(lastDirId, true);
+
+		map.lastDir = dirPageId.pid;
+		map.dirRoom(dirPageId.pid, true);
+		return dirPageId.pid;
+	}
+
+	private static void pinPage(PageId pageno, Page page)
+			throws HFBufMgrException {
+		try {
+			synchronized (SystemDefs.JavabaseBM) {
+				SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+			}
+		} catch (Exception e) {
+			throw new HFBufMgrException(e,
+					"MappedHeapfile.java: pinPage() failed");
+		}
+	}
+
+	private static void unpinPage(PageId pageno, boolean dirty)
+			throws HFBufMgrException {
+		try {
+			synchronized (SystemDefs.JavabaseBM) {
+				SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+			}
+		} catch (Exception e) {
+			throw new HFBufMgrException(e,
+					"MappedHeapfile.java: unpinPage() failed");
+		}
+	}
+
+	private static PageId newPage(Page page) throws HFBufMgrException {
+		try {
+			synchronized (SystemDefs.JavabaseBM) {
+				return SystemDefs.JavabaseBM.newPage(page, 1);
+			}
+		} catch (Exception e) {
+			throw new HFBufMgrException(e,
+					"MappedHeapfile.java: newPage() failed");
+		}
+	}
+
+	private static void freePage(PageId pageno) throws HFBufMgrException {
+		try {
+			synchronized (SystemDefs.JavabaseBM) {
+				SystemDefs.JavabaseBM.freePage(pageno);
+			}
+		} catch (Exception e) {
+			throw new HFBufMgrException(e,
+					"MappedHeapfile.java: freePage() failed");
+		}
+	}
+}
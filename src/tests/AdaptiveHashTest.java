@@ -0,0 +1,161 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import btree.*;
+import global.*;
+
+/**
+ * Checks that equality scans of hot keys, which the adaptive hash of
+ * BTreeFile starts on the leaf it remembers, return the same entries as the
+ * tree while leaves are split, emptied and freed under them.
+ */
+class AdaptiveHashDriver extends TestDriver implements GlobalConst {
+
+	private final static int KEYS = 2000;
+
+	private BTreeFile file;
+	// key and slot of the entries in the index
+	private final ArrayList<int[]> live = new ArrayList<int[]>();
+	private int next; // slot of the next entry inserted
+	private final Random random = new Random(47);
+
+	AdaptiveHashDriver() {
+		super("adaptivehashtest");
+	}
+
+	protected String testName() {
+		return "Adaptive hash";
+	}
+
+	private void insert(int key) throws Exception {
+		file.insert(new IntegerKey(key), new RID(new PageId(next), next));
+		live.add(new int[] { key, next++ });
+	}
+
+	/* delete a random entry, naively or through a descending scan */
+	private void delete() throws Exception {
+		int[] entry = live.remove(random.nextInt(live.size()));
+		RID rid = new RID(new PageId(entry[1]), entry[1]);
+		if (random.nextBoolean()) {
+			file.Delete(new IntegerKey(entry[0]), rid);
+			return;
+		}
+		BTReverseFileScan scan = file.new_scan_desc(
+				new IntegerKey(entry[0]), new IntegerKey(entry[0]));
+		KeyDataEntry found;
+		while ((found = scan.get_next()) != null)
+			if (((LeafData) found.data).getData().slotNo == entry[1]) {
+				scan.delete_current();
+				break;
+			}
+		scan.DestroyBTreeFileScan();
+	}
+
+	/* whether the equality scan of `key' returns its live entries */
+	private boolean lookup(int key) throws Exception {
+		ArrayList<Integer> found = new ArrayList<Integer>();
+		BTFileScan scan = file.new_scan(new IntegerKey(key), new IntegerKey(
+				key));
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			if (((IntegerKey) entry.key).getKey() != key) {
+				System.err.println("*** key " + entry.key + " in the scan of "
+						+ key);
+				scan.DestroyBTreeFileScan();
+				return FAIL;
+			}
+			found.add(((LeafData) entry.data).getData().slotNo);
+		}
+		scan.DestroyBTreeFileScan();
+
+		ArrayList<Integer> expected = new ArrayList<Integer>();
+		for (int[] e : live)
+			if (e[0] == key)
+				expected.add(e[1]);
+		Collections.sort(expected);
+		Collections.sort(found);
+		if (!expected.equals(found)) {
+			System.err.println("*** key " + key + ": " + found.size()
+					+ " entries, not " + expected.size());
+			return FAIL;
+		}
+		return OK;
+	}
+
+	/**
+	 * Hot keys looked up between inserts that split their leaves, deletes
+	 * that empty them and a compaction that frees them.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: lookups while leaves change");
+		boolean status = OK;
+		try {
+			new SystemDefs(dbpath, 20000, 100, "Clock");
+			file = new BTreeFile("hashed", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			for (int i = 0; i < KEYS * 5; i++)
+				insert(random.nextInt(KEYS));
+
+			int before = pinned();
+			for (int round = 0; round < 20000 && status == OK; round++) {
+				// a few hot keys, among them the first and the last ones
+				int key = random.nextInt(4) == 0 ? random.nextInt(KEYS)
+						: random.nextInt(16) * (KEYS / 15);
+				status = lookup(key);
+				if (round % 3 == 0)
+					insert(random.nextInt(4) == 0 ? key : random.nextInt(KEYS));
+				else if (round % 3 == 1 && !live.isEmpty())
+					delete();
+			}
+			// compaction frees the leaves the hot keys were found on
+			BTCompactor compactor = file.new_compactor(0.9);
+			while (!compactor.step(1000))
+				;
+			for (int round = 0; round < 2000 && status == OK; round++) {
+				if (round % 2 == 0)
+					delete();
+				status = lookup(random.nextInt(16) * (KEYS / 15));
+			}
+			// empty the index and fill it again
+			while (!live.isEmpty() && status == OK) {
+				delete();
+				if (live.size() % 97 == 0)
+					status = lookup(live.isEmpty() ? 0 : live.get(0)[0]);
+			}
+			for (int i = 0; i < KEYS && status == OK; i++) {
+				insert(i % 16 * (KEYS / 15));
+				status = lookup(random.nextInt(16) * (KEYS / 15));
+			}
+
+			if (status == OK && file.getStats().getAdaptiveHashHits() == 0) {
+				System.err.println("*** no lookup used the adaptive hash");
+				status = FAIL;
+			}
+			if (pinned() != before) {
+				System.err.println("*** " + (pinned() - before)
+						+ " pages left pinned");
+				status = FAIL;
+			}
+			file.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+}
+
+public class AdaptiveHashTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+		AdaptiveHashDriver test = new AdaptiveHashDriver();
+		if (!test.runTests())
+			Runtime.getRuntime().exit(1);
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,226 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import btree.*;
+import global.*;
+
+/**
+ * Checks BTreeAnalyzer: analyze() counts the entries a full scan returns
+ * and pages that agree with the index entries above them, and the
+ * estimates of sample() come close to those counts.
+ */
+class AnalyzerDriver extends TestDriver implements GlobalConst {
+
+	private final static int KEYS = 30000;
+
+	private BTreeFile file;
+	private final Random random = new Random(34);
+
+	AnalyzerDriver() {
+		super("analyzertest");
+	}
+
+	protected String testName() {
+		return "Analyzer";
+	}
+
+	/* number of entries a full scan returns */
+	private int count() throws Exception {
+		BTFileScan scan = file.new_scan(null, null);
+		int entries = 0;
+		while (scan.get_next() != null)
+			entries++;
+		scan.DestroyBTreeFileScan();
+		return entries;
+	}
+
+	/*
+	 * whether the exact statistics count `keys' entries, every index level
+	 * has one page below it per entry and one more per page, and the fill
+	 * histogram covers every leaf
+	 */
+	private boolean consistent(BTreeStatistics stats, int keys) {
+		if (!stats.isExact() || stats.getKeys() != keys) {
+			System.err.println("*** " + stats.getKeys() + " keys, not " + keys);
+			return FAIL;
+		}
+		for (int level = 0; level + 1 < stats.getHeight(); level++) {
+			if (stats.getPages(level + 1) != stats.getPages(level)
+					+ stats.getEntries(level)) {
+				System.err.println("*** " + stats.getPages(level + 1)
+						+ " pages on level " + (level + 1) + " under "
+						+ stats.getPages(level) + " pages of "
+						+ stats.getEntries(level) + " entries");
+				return FAIL;
+			}
+		}
+		double leaves = 0;
+		for (double fraction : stats.getFillHistogram())
+			leaves += fraction;
+		if (stats.getHeight() > 0 && Math.abs(leaves - 1) > 1e-9) {
+			System.err.println("*** fill histogram adds up to " + leaves);
+			return FAIL;
+		}
+		return OK;
+	}
+
+	/* whether `estimate' is within `error' of `exact' */
+	private static boolean close(String what, double estimate, double exact,
+			double error) {
+		if (Math.abs(estimate - exact) > error * exact) {
+			System.err.println("*** " + what + " estimated at " + estimate
+					+ ", not about " + exact);
+			return FAIL;
+		}
+		return OK;
+	}
+
+	/**
+	 * An empty index and an index of one leaf, where every sample sees all
+	 * of the tree and the estimates are exact.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: small trees");
+		boolean status = OK;
+		try {
+			new SystemDefs(dbpath, 20000, 100, "Clock");
+			file = new BTreeFile("analyzed", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			int before = pinned();
+			BTreeAnalyzer analyzer = file.new_analyzer(1);
+			BTreeStatistics stats = analyzer.analyze();
+			analyzer.sample(10);
+			if (stats.getHeight() != 0 || stats.getKeys() != 0
+					|| analyzer.estimate().getKeys() != 0) {
+				System.err.println("*** empty index: " + stats);
+				status = FAIL;
+			}
+
+			for (int i = 0; i < 10; i++)
+				file.insert(new IntegerKey(i), new RID(new PageId(i), i));
+			stats = analyzer.analyze();
+			if (status == OK)
+				status = consistent(stats, 10);
+			analyzer.reset();
+			analyzer.sample(20);
+			BTreeStatistics estimate = analyzer.estimate();
+			if (stats.getHeight() != 1 || stats.getLeafPages() != 1
+					|| estimate.getKeys() != 10 || estimate.getLeafPages() != 1
+					|| estimate.isExact() || estimate.getProbes() != 20) {
+				System.err.println("*** one leaf: " + stats + ", sampled "
+						+ estimate);
+				status = FAIL;
+			}
+			if (pinned() != before) {
+				System.err.println("*** " + (pinned() - before)
+						+ " pages left pinned");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * A tree of several levels: the exact counts agree with a scan and with
+	 * each other, before and after it grows.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: analyze against a scan");
+		boolean status = OK;
+		try {
+			for (int i = 10; i < KEYS; i++)
+				file.insert(new IntegerKey(random.nextInt(KEYS)), new RID(
+						new PageId(i), i));
+			BTreeAnalyzer analyzer = file.new_analyzer(2);
+			BTreeStatistics stats = analyzer.analyze();
+			status = consistent(stats, count());
+			if (status == OK && stats.getHeight() < 2) {
+				System.err.println("*** " + KEYS + " keys on one level");
+				status = FAIL;
+			}
+
+			// ascending keys, which split the last leaf over and over
+			for (int i = 0; i < KEYS / 2; i++)
+				file.insert(new IntegerKey(KEYS + i), new RID(new PageId(i), i));
+			if (status == OK)
+				status = consistent(analyzer.analyze(), count());
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * The estimates of a few thousand random descents come within 5% of
+	 * the exact counts, and reset() starts them over.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: samples against analyze");
+		boolean status = OK;
+		try {
+			int before = pinned();
+			BTreeAnalyzer analyzer = file.new_analyzer(3);
+			BTreeStatistics exact = analyzer.analyze();
+			for (int i = 0; i < 20; i++)
+				analyzer.sample(100);
+			BTreeStatistics estimate = analyzer.estimate();
+			// every descent sees the root, so the level below it is exact
+			if (estimate.isExact() || estimate.getProbes() != 2000
+					|| estimate.getHeight() != exact.getHeight()
+					|| estimate.getPages(1) != exact.getPages(1)) {
+				System.err.println("*** sampled " + estimate);
+				status = FAIL;
+			}
+			if (status == OK)
+				status = close("keys", estimate.getKeys(), exact.getKeys(), 0.05);
+			if (status == OK)
+				status = close("leaf pages", estimate.getLeafPages(),
+						exact.getLeafPages(), 0.05);
+			if (status == OK)
+				status = close("mean leaf fill", estimate.getMeanLeafFill(),
+						exact.getMeanLeafFill(), 0.05);
+
+			analyzer.reset();
+			if (analyzer.estimate().getProbes() != 0
+					|| analyzer.estimate().getHeight() != 0) {
+				System.err.println("*** samples left after reset()");
+				status = FAIL;
+			}
+			if (pinned() != before) {
+				System.err.println("*** " + (pinned() - before)
+						+ " pages left pinned");
+				status = FAIL;
+			}
+			file.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class AnalyzerTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+		AnalyzerDriver test = new AnalyzerDriver();
+		if (!test.runTests())
+			Runtime.getRuntime().exit(1);
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,326 @@
+package tests;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+import btree.*;
+
+/**
+ * Benchmark driver for BTreeFile. For every combination of key distribution,
+ * tree size and buffer pool size it builds a fresh index and times insert,
+ * exact-match new_scan, range new_scan and Delete. Each result line reports
+ * ops/s, bytes allocated per op, buffer pool pins per op and the buffer pool
+ * hit ratio, taken from the BufMgrStats of an InstrumentedBufMgr.
+ * <p>
+ * There is no build system in this tree to pull in JMH, so this is a plain
+ * driver in the style of BTTest. Every configuration is run -warmup times
+ * with the results dropped, then -iterations times measured, each time on a
+ * fresh index. A line gives the mean of the measured runs, and for ops/s
+ * also the sample standard deviation in percent of the mean, so a change
+ * can be told from noise.
+ * <p>
+ * Usage: java tests.BTBench [-sizes 1000,100000] [-dists seq,uniform,zipf,string]
+ * [-pools 64,20000] [-lookups 100000] [-scans 1000] [-width 100]
+ * [-compress true] [-warmup 1] [-iterations 5]
+ * <p>
+ * With -compress true, integer leaves are stored encoded by BTLeafCodec,
+ * which adds the encoding and decoding to the disk times; DB still reads
+ * and writes whole pages.
+ * <p>
+ * Sizes run up to 10^7 if the machine has the disk for it (about 40 bytes
+ * of DB file per integer key).
+ */
+class BenchDriver implements GlobalConst {
+
+	int[] sizes = { 1000, 10000, 100000 };
+	String[] dists = { "seq", "uniform", "zipf", "string" };
+	int[] pools = { 64, 20000 };
+	int lookups = 100000;
+	int scans = 1000;
+	int width = 100;
+	boolean compress = false;
+	int warmup = 1;
+	int iterations = 5;
+
+	private final static String[] OPS = { "insert", "lookup", "scan",
+			"delete" };
+
+	private String dbpath;
+
+	public void runTests() throws Exception {
+		System.out.println(String.format(
+				"%-8s %9s %6s %-7s %9s %12s %7s %10s %9s %7s", "dist", "keys",
+				"pool", "op", "ops", "ops/s", "+-%", "B/op", "pins/op", "hit%"));
+
+		for (String dist : dists)
+			for (int size : sizes)
+				for (int pool : pools) {
+					for (int i = 0; i < warmup; i++)
+						runOne(dist, size, pool);
+					double[][][] runs = new double[iterations][][];
+					for (int i = 0; i < iterations; i++)
+						runs[i] = runOne(dist, size, pool);
+					report(dist, size, pool, runs);
+				}
+	}
+
+	/* one line per op: the means over the runs, and the spread of ops/s */
+	private void report(String dist, int n, int pool, double[][][] runs) {
+		for (int op = 0; op < OPS.length; op++) {
+			double[] mean = new double[Meter.VALUES];
+			for (double[][] run : runs)
+				for (int v = 0; v < Meter.VALUES; v++)
+					mean[v] += run[op][v] / runs.length;
+			double squares = 0;
+			for (double[][] run : runs)
+				squares += (run[op][Meter.RATE] - mean[Meter.RATE])
+						* (run[op][Meter.RATE] - mean[Meter.RATE]);
+			double sd = runs.length < 2 ? 0 : Math.sqrt(squares
+					/ (runs.length - 1));
+			System.out.println(String.format(
+					"%-8s %9d %6d %-7s %9.0f %12.0f %7.1f %10.0f %9.2f %7.2f",
+					dist, n, pool, OPS[op], mean[Meter.OPS], mean[Meter.RATE],
+					100 * sd / mean[Meter.RATE], mean[Meter.BYTES],
+					mean[Meter.PINS], mean[Meter.HITS]));
+		}
+	}
+
+	/* build and run one index; the values of every op, see Meter */
+	private double[][] runOne(String dist, int n, int pool) throws Exception {
+		double[][] results = new double[OPS.length][];
+		Random random = new Random(42);
+		dbpath = "/tmp/BTBENCH" + System.getProperty("user.name") + n
+				+ ".minibase-db";
+		new File(dbpath).delete();
+
+		// ~40 bytes of leaf and index page per entry, plus slack
+		int dbpages = Math.max(2000, (int) ((long) n * 40 / MINIBASE_PAGESIZE)
+				+ 1000);
+		new SystemDefs(dbpath, dbpages, pool, "Clock");
+		if (compress)
+			CompressedDB.install(new BTLeafCodec());
+		BufMgrStats bm = InstrumentedBufMgr.install("Clock");
+
+		boolean strings = dist.equals("string");
+		BTreeFile file = new BTreeFile("BENCH", strings ? AttrType.attrString
+				: AttrType.attrInteger, strings ? 20 : 4,
+				DeleteFashion.NAIVE_DELETE);
+
+		int[] values = keys(dist, n, random);
+		KeyClass[] keys = new KeyClass[n];
+		for (int i = 0; i < n; i++)
+			keys[i] = strings ? new StringKey(String.format("k%010d",
+					values[i])) : new IntegerKey(values[i]);
+
+		// insert
+		Meter m = new Meter(bm);
+		for (int i = 0; i < n; i++)
+			file.insert(keys[i], new RID(new PageId(i), i));
+		results[0] = m.stop(n);
+
+		// exact match scans on keys that are in the tree
+		int l = Math.min(lookups, n);
+		int[] picks = new int[l];
+		for (int i = 0; i < l; i++)
+			picks[i] = random.nextInt(n);
+		m = new Meter(bm);
+		for (int i = 0; i < l; i++) {
+			BTFileScan scan = file.new_scan(keys[picks[i]], keys[picks[i]]);
+			while (scan.get_next() != null)
+				;
+			scan.DestroyBTreeFileScan();
+		}
+		results[1] = m.stop(l);
+
+		// range scans of about `width' keys
+		KeyClass[] sorted = keys.clone();
+		sortKeys(sorted, strings);
+		m = new Meter(bm);
+		for (int i = 0; i < scans; i++) {
+			int lo = random.nextInt(n);
+			int hi = Math.min(n - 1, lo + width - 1);
+			BTFileScan scan = file.new_scan(sorted[lo], sorted[hi]);
+			while (scan.get_next() != null)
+				;
+			scan.DestroyBTreeFileScan();
+		}
+		results[2] = m.stop(scans);
+
+		// delete
+		int d = Math.min(lookups, n);
+		m = new Meter(bm);
+		for (int i = 0; i < d; i++)
+			file.Delete(keys[i], new RID(new PageId(i), i));
+		results[3] = m.stop(d);
+
+		file.close();
+		SystemDefs.JavabaseDB.DBDestroy();
+		return results;
+	}
+
+	private int[] keys(String dist, int n, Random random) {
+		int[] values = new int[n];
+		if (dist.equals("seq")) {
+			for (int i = 0; i < n; i++)
+				values[i] = i;
+		} else if (dist.equals("zipf")) {
+			Zipf zipf = new Zipf(n, 0.99, random);
+			for (int i = 0; i < n; i++)
+				values[i] = zipf.next();
+		} else { // uniform, string
+			for (int i = 0; i < n; i++)
+				values[i] = random.nextInt(Integer.MAX_VALUE);
+		}
+		return values;
+	}
+
+	private void sortKeys(KeyClass[] keys, final boolean strings) {
+		Arrays.sort(keys, new Comparator<KeyClass>() {
+			public int compare(KeyClass a, KeyClass b) {
+				if (strings)
+					return ((StringKey) a).getKey().compareTo(
+							((StringKey) b).getKey());
+				return ((IntegerKey) a).getKey().compareTo(
+						((IntegerKey) b).getKey());
+			}
+		});
+	}
+
+	/**
+	 * Wall time, allocated bytes and buffer pool activity between construction
+	 * and stop().
+	 */
+	static class Meter {
+		/* what stop() returns, by index */
+		final static int OPS = 0;
+		final static int RATE = 1; // ops/s
+		final static int BYTES = 2; // allocated per op
+		final static int PINS = 3; // per op
+		final static int HITS = 4; // percent of the pins
+		final static int VALUES = 5;
+
+		private final BufMgrStats bm;
+		private final long start;
+		private final long allocStart;
+		private final BufMgrStats.Snapshot pinStart;
+
+		Meter(BufMgrStats bm) {
+			this.bm = bm;
+			pinStart = bm.snapshot();
+			allocStart = allocated();
+			start = System.nanoTime();
+		}
+
+		double[] stop(int ops) {
+			long nanos = System.nanoTime() - start;
+			long bytes = allocated() - allocStart;
+			BufMgrStats.Snapshot now = bm.snapshot();
+			long pins = now.pins - pinStart.pins;
+			long hits = now.hits - pinStart.hits;
+			long lookups = hits + now.misses - pinStart.misses;
+			double[] values = new double[VALUES];
+			values[OPS] = ops;
+			values[RATE] = ops * 1e9 / nanos;
+			values[BYTES] = bytes < 0 ? Double.NaN : (double) bytes / ops;
+			values[PINS] = (double) pins / ops;
+			values[HITS] = lookups == 0 ? 100.0 : 100.0 * hits / lookups;
+			return values;
+		}
+
+		private static long allocated() {
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			if (threads instanceof com.sun.management.ThreadMXBean)
+				return ((com.sun.management.ThreadMXBean) threads)
+						.getThreadAllocatedBytes(Thread.currentThread().getId());
+			return -1;
+		}
+	}
+
+	/**
+	 * Zipfian integers in [0, n), as in Gray et al., "Quickly generating
+	 * billion-record synthetic databases".
+	 */
+	static class Zipf {
+		private final int n;
+		private final double theta;
+		private final double alpha;
+		private final double zetan;
+		private final double eta;
+		private final Random random;
+
+		Zipf(int n, double theta, Random random) {
+			this.n = n;
+			this.theta = theta;
+			this.random = random;
+			double zeta2 = 1 + Math.pow(0.5, theta);
+			double z = 0;
+			for (int i = 1; i <= n; i++)
+				z += 1 / Math.pow(i, theta);
+			zetan = z;
+			alpha = 1 / (1 - theta);
+			eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetan);
+		}
+
+		int next() {
+			double u = random.nextDouble();
+			double uz = u * zetan;
+			if (uz < 1)
+				return 0;
+			if (uz < 1 + Math.pow(0.5, theta))
+				return 1;
+			return (int) (n * Math.pow(eta * u - eta + 1, alpha));
+		}
+	}
+}
+
+public class BTBench implements GlobalConst {
+
+	private static int[] ints(String s) {
+		String[] parts = s.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			values[i] = Integer.parseInt(parts[i].trim());
+		return values;
+	}
+
+	public static void main(String[] argvs) {
+
+		try {
+			BenchDriver bench = new BenchDriver();
+			for (int i = 0; i + 1 < argvs.length; i += 2) {
+				String arg = argvs[i + 1];
+				if (argvs[i].equals("-sizes"))
+					bench.sizes = ints(arg);
+				else if (argvs[i].equals("-dists"))
+					bench.dists = arg.split(",");
+				else if (argvs[i].equals("-pools"))
+					bench.pools = ints(arg);
+				else if (argvs[i].equals("-lookups"))
+					bench.lookups = Integer.parseInt(arg);
+				else if (argvs[i].equals("-scans"))
+					bench.scans = Integer.parseInt(arg);
+				else if (argvs[i].equals("-width"))
+					bench.width = Integer.parseInt(arg);
+				else if (argvs[i].equals("-compress"))
+					bench.compress = Boolean.parseBoolean(arg);
+				else if (argvs[i].equals("-warmup"))
+					bench.warmup = Integer.parseInt(arg);
+				else if (argvs[i].equals("-iterations"))
+					bench.iterations = Math.max(1, Integer.parseInt(arg));
+				else
+					throw new IllegalArgumentException("unknown option "
+							+ argvs[i]);
+			}
+			bench.runTests();
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during btree benchmark:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+
+}
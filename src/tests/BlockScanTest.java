@@ -0,0 +1,208 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import btree.*;
+import global.*;
+
+/**
+ * Checks BTFileBlockScan, which decodes the entries of a leaf straight out
+ * of the buffer frame, against BTFileScan: the same keys and rids in the
+ * same order over every kind of range, and no page left pinned.
+ */
+class BlockScanDriver extends TestDriver implements GlobalConst {
+
+	private final static int KEYS = 20000;
+
+	private BTreeFile file;
+
+	BlockScanDriver() {
+		super("blockscantest");
+	}
+
+	protected String testName() {
+		return "Block scan";
+	}
+
+	private static IntegerKey key(Integer key) {
+		return key == null ? null : new IntegerKey(key);
+	}
+
+	/* the entries of [lo, hi] as returned by new_scan, key/page/slot */
+	private ArrayList<String> expected(Integer lo, Integer hi)
+			throws Exception {
+		ArrayList<String> entries = new ArrayList<String>();
+		BTFileScan scan = file.new_scan(key(lo), key(hi));
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			RID rid = ((LeafData) entry.data).getData();
+			entries.add(((IntegerKey) entry.key).getKey() + "/"
+					+ rid.pageNo.pid + "/" + rid.slotNo);
+		}
+		scan.DestroyBTreeFileScan();
+		return entries;
+	}
+
+	/* whether a block scan of [lo, hi] with arrays of `size' matches */
+	private boolean compare(Integer lo, Integer hi, int size) throws Exception {
+		int before = pinned();
+		ArrayList<String> found = new ArrayList<String>();
+		int[] keys = new int[size];
+		long[] rids = new long[size];
+		BTFileBlockScan scan = file.new_block_scan(key(lo), key(hi));
+		int n;
+		while ((n = scan.get_next_block(keys, rids)) > 0)
+			for (int i = 0; i < n; i++)
+				found.add(keys[i] + "/" + BTFileBlockScan.ridPageNo(rids[i])
+						+ "/" + BTFileBlockScan.ridSlotNo(rids[i]));
+		// drained, the scan holds no leaf any more
+		if (pinned() != before) {
+			System.err.println("*** [" + lo + ", " + hi + "]: "
+					+ (pinned() - before) + " pages left pinned");
+			return FAIL;
+		}
+		scan.DestroyBTFileBlockScan();
+
+		ArrayList<String> expected = expected(lo, hi);
+		if (!expected.equals(found)) {
+			System.err.println("*** [" + lo + ", " + hi + "] in blocks of "
+					+ size + ": " + found.size() + " entries, not "
+					+ expected.size() + " or not in scan order");
+			return FAIL;
+		}
+		return OK;
+	}
+
+	/**
+	 * Full, bounded, one-key, empty and inverted ranges, with arrays that
+	 * hold a whole leaf and arrays that do not, return what new_scan does.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: blocks against new_scan");
+		boolean status = OK;
+		try {
+			new SystemDefs(dbpath, 20000, 100, "Clock");
+			file = new BTreeFile("blocks", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			Random random = new Random(27);
+			for (int i = 0; i < KEYS; i++)
+				// rids of any sign, to check the decoding of both halves
+				file.insert(new IntegerKey(random.nextInt(KEYS / 2) - KEYS
+						/ 4), new RID(new PageId(random.nextInt()), random
+						.nextInt()));
+
+			Integer[][] ranges = { { null, null }, { -100, 100 },
+					{ null, 0 }, { 0, null }, { 17, 17 }, { KEYS, null },
+					{ null, -KEYS }, { 100, 50 }, { -KEYS, KEYS } };
+			int[] sizes = { 1000, 7, 1 };
+			for (Integer[] range : ranges)
+				for (int size : sizes)
+					if (status == OK)
+						status = compare(range[0], range[1], size);
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * A scan given up half way unpins its leaf, a scan of an empty index
+	 * pins nothing, and only integer keys are accepted.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: early close and errors");
+		boolean status = OK;
+		try {
+			int before = pinned();
+			BTFileBlockScan scan = file.new_block_scan(null, null);
+			int[] keys = new int[10];
+			long[] rids = new long[10];
+			if (scan.get_next_block(keys, rids) != 10) {
+				System.err.println("*** first block not full");
+				status = FAIL;
+			}
+			scan.DestroyBTFileBlockScan();
+			scan.DestroyBTFileBlockScan();
+			if (pinned() != before) {
+				System.err.println("*** " + (pinned() - before)
+						+ " pages left pinned by a closed scan");
+				status = FAIL;
+			}
+
+			try {
+				file.new_block_scan(new StringKey("a"), null);
+				System.err.println("*** a string bound was accepted");
+				status = FAIL;
+			} catch (KeyNotMatchException e) {
+			}
+			BTreeFile strings = new BTreeFile("strings",
+					AttrType.attrString, 20, DeleteFashion.NAIVE_DELETE);
+			strings.insert(new StringKey("a"), new RID(new PageId(1), 1));
+			try {
+				strings.new_block_scan(null, null);
+				System.err.println("*** a string index was accepted");
+				status = FAIL;
+			} catch (KeyNotMatchException e) {
+			}
+			strings.close();
+
+			BTreeFile empty = new BTreeFile("empty", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			before = pinned(); // its header page is pinned
+			scan = empty.new_block_scan(null, null);
+			if (scan.get_next_block(keys, rids) != 0 || pinned() != before) {
+				System.err.println("*** an empty index returned entries");
+				status = FAIL;
+			}
+			scan.DestroyBTFileBlockScan();
+			empty.close();
+			file.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * packRid() keeps both halves of a rid, whatever their sign.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: packed rids");
+		boolean status = OK;
+		int[] values = { 0, 1, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 65536 };
+		for (int page : values)
+			for (int slot : values) {
+				long rid = BTFileBlockScan.packRid(page, slot);
+				if (BTFileBlockScan.ridPageNo(rid) != page
+						|| BTFileBlockScan.ridSlotNo(rid) != slot) {
+					System.err.println("*** " + page + "/" + slot
+							+ " unpacked as " + BTFileBlockScan.ridPageNo(rid)
+							+ "/" + BTFileBlockScan.ridSlotNo(rid));
+					status = FAIL;
+				}
+			}
+
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class BlockScanTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+		BlockScanDriver test = new BlockScanDriver();
+		if (!test.runTests())
+			Runtime.getRuntime().exit(1);
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,168 @@
+package tests;
+
+import java.util.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * Checks the counters of InstrumentedBufMgr against the disk traffic under
+ * the Clock replacer: misses are the pages read, evictions the pages loaded
+ * into a full pool, write-backs the dirty pages written by them, and a
+ * frame whose page was freed is reused without an eviction.
+ */
+class BufMgrStatsDriver extends TestDriver implements GlobalConst {
+
+	private final static int FRAMES = 20;
+	private final static int PAGES = 3 * FRAMES;
+
+	private BufMgrStats stats;
+	// the data pages, in the order they were allocated
+	private final ArrayList<PageId> pages = new ArrayList<PageId>();
+
+	BufMgrStatsDriver() {
+		super("bufmgrstatstest");
+	}
+
+	protected String testName() {
+		return "Buffer manager statistics";
+	}
+
+	/* pin and unpin the pages from `from' to `to' - 1, in order */
+	private void scan(int from, int to, boolean dirty) throws Exception {
+		for (int i = from; i < to; i++) {
+			SystemDefs.JavabaseBM.pinPage(pages.get(i), new Page(), false);
+			SystemDefs.JavabaseBM.unpinPage(pages.get(i), dirty);
+		}
+	}
+
+	/* whether a counter has the value the disk traffic gives */
+	private static boolean check(String what, long counted, long expected) {
+		if (counted != expected) {
+			System.err.println("*** " + counted + " " + what + ", not "
+					+ expected);
+			return FAIL;
+		}
+		return OK;
+	}
+
+	/**
+	 * Scans of three times as many pages as there are frames: every pin
+	 * misses and evicts a page, and the dirty pages evicted are the pages
+	 * written.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: scans larger than the pool");
+		boolean status = OK;
+		try {
+			new SystemDefs(dbpath, 2000, FRAMES, "Clock");
+			stats = InstrumentedBufMgr.install("Clock");
+			for (int i = 0; i < PAGES; i++) {
+				PageId pageId = SystemDefs.JavabaseBM.newPage(new Page(), 1);
+				SystemDefs.JavabaseBM.unpinPage(pageId, true);
+				pages.add(pageId);
+			}
+			SystemDefs.JavabaseBM.flushAllPages();
+
+			stats.reset();
+			scan(0, PAGES, false);
+			status &= check("pins", stats.getPins(), PAGES);
+			status &= check("misses", stats.getMisses(), stats.getDiskReads());
+			status &= check("misses", stats.getMisses(), PAGES);
+			status &= check("evictions", stats.getEvictions(), PAGES);
+			status &= check("write-backs", stats.getDirtyWriteBacks(), 0);
+
+			stats.reset();
+			scan(0, PAGES, true);
+			scan(0, PAGES, false);
+			status &= check("misses", stats.getMisses(), stats.getDiskReads());
+			status &= check("hits", stats.getHits(), 2 * PAGES
+					- stats.getDiskReads());
+			status &= check("evictions", stats.getEvictions(), stats
+					.getMisses());
+			status &= check("write-backs", stats.getDirtyWriteBacks(), stats
+					.getDiskWrites());
+			if (stats.getDirtyWriteBacks() < PAGES - FRAMES) {
+				System.err.println("*** only " + stats.getDirtyWriteBacks()
+						+ " dirty pages written back");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * With every other frame pinned, pages loaded after some pages are freed
+	 * go into their frames, although an unpinned page was used before them:
+	 * nothing is evicted, and that page is still in the pool.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: freed frames");
+		boolean status = OK;
+		try {
+			int freed = 5;
+			// the space map page, which freePage updates, stays in the pool
+			PageId map = new PageId(1);
+			PageId first = pages.get(0);
+			SystemDefs.JavabaseBM.pinPage(first, new Page(), false);
+			SystemDefs.JavabaseBM.pinPage(map, new Page(), false);
+			for (int i = 1; i < FRAMES - 1; i++)
+				SystemDefs.JavabaseBM.pinPage(pages.get(i), new Page(), false);
+			SystemDefs.JavabaseBM.unpinPage(first, false);
+			for (int i = FRAMES - 1 - freed; i < FRAMES - 1; i++) {
+				SystemDefs.JavabaseBM.unpinPage(pages.get(i), false);
+				SystemDefs.JavabaseBM.freePage(pages.get(i));
+			}
+
+			stats.reset();
+			for (int i = PAGES - freed; i < PAGES; i++)
+				SystemDefs.JavabaseBM.pinPage(pages.get(i), new Page(), false);
+			long reads = stats.getDiskReads();
+			SystemDefs.JavabaseBM.pinPage(first, new Page(), false);
+			if (stats.getDiskReads() != reads) {
+				System.err.println("*** the unpinned page was evicted");
+				status = FAIL;
+			}
+			SystemDefs.JavabaseBM.unpinPage(first, false);
+			for (int i = PAGES - freed; i < PAGES; i++)
+				SystemDefs.JavabaseBM.unpinPage(pages.get(i), false);
+			for (int i = 1; i < FRAMES - 1 - freed; i++)
+				SystemDefs.JavabaseBM.unpinPage(pages.get(i), false);
+			SystemDefs.JavabaseBM.unpinPage(map, false);
+
+			status &= check("misses", stats.getMisses(), freed);
+			status &= check("evictions", stats.getEvictions(), 0);
+			status &= check("hits", stats.getHits(), 1);
+			if (pinned() != 0) {
+				System.err.println("*** " + pinned() + " pages left pinned");
+				status = FAIL;
+			}
+			SystemDefs.JavabaseBM.flushAllPages();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+}
+
+public class BufMgrStatsTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+		BufMgrStatsDriver test = new BufMgrStatsDriver();
+		if (!test.runTests())
+			Runtime.getRuntime().exit(1);
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,263 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import btree.*;
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * Checks ChecksumDB: a database it wrote reads back cleanly after a
+ * restart, a page changed on disk behind its back is reported as a
+ * PageChecksumException, and the checksums of an older database of the
+ * same name are not applied to a new one. Checksums are only kept when a
+ * ChecksumDB is installed, not by the InstrumentedDB of the metrics, and
+ * DBDestroy removes them with the database.
+ */
+class ChecksumDriver extends TestDriver implements GlobalConst {
+
+	private final static int KEYS = 5000;
+
+	/*
+	 * the database is closed and opened again by name, so it has its own
+	 * file rather than dbpath, which runTests() removes in the background
+	 */
+	private final String path;
+	private PageId header; // header page of the index
+
+	ChecksumDriver() {
+		super("checksumtest");
+		path = dbpath + ".checked";
+	}
+
+	protected String testName() {
+		return "Page checksum";
+	}
+
+	/* create a new database of KEYS keys, with checksums if `checked' */
+	private void create(int seed, boolean checked) throws Exception {
+		new SystemDefs(path, 2000, 50, "Clock");
+		if (checked)
+			ChecksumDB.install();
+		fill(seed);
+		shutdown();
+	}
+
+	/* add an index of KEYS keys to the open database */
+	private void fill(int seed) throws Exception {
+		BTreeFile file = new BTreeFile("checked", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE);
+		Random random = new Random(seed);
+		for (int i = 0; i < KEYS; i++)
+			file.insert(new IntegerKey(random.nextInt()), new RID(new PageId(
+					i), i));
+		file.close();
+		header = SystemDefs.JavabaseDB.get_file_entry("checked");
+	}
+
+	/* open the database again, with an empty buffer pool */
+	private void restart() throws Exception {
+		new SystemDefs(path, 0, 50, "Clock");
+		ChecksumDB.install();
+	}
+
+	private void shutdown() throws Exception {
+		SystemDefs.JavabaseBM.flushAllPages();
+		SystemDefs.JavabaseDB.closeDB();
+	}
+
+	/* number of entries in the index */
+	private static int count() throws Exception {
+		BTreeFile file = new BTreeFile("checked");
+		BTFileScan scan = file.new_scan(null, null);
+		int entries = 0;
+		while (scan.get_next() != null)
+			entries++;
+		scan.DestroyBTreeFileScan();
+		file.close();
+		return entries;
+	}
+
+	private boolean countIs(int expected) throws Exception {
+		int entries = count();
+		if (entries != expected) {
+			System.err.println("*** " + entries + " entries, not " + expected);
+			return FAIL;
+		}
+		return OK;
+	}
+
+	private void cleanup() {
+		new File(path).delete();
+		new File(path + ".crc").delete();
+	}
+
+	/**
+	 * An index written through a ChecksumDB reads back after a restart.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: read back after a restart");
+		boolean status = OK;
+		try {
+			cleanup();
+			create(39, true);
+			restart();
+			status = countIs(KEYS);
+			shutdown();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * One bit flipped in the header page of the index on disk makes
+	 * read_page of that page fail with a PageChecksumException; the other
+	 * pages still read.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: a corrupt page is reported");
+		boolean status = OK;
+		try {
+			RandomAccessFile file = new RandomAccessFile(path, "rw");
+			long offset = (long) header.pid * MINIBASE_PAGESIZE
+					+ MINIBASE_PAGESIZE / 2;
+			file.seek(offset);
+			int b = file.read();
+			file.seek(offset);
+			file.write(b ^ 0x10);
+			file.close();
+
+			restart();
+			try {
+				SystemDefs.JavabaseDB.read_page(header, new Page());
+				System.err.println("*** the corrupt page was read");
+				status = FAIL;
+			} catch (PageChecksumException e) {
+			}
+			SystemDefs.JavabaseDB.read_page(new PageId(0), new Page());
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * A database written without checksums in the place of one with them is
+	 * not checked against the checksums the old one left behind.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: checksums of an older database");
+		boolean status = OK;
+		try {
+			new File(path).delete();
+			create(3, false);
+			restart();
+			status = countIs(KEYS);
+			shutdown();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		cleanup();
+
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * The metrics leave the pages as a plain DB writes them: a database
+	 * written with metrics on, then changed without them, reads back with
+	 * them on again, and no checksum file is made.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: metrics keep the database plain");
+		boolean status = OK;
+		try {
+			cleanup();
+			new SystemDefs(path, 2000, 50, "Clock");
+			InstrumentedBufMgr.install("Clock");
+			fill(4);
+			shutdown();
+
+			new SystemDefs(path, 0, 50, "Clock");
+			BTreeFile file = new BTreeFile("checked");
+			for (int i = 0; i < KEYS; i++)
+				file.insert(new IntegerKey(i), new RID(new PageId(i), i));
+			file.close();
+			shutdown();
+
+			new SystemDefs(path, 0, 50, "Clock");
+			InstrumentedBufMgr.install("Clock");
+			status = countIs(2 * KEYS);
+			shutdown();
+			if (new File(path + ".crc").exists()) {
+				System.err.println("*** checksums kept without a ChecksumDB");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		cleanup();
+
+		if (status == OK)
+			System.out.println("  Test 4 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * A ChecksumDB under the metrics still stamps the pages, and DBDestroy
+	 * removes the checksum file along with the database.
+	 */
+	protected boolean test5() {
+		System.out.println("\n  Test 5: destroy");
+		boolean status = OK;
+		try {
+			new SystemDefs(path, 2000, 50, "Clock");
+			ChecksumDB.install();
+			InstrumentedBufMgr.install("Clock");
+			fill(5);
+			SystemDefs.JavabaseBM.flushAllPages();
+			if (new File(path + ".crc").length() <= 8) {
+				System.err.println("*** no checksums under the metrics");
+				status = FAIL;
+			}
+			SystemDefs.JavabaseDB.DBDestroy();
+			if (new File(path).exists() || new File(path + ".crc").exists()) {
+				System.err.println("*** files left after DBDestroy");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		cleanup();
+
+		if (status == OK)
+			System.out.println("  Test 5 completed successfully.");
+		return status;
+	}
+}
+
+public class ChecksumTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+		ChecksumDriver test = new ChecksumDriver();
+		if (!test.runTests())
+			Runtime.getRuntime().exit(1);
+		Runtime.getRuntime().exit(0);
+	}
+}
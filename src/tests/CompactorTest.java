@@ -0,0 +1,244 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import btree.*;
+import global.*;
+
+/**
+ * Checks BTCompactor: the compacted index holds the same entries in fewer
+ * leaves, also when entries are inserted and deleted between its steps, and
+ * an aborted compaction leaves the index as it was.
+ */
+class CompactorDriver extends TestDriver implements GlobalConst {
+
+	private final static int KEYS = 20000;
+
+	private BTreeFile file;
+	private final Random random = new Random(35);
+	// key and slot of the entries in the index
+	private final ArrayList<int[]> live = new ArrayList<int[]>();
+	private int next; // slot of the next entry inserted
+
+	CompactorDriver() {
+		super("compactortest");
+	}
+
+	protected String testName() {
+		return "Compaction";
+	}
+
+	private void insert() throws Exception {
+		int key = random.nextInt(KEYS);
+		file.insert(new IntegerKey(key), new RID(new PageId(next), next));
+		live.add(new int[] { key, next++ });
+	}
+
+	private boolean delete() throws Exception {
+		int[] entry = live.remove(random.nextInt(live.size()));
+		if (!file.Delete(new IntegerKey(entry[0]), new RID(new PageId(
+				entry[1]), entry[1]))) {
+			System.err.println("*** " + entry[0] + "/" + entry[1]
+					+ " could not be deleted");
+			return FAIL;
+		}
+		return OK;
+	}
+
+	/* delete the last entry <= a random key through a descending scan */
+	private void deleteDescending() throws Exception {
+		BTReverseFileScan scan = file.new_scan_desc(null, new IntegerKey(
+				random.nextInt(KEYS)));
+		KeyDataEntry entry = scan.get_next();
+		if (entry != null) {
+			scan.delete_current();
+			int key = ((IntegerKey) entry.key).getKey();
+			int slot = ((LeafData) entry.data).getData().slotNo;
+			for (int i = 0; i < live.size(); i++) {
+				if (live.get(i)[0] == key && live.get(i)[1] == slot) {
+					live.remove(i);
+					break;
+				}
+			}
+		}
+		scan.DestroyBTreeFileScan();
+	}
+
+	/* whether a full scan returns the live entries, in key order */
+	private boolean verify() throws Exception {
+		ArrayList<String> expected = new ArrayList<String>();
+		for (int[] entry : live)
+			expected.add(entry[0] + "/" + entry[1]);
+
+		ArrayList<String> found = new ArrayList<String>();
+		BTFileScan scan = file.new_scan(null, null);
+		KeyDataEntry entry;
+		int prev = Integer.MIN_VALUE;
+		boolean ordered = true;
+		while ((entry = scan.get_next()) != null) {
+			int key = ((IntegerKey) entry.key).getKey();
+			ordered &= prev <= key;
+			prev = key;
+			found.add(key + "/" + ((LeafData) entry.data).getData().slotNo);
+		}
+		scan.DestroyBTreeFileScan();
+
+		Collections.sort(expected);
+		Collections.sort(found);
+		if (!ordered || !expected.equals(found)) {
+			System.err.println("*** " + found.size() + " entries"
+					+ (ordered ? "" : " out of order") + ", not "
+					+ expected.size());
+			return FAIL;
+		}
+		return OK;
+	}
+
+	/**
+	 * Compacting an index that lost two thirds of its entries packs them
+	 * into fewer leaves.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: compact a sparse index");
+		boolean status = OK;
+		try {
+			new SystemDefs(dbpath, 20000, 100, "Clock");
+			file = new BTreeFile("compact", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			for (int i = 0; i < KEYS; i++)
+				insert();
+			for (int i = 0; i < KEYS * 2 / 3 && status == OK; i++)
+				status = delete();
+
+			BTreeStatistics sparse = file.new_analyzer(1).analyze();
+			int before = pinned();
+			BTCompactor compactor = file.new_compactor(0.9);
+			while (!compactor.step(500))
+				;
+			BTreeStatistics packed = file.new_analyzer(1).analyze();
+
+			if (packed.getLeafPages() >= sparse.getLeafPages()) {
+				System.err.println("*** " + packed.getLeafPages()
+						+ " leaves after compaction, " + sparse.getLeafPages()
+						+ " before");
+				status = FAIL;
+			}
+			if (pinned() != before) {
+				System.err.println("*** " + (pinned() - before)
+						+ " pages left pinned");
+				status = FAIL;
+			}
+			if (status == OK)
+				status = verify();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Inserts, deletes and deletes through a descending scan between the
+	 * steps, on keys the compaction has passed and on keys it has not, all
+	 * show in the compacted index.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: compact while the index changes");
+		boolean status = OK;
+		try {
+			int before = pinned();
+			BTCompactor compactor = file.new_compactor(0.9);
+			while (!compactor.step(200) && status == OK) {
+				for (int i = 0; i < 20 && status == OK; i++) {
+					switch (random.nextInt(3)) {
+					case 0:
+						insert();
+						break;
+					case 1:
+						status = delete();
+						break;
+					default:
+						deleteDescending();
+					}
+				}
+			}
+			if (pinned() != before) {
+				System.err.println("*** " + (pinned() - before)
+						+ " pages left pinned");
+				status = FAIL;
+			}
+			if (status == OK)
+				status = verify();
+			// and it goes on working as an index
+			for (int i = 0; i < 1000 && status == OK; i++) {
+				insert();
+				status = delete();
+			}
+			if (status == OK)
+				status = verify();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * An aborted compaction leaves the index as it was, and another one can
+	 * be started.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: abort a compaction");
+		boolean status = OK;
+		try {
+			int before = pinned();
+			BTCompactor compactor = file.new_compactor(0.9);
+			compactor.step(1000);
+			insert();
+			status = delete();
+			compactor.abort();
+			if (!compactor.isDone()) {
+				System.err.println("*** an aborted compaction is not done");
+				status = FAIL;
+			}
+			if (status == OK)
+				status = verify();
+
+			compactor = file.new_compactor(0.7);
+			while (!compactor.step(1000))
+				;
+			if (pinned() != before) {
+				System.err.println("*** " + (pinned() - before)
+						+ " pages left pinned");
+				status = FAIL;
+			}
+			if (status == OK)
+				status = verify();
+			file.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class CompactorTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+		CompactorDriver test = new CompactorDriver();
+		if (!test.runTests())
+			Runtime.getRuntime().exit(1);
+		Runtime.getRuntime().exit(0);
+	}
+}
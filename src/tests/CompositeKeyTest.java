@@ -0,0 +1,276 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import btree.*;
+import global.*;
+import heap.*;
+
+/**
+ * Checks that an index of CompositeKeys returns its entries in the order of
+ * their attributes, compared one after the other, that a scan between the
+ * bounds of a prefix returns exactly the keys that start with it, and that
+ * a covering index built from a heap file holds every field it covers.
+ */
+class CompositeKeyDriver extends TestDriver implements GlobalConst {
+
+	private final static int KEYS = 5000;
+
+	private final static AttrType[] TYPES = {
+			new AttrType(AttrType.attrInteger),
+			new AttrType(AttrType.attrString), new AttrType(AttrType.attrReal) };
+
+	// prefixes of each other, 0 chars, and chars above ASCII and U+FFFF
+	private final static String[] WORDS = { "", "a", "ab", "a\u0000b", "b",
+			"zz", "\u00e9t\u00e9", "x\u4e2d", "x\uff21", "x\ud83d\ude00" };
+
+	private BTreeFile file;
+	private final ArrayList<Object[]> inserted = new ArrayList<Object[]>();
+
+	/* attribute by attribute; strings in code point order */
+	private final static Comparator<Object[]> ORDER = new Comparator<Object[]>() {
+		public int compare(Object[] a, Object[] b) {
+			int c = ((Integer) a[0]).compareTo((Integer) b[0]);
+			if (c == 0)
+				c = compareCodePoints((String) a[1], (String) b[1]);
+			if (c == 0)
+				c = Float.compare((Float) a[2], (Float) b[2]);
+			return c;
+		}
+	};
+
+	CompositeKeyDriver() {
+		super("compositekeytest");
+	}
+
+	protected String testName() {
+		return "Composite key";
+	}
+
+	private static int compareCodePoints(String a, String b) {
+		int i = 0;
+		int j = 0;
+		while (i < a.length() && j < b.length()) {
+			int x = a.codePointAt(i);
+			int y = b.codePointAt(j);
+			if (x != y)
+				return x < y ? -1 : 1;
+			i += Character.charCount(x);
+			j += Character.charCount(y);
+		}
+		return (a.length() - i) - (b.length() - j);
+	}
+
+	/**
+	 * A full scan returns the keys in the order of their values, and
+	 * decode() gives the values back.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: composite keys in attribute order");
+		boolean status = OK;
+		try {
+			new SystemDefs(dbpath, 20000, 100, "Clock");
+			file = new BTreeFile("composite", AttrType.attrString,
+					CompositeKey.maxKeySize(TYPES, new short[] { 8 }),
+					DeleteFashion.NAIVE_DELETE);
+
+			Random random = new Random(44);
+			for (int i = 0; i < KEYS; i++) {
+				Object[] values = { random.nextInt(21) - 10,
+						WORDS[random.nextInt(WORDS.length)],
+						(random.nextFloat() - 0.5f) * random.nextInt(100) };
+				if (random.nextInt(50) == 0)
+					values[2] = -0.0f;
+				inserted.add(values);
+				file.insert(new CompositeKey(TYPES, values), new RID(
+						new PageId(i), i));
+			}
+
+			ArrayList<Object[]> sorted = new ArrayList<Object[]>(inserted);
+			Collections.sort(sorted, ORDER);
+			BTFileScan scan = file.new_scan(null, null);
+			KeyDataEntry entry;
+			int i = 0;
+			while ((entry = scan.get_next()) != null && status == OK) {
+				Object[] values = CompositeKey.decode(TYPES, entry.key);
+				if (i >= sorted.size()
+						|| ORDER.compare(values, sorted.get(i)) != 0) {
+					System.err.println("*** " + Arrays.toString(values)
+							+ " at position " + i);
+					status = FAIL;
+				}
+				i++;
+			}
+			scan.DestroyBTreeFileScan();
+			if (status == OK && i != KEYS) {
+				System.err.println("*** " + i + " keys, not " + KEYS);
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Scans from lowerBound() to upperBound() of one and two leading values
+	 * return the keys that start with them, also for strings that are
+	 * prefixes of other strings.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: prefix scans");
+		boolean status = OK;
+		try {
+			for (int k = -11; k <= 11 && status == OK; k++) {
+				status = prefix(new Object[] { k });
+				for (int w = 0; w < WORDS.length && status == OK; w++)
+					status = prefix(new Object[] { k, WORDS[w] });
+			}
+			file.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * A covering index built by buildFrom() over three fields of a heap
+	 * file answers a scan on the leading field with all three, and only an
+	 * index of string keys can be built that way.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: covering index from a heap file");
+		boolean status = OK;
+		try {
+			// id, name, score, group; the index is on group, name, score
+			AttrType[] types = { new AttrType(AttrType.attrInteger),
+					new AttrType(AttrType.attrString),
+					new AttrType(AttrType.attrReal),
+					new AttrType(AttrType.attrInteger) };
+			short[] sizes = { 10 };
+			int[] fieldNos = { 4, 2, 3 };
+			AttrType[] keyTypes = { types[3], types[1], types[2] };
+
+			Heapfile heap = new Heapfile("relation");
+			ArrayList<Object[]> rows = new ArrayList<Object[]>();
+			Random random = new Random(45);
+			Tuple tuple = new Tuple();
+			tuple.setHdr((short) 4, types, sizes);
+			tuple = new Tuple(tuple.size());
+			tuple.setHdr((short) 4, types, sizes);
+			for (int i = 0; i < KEYS; i++) {
+				Object[] row = { random.nextInt(40) - 20,
+						"n" + random.nextInt(500),
+						random.nextFloat() * 200 - 100 };
+				tuple.setIntFld(1, i);
+				tuple.setStrFld(2, (String) row[1]);
+				tuple.setFloFld(3, (Float) row[2]);
+				tuple.setIntFld(4, (Integer) row[0]);
+				heap.insertRecord(tuple.returnTupleByteArray());
+				rows.add(row);
+			}
+
+			BTreeFile covering = new BTreeFile("covering",
+					AttrType.attrString, CompositeKey.maxKeySize(keyTypes,
+							sizes), DeleteFashion.NAIVE_DELETE);
+			covering.buildFrom(heap, types, fieldNos, 0.9, 1 << 16, 2);
+
+			for (int g = -21; g <= 20 && status == OK; g++) {
+				Object[] group = { g };
+				ArrayList<String> expected = new ArrayList<String>();
+				for (Object[] row : rows)
+					if (startsWith(row, group))
+						expected.add(Arrays.toString(row));
+
+				ArrayList<String> found = new ArrayList<String>();
+				BTFileScan scan = covering.new_scan(CompositeKey.lowerBound(
+						keyTypes, group), CompositeKey.upperBound(keyTypes,
+						group));
+				KeyDataEntry entry;
+				while ((entry = scan.get_next()) != null)
+					found.add(Arrays.toString(CompositeKey.decode(keyTypes,
+							entry.key)));
+				scan.DestroyBTreeFileScan();
+
+				Collections.sort(expected);
+				Collections.sort(found);
+				if (!expected.equals(found)) {
+					System.err.println("*** group " + g + ": " + found.size()
+							+ " rows, not " + expected.size());
+					status = FAIL;
+				}
+			}
+			covering.close();
+
+			BTreeFile integers = new BTreeFile("integers",
+					AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+			try {
+				integers.buildFrom(heap, types, fieldNos);
+				System.err.println("*** a composite index of integer keys");
+				status = FAIL;
+			} catch (IllegalArgumentException e) {
+			}
+			integers.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+
+	/* whether the scan of `prefix' returns the keys that start with it */
+	private boolean prefix(Object[] prefix) throws Exception {
+		int expected = 0;
+		for (Object[] values : inserted)
+			if (startsWith(values, prefix))
+				expected++;
+
+		BTFileScan scan = file.new_scan(
+				CompositeKey.lowerBound(TYPES, prefix),
+				CompositeKey.upperBound(TYPES, prefix));
+		KeyDataEntry entry;
+		int found = 0;
+		boolean status = OK;
+		while ((entry = scan.get_next()) != null) {
+			if (!startsWith(CompositeKey.decode(TYPES, entry.key), prefix))
+				status = FAIL;
+			found++;
+		}
+		scan.DestroyBTreeFileScan();
+		if (status == FAIL || found != expected) {
+			System.err.println("*** prefix " + Arrays.toString(prefix) + ": "
+					+ found + " keys, not " + expected);
+			return FAIL;
+		}
+		return OK;
+	}
+
+	private static boolean startsWith(Object[] values, Object[] prefix) {
+		for (int i = 0; i < prefix.length; i++)
+			if (!values[i].equals(prefix[i]))
+				return false;
+		return true;
+	}
+}
+
+public class CompositeKeyTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+		CompositeKeyDriver test = new CompositeKeyDriver();
+		if (!test.runTests())
+			Runtime.getRuntime().exit(1);
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,279 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import btree.*;
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * Checks CompressedDB with BTLeafCodec: every leaf it encodes decodes to
+ * the same entries, an index stored encoded reads back after a restart,
+ * and a database goes from encoded pages to plain ones and back, so that
+ * it opens as a plain DB once no page is encoded.
+ */
+class CompressedDriver extends TestDriver implements GlobalConst {
+
+	private final static int KEYS = 20000;
+
+	/*
+	 * the database is closed and opened again by name, so it has its own
+	 * file rather than dbpath, which runTests() removes in the background
+	 */
+	private final String path;
+	private final BTLeafCodec codec = new BTLeafCodec();
+	// the keys in the index, with the page number of their rid
+	private final ArrayList<String> entries = new ArrayList<String>();
+	private final Random random = new Random(40);
+
+	CompressedDriver() {
+		super("compressedtest");
+		path = dbpath + ".compressed";
+	}
+
+	protected String testName() {
+		return "Compressed pages";
+	}
+
+	private void shutdown() throws Exception {
+		SystemDefs.JavabaseBM.flushAllPages();
+		SystemDefs.JavabaseDB.closeDB();
+	}
+
+	/* whether a scan of the index returns the entries, in key order */
+	private boolean verify(String what) throws Exception {
+		ArrayList<String> found = new ArrayList<String>();
+		BTreeFile file = new BTreeFile("compressed");
+		BTFileScan scan = file.new_scan(null, null);
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null)
+			found.add(entry.key + "@"
+					+ ((LeafData) entry.data).getData().pageNo.pid);
+		scan.DestroyBTreeFileScan();
+		file.close();
+
+		ArrayList<String> expected = new ArrayList<String>(entries);
+		Collections.sort(found);
+		Collections.sort(expected);
+		if (!found.equals(expected)) {
+			System.err.println("*** " + what + ": " + found.size()
+					+ " entries, not " + expected.size());
+			return FAIL;
+		}
+		return OK;
+	}
+
+	/* the pages that are neither free nor past the end, from the space map */
+	private static ArrayList<PageId> pages() throws Exception {
+		ArrayList<PageId> pages = new ArrayList<PageId>();
+		DB db = SystemDefs.JavabaseDB;
+		for (int pid = 0; pid < db.db_num_pages(); pid++) {
+			Page map = new Page();
+			db.read_page(new PageId(1 + pid / (MINIBASE_PAGESIZE * 8)), map);
+			int bit = pid % (MINIBASE_PAGESIZE * 8);
+			if ((map.getpage()[bit / 8] & (1 << (bit % 8))) != 0)
+				pages.add(new PageId(pid));
+		}
+		return pages;
+	}
+
+	/* read every page in use, then write it back with `codec' */
+	private static void rewrite(CompressedDB db, PageCodec codec)
+			throws Exception {
+		SystemDefs.JavabaseBM.flushAllPages();
+		ArrayList<PageId> pages = pages();
+		ArrayList<Page> contents = new ArrayList<Page>();
+		for (PageId pageno : pages) {
+			Page page = new Page();
+			db.read_page(pageno, page);
+			contents.add(page);
+		}
+		db.setCodec(codec);
+		for (int i = 0; i < pages.size(); i++)
+			db.write_page(pages.get(i), contents.get(i));
+	}
+
+	/**
+	 * Every leaf the codec encodes, after inserts and deletes, decodes to
+	 * the same header, slots and records, in less than a page; and the
+	 * index reads back through the database.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: encode and decode leaves");
+		boolean status = OK;
+		try {
+			new File(path).delete();
+			new SystemDefs(path, 3000, 50, "Clock");
+			CompressedDB.install(codec);
+			BTreeFile file = new BTreeFile("compressed", AttrType.attrInteger,
+					4, DeleteFashion.NAIVE_DELETE);
+			for (int i = 0; i < KEYS; i++) {
+				// runs of equal and of negative keys, rids all over
+				int key = random.nextInt(4) == 0 ? -random.nextInt(100)
+						: random.nextInt(KEYS) * 1000;
+				int pid = random.nextInt(1 << random.nextInt(31));
+				file.insert(new IntegerKey(key), new RID(new PageId(pid), i));
+				entries.add(key + "@" + pid);
+			}
+			for (int i = 0; i < KEYS / 4; i++) {
+				int n = random.nextInt(entries.size());
+				String entry = entries.get(n);
+				int key = Integer.parseInt(entry.substring(0, entry
+						.indexOf('@')));
+				BTFileScan scan = file.new_scan(new IntegerKey(key),
+						new IntegerKey(key));
+				KeyDataEntry found = scan.get_next();
+				scan.delete_current();
+				scan.DestroyBTreeFileScan();
+				entries.remove(key + "@"
+						+ ((LeafData) found.data).getData().pageNo.pid);
+			}
+			file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+
+			int leaves = 0;
+			for (PageId pageno : pages()) {
+				byte[] page = new byte[MINIBASE_PAGESIZE];
+				SystemDefs.JavabaseDB.read_page(pageno, new Page(page));
+				byte[] encoded = new byte[MINIBASE_PAGESIZE];
+				int length = codec.encode(pageno.pid, page, encoded);
+				if (length == 0)
+					continue;
+				leaves++;
+				byte[] decoded = new byte[MINIBASE_PAGESIZE];
+				codec.decode(encoded, decoded);
+				// the free space between slots and records comes back zeroed
+				int slots = Convert.getShortValue(HFPage.SLOT_CNT, page);
+				int used = Convert.getShortValue(HFPage.USED_PTR, page);
+				Arrays.fill(page, HFPage.DPFIXED + slots
+						* HFPage.SIZE_OF_SLOT, used, (byte) 0);
+				if (length >= MINIBASE_PAGESIZE
+						|| !Arrays.equals(page, decoded)) {
+					System.err.println("*** page " + pageno.pid
+							+ " does not decode to itself");
+					status = FAIL;
+					break;
+				}
+			}
+			if (leaves < 10
+					|| ((CompressedDB) SystemDefs.JavabaseDB)
+							.getEncodedPages() != leaves) {
+				System.err.println("*** " + leaves + " leaves encode, "
+						+ ((CompressedDB) SystemDefs.JavabaseDB)
+								.getEncodedPages() + " are stored encoded");
+				status = FAIL;
+			}
+			if (status == OK)
+				status = verify("encoded");
+			shutdown();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * After a restart the index reads back with the codec; without one the
+	 * encoded pages cannot be read.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: reopen");
+		boolean status = OK;
+		try {
+			new SystemDefs(path, 0, 50, "Clock");
+			CompressedDB.install(codec);
+			status = verify("reopened");
+			shutdown();
+
+			new SystemDefs(path, 0, 50, "Clock");
+			CompressedDB.install(null);
+			try {
+				verify("without a codec");
+				System.err.println("*** encoded pages read without a codec");
+				status = FAIL;
+			} catch (Exception e) {
+			}
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Written back without a codec, every page is plain again and the
+	 * database opens as a plain DB; installed again with the codec and
+	 * written back, the leaves are encoded again; and DBDestroy removes the
+	 * database with the files kept next to it.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: plain and encoded");
+		boolean status = OK;
+		try {
+			new SystemDefs(path, 0, 50, "Clock");
+			CompressedDB db = CompressedDB.install(codec);
+			rewrite(db, null);
+			if (db.getEncodedPages() != 0) {
+				System.err.println("*** " + db.getEncodedPages()
+						+ " pages still encoded");
+				status = FAIL;
+			}
+			shutdown();
+
+			new SystemDefs(path, 0, 50, "Clock");
+			if (status == OK)
+				status = verify("plain");
+			shutdown();
+
+			new SystemDefs(path, 0, 50, "Clock");
+			db = CompressedDB.install(codec);
+			rewrite(db, codec);
+			if (db.getEncodedPages() < 10) {
+				System.err.println("*** " + db.getEncodedPages()
+						+ " pages encoded again");
+				status = FAIL;
+			}
+			shutdown();
+			new SystemDefs(path, 0, 50, "Clock");
+			CompressedDB.install(codec);
+			if (status == OK)
+				status = verify("encoded again");
+
+			SystemDefs.JavabaseDB.DBDestroy();
+			for (String suffix : new String[] { "", ".crc", ".cmp" }) {
+				if (new File(path + suffix).exists()) {
+					System.err.println("*** " + path + suffix
+							+ " left after DBDestroy");
+					status = FAIL;
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class CompressedTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+		CompressedDriver test = new CompressedDriver();
+		if (!test.runTests())
+			Runtime.getRuntime().exit(1);
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,229 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import btree.*;
+import global.*;
+
+/**
+ * Checks BTCursor against a full scan of the index: seek() lands on the
+ * first entry of the key sought or of the next larger key, whether it gets
+ * there by a binary search on the current leaf, by hopping a few leaves or
+ * by descending from the root, and get_next() goes on from there.
+ */
+class CursorDriver extends TestDriver implements GlobalConst {
+
+	private final static int KEYS = 20000;
+
+	private BTreeFile file;
+	// every entry in scan order, key/slot, and the keys alone
+	private final ArrayList<String> entries = new ArrayList<String>();
+	private final ArrayList<Integer> keys = new ArrayList<Integer>();
+	private final Random random = new Random(30);
+
+	CursorDriver() {
+		super("cursortest");
+	}
+
+	protected String testName() {
+		return "Cursor";
+	}
+
+	private static String name(KeyDataEntry entry) {
+		return ((IntegerKey) entry.key).getKey() + "/"
+				+ ((LeafData) entry.data).getData().slotNo;
+	}
+
+	/* position of the first entry >= key in the scan */
+	private int lowerBound(int key) {
+		int lo = 0;
+		int hi = keys.size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys.get(mid) < key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/*
+	 * whether seek(key) lands on the first entry >= key, and get_next()
+	 * goes on with the `steps' entries after it; returns the position of the
+	 * cursor in the scan, -1 if it is not where it should be
+	 */
+	private int check(BTCursor cursor, Integer key, int steps)
+			throws Exception {
+		int at = key == null ? 0 : lowerBound(key);
+		KeyDataEntry entry = cursor.seek(key == null ? null : new IntegerKey(
+				key));
+		for (int i = 0; i <= steps; i++) {
+			String expected = at < entries.size() ? entries.get(at) : null;
+			String found = entry == null ? null : name(entry);
+			if (expected == null ? found != null : !expected.equals(found)) {
+				System.err.println("*** seek(" + key + ") + " + i + ": "
+						+ found + ", not " + expected);
+				return -1;
+			}
+			if (entry == null)
+				break;
+			// returns the entry it is on, then moves
+			KeyDataEntry next = cursor.get_next();
+			if (next == null || !name(next).equals(found)) {
+				System.err.println("*** get_next() after seek(" + key + ")");
+				return -1;
+			}
+			at++;
+			entry = cursor.current();
+		}
+		return at;
+	}
+
+	/**
+	 * Ascending seeks, near and far apart, in an index with duplicates;
+	 * each lands where a scan from its key starts.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: ascending seeks");
+		boolean status = OK;
+		try {
+			new SystemDefs(dbpath, 20000, 100, "Clock");
+			file = new BTreeFile("cursor", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			for (int i = 0; i < KEYS; i++)
+				file.insert(new IntegerKey(2 * random.nextInt(KEYS / 4)),
+						new RID(new PageId(i), i));
+			BTFileScan scan = file.new_scan(null, null);
+			KeyDataEntry entry;
+			while ((entry = scan.get_next()) != null) {
+				entries.add(name(entry));
+				keys.add(((IntegerKey) entry.key).getKey());
+			}
+			scan.DestroyBTreeFileScan();
+
+			int before = pinned();
+			BTCursor cursor = file.new_cursor();
+			// steps of 1 to 4 keys stay on the leaf, then longer and longer
+			// hops; odd keys are not in the index
+			for (int gap = 1; gap < KEYS / 2 && status == OK; gap *= 3) {
+				for (int key = -1; key < KEYS / 2 + 2 && status == OK; key += gap
+						+ random.nextInt(gap + 1))
+					if (check(cursor, key, random.nextInt(3)) < 0)
+						status = FAIL;
+			}
+			cursor.close();
+			if (pinned() != before) {
+				System.err.println("*** " + (pinned() - before)
+						+ " pages left pinned");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Seeks back, to the key just returned, to the start, and past the
+	 * end, with the cursor on any entry of a run of duplicates.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: seeks in any order");
+		boolean status = OK;
+		try {
+			int before = pinned();
+			BTCursor cursor = file.new_cursor();
+			if (cursor.current() != null || cursor.get_next() != null) {
+				System.err.println("*** a cursor never positioned has entries");
+				status = FAIL;
+			}
+			for (int round = 0; round < 5000 && status == OK; round++) {
+				int at;
+				switch (random.nextInt(4)) {
+				case 0: // anywhere
+					at = check(cursor, random.nextInt(KEYS / 2 + 4) - 2,
+							random.nextInt(10));
+					break;
+				case 1: // the key of the entry just returned, again
+					KeyDataEntry entry = cursor.current();
+					int key = entry == null ? 0 : ((IntegerKey) entry.key)
+							.getKey();
+					at = check(cursor, key, random.nextInt(3) + 1);
+					if (at >= 0)
+						at = check(cursor, key, 0);
+					break;
+				case 2:
+					at = check(cursor, null, random.nextInt(3));
+					break;
+				default: // past the end, then on
+					at = check(cursor, KEYS, 0);
+					if (at >= 0 && pinned() != before) {
+						System.err.println("*** past the end, a leaf pinned");
+						at = -1;
+					}
+				}
+				if (at < 0)
+					status = FAIL;
+			}
+			cursor.close();
+			cursor.close();
+			if (pinned() != before) {
+				System.err.println("*** " + (pinned() - before)
+						+ " pages left pinned");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * A cursor on an empty index finds nothing and pins nothing.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: empty index");
+		boolean status = OK;
+		try {
+			BTreeFile empty = new BTreeFile("empty", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			int before = pinned();
+			BTCursor cursor = empty.new_cursor();
+			if (cursor.seek(null) != null || cursor.seek(new IntegerKey(5)) != null
+					|| cursor.get_next() != null || pinned() != before) {
+				System.err.println("*** an empty index has entries");
+				status = FAIL;
+			}
+			cursor.close();
+			empty.close();
+			file.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class CursorTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+		CursorDriver test = new CursorDriver();
+		if (!test.runTests())
+			Runtime.getRuntime().exit(1);
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,216 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import btree.*;
+import global.*;
+
+/**
+ * Checks the extents B+ tree leaves are allocated from: indexes with names
+ * up to the longest DB takes split leaves into their extents, through one
+ * handle or two, find them again after a restart, and give every page back
+ * when destroyed; an index that cannot be created or opened leaves nothing
+ * pinned or allocated.
+ */
+class ExtentMapDriver extends TestDriver implements GlobalConst {
+
+	private final static int KEYS = 6000;
+	private final static int[] LENGTHS = { 1, MAX_NAME - 3, MAX_NAME - 2,
+			MAX_NAME - 1 };
+
+	/*
+	 * the database is closed and opened again by name, so it has its own
+	 * file rather than dbpath, which runTests() removes in the background
+	 */
+	private final String path;
+	// the keys inserted into every index, by name
+	private final HashMap<String, ArrayList<Integer>> inserted = new HashMap<String, ArrayList<Integer>>();
+	private final Random random = new Random(36);
+	private int free; // first fit of the database without indexes
+
+	ExtentMapDriver() {
+		super("extentmaptest");
+		path = dbpath + ".extents";
+	}
+
+	protected String testName() {
+		return "Extent map";
+	}
+
+	/* an index name of `length' characters */
+	private static String name(int length) {
+		StringBuilder name = new StringBuilder("x");
+		while (name.length() < length)
+			name.append((char) ('a' + name.length() % 26));
+		return name.toString();
+	}
+
+	/* the first page of the first free run of 64 pages */
+	private static int firstFit() throws Exception {
+		PageId first = new PageId();
+		SystemDefs.JavabaseDB.allocate_page(first, 64);
+		SystemDefs.JavabaseDB.deallocate_page(first, 64);
+		return first.pid;
+	}
+
+	/* insert `n' random keys, alternately through each of `handles' */
+	private void insert(String name, int n, BTreeFile... handles)
+			throws Exception {
+		ArrayList<Integer> keys = inserted.get(name);
+		if (keys == null)
+			inserted.put(name, keys = new ArrayList<Integer>());
+		for (int i = 0; i < n; i++) {
+			int key = random.nextInt(KEYS);
+			handles[i % handles.length].insert(new IntegerKey(key), new RID(
+					new PageId(keys.size() / 40 + 5), keys.size() % 40));
+			keys.add(key);
+		}
+	}
+
+	/* whether a scan of `file' returns the keys inserted, in order */
+	private boolean verify(String name, BTreeFile file) throws Exception {
+		ArrayList<Integer> found = new ArrayList<Integer>();
+		BTFileScan scan = file.new_scan(null, null);
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null)
+			found.add(((IntegerKey) entry.key).getKey());
+		scan.DestroyBTreeFileScan();
+		ArrayList<Integer> expected = new ArrayList<Integer>(inserted
+				.get(name));
+		Collections.sort(expected);
+		if (!found.equals(expected)) {
+			System.err.println("*** index of " + name.length()
+					+ " characters: " + found.size() + " keys, not "
+					+ expected.size() + " or not in order");
+			return FAIL;
+		}
+		return OK;
+	}
+
+	/**
+	 * Names of up to MAX_NAME - 1 characters, the longest DB takes; the
+	 * leaves split through a second handle come from the same extents.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: long index names");
+		boolean status = OK;
+		try {
+			new File(path).delete();
+			new SystemDefs(path, 20000, 100, "Clock");
+			free = firstFit();
+			for (int length : LENGTHS) {
+				String name = name(length);
+				BTreeFile file = new BTreeFile(name, AttrType.attrInteger, 4,
+						DeleteFashion.NAIVE_DELETE);
+				BTreeFile other = new BTreeFile(name);
+				insert(name, KEYS, file, other);
+				other.close();
+				if (status == OK)
+					status = verify(name, file);
+				file.close();
+			}
+			if (pinned() != 0) {
+				System.err.println("*** " + pinned() + " pages left pinned");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * After a restart the indexes go on splitting leaves into the extents
+	 * they had, and destroying them frees every page they took.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: restart");
+		boolean status = OK;
+		try {
+			SystemDefs.JavabaseBM.flushAllPages();
+			SystemDefs.JavabaseDB.closeDB();
+			new SystemDefs(path, 0, 100, "Clock");
+
+			for (int length : LENGTHS) {
+				String name = name(length);
+				BTreeFile file = new BTreeFile(name);
+				insert(name, KEYS / 2, file);
+				if (status == OK)
+					status = verify(name, file);
+				file.destroyFile();
+			}
+			if (pinned() != 0) {
+				System.err.println("*** " + pinned() + " pages left pinned");
+				status = FAIL;
+			}
+			if (firstFit() != free) {
+				System.err.println("*** pages left allocated");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Creating an index with a name too long for DB, or opening one that is
+	 * not there, fails with nothing pinned and no page taken.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: failed creates and opens");
+		boolean status = OK;
+		try {
+			try {
+				new BTreeFile(name(MAX_NAME), AttrType.attrInteger, 4,
+						DeleteFashion.NAIVE_DELETE);
+				System.err.println("*** index created with a name too long");
+				status = FAIL;
+			} catch (AddFileEntryException e) {
+			}
+			try {
+				new BTreeFile("no such index");
+				System.err.println("*** index opened that is not there");
+				status = FAIL;
+			} catch (ConstructPageException e) {
+			}
+			if (pinned() != 0) {
+				System.err.println("*** " + pinned() + " pages left pinned");
+				status = FAIL;
+			}
+			if (firstFit() != free) {
+				System.err.println("*** pages left allocated");
+				status = FAIL;
+			}
+			SystemDefs.JavabaseBM.flushAllPages();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		new File(path).delete();
+
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class ExtentMapTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+		ExtentMapDriver test = new ExtentMapDriver();
+		if (!test.runTests())
+			Runtime.getRuntime().exit(1);
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,289 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * Checks the file directory of SpaceMapDB, which SpaceMapDB keeps in memory
+ * and writes in DB's layout, against DB itself: the same random files are
+ * added, looked up and deleted in a database of each kind, with the same
+ * answers and errors, and the directory pages of both end up the same byte
+ * for byte, so that either can open a database the other wrote.
+ */
+class FileDirectoryDriver extends TestDriver implements GlobalConst {
+
+	private final static int PAGES = 2000;
+
+	/*
+	 * the databases are closed and opened again by name, so they have files
+	 * of their own rather than dbpath, which runTests() removes in the
+	 * background
+	 */
+	private final String plainPath;
+	private final String mappedPath;
+
+	FileDirectoryDriver() {
+		super("filedirectorytest");
+		plainPath = dbpath + ".plain";
+		mappedPath = dbpath + ".mapped";
+	}
+
+	protected String testName() {
+		return "File directory";
+	}
+
+	/* open or create a database, a SpaceMapDB if `mapped' */
+	private static void open(String path, int pages, boolean mapped)
+			throws Exception {
+		new SystemDefs(path, pages, 50, "Clock");
+		if (mapped)
+			SpaceMapDB.install();
+	}
+
+	private static void shutdown() throws Exception {
+		SystemDefs.JavabaseBM.flushAllPages();
+		SystemDefs.JavabaseDB.closeDB();
+	}
+
+	/* a name of 1 to MAX_NAME characters, from a few, so that some repeat */
+	private static String name(Random random) {
+		int length = random.nextInt(8) == 0 ? MAX_NAME : 1 + random
+				.nextInt(MAX_NAME - 1);
+		StringBuilder name = new StringBuilder();
+		name.append((char) ('a' + random.nextInt(4)));
+		while (name.length() < length)
+			name.append((char) ('a' + (name.length() * 7) % 26));
+		return name.toString();
+	}
+
+	/*
+	 * Add, look up and delete `ops' random files, the same ones for the
+	 * same seed. Returns what every call returned or threw.
+	 */
+	private static ArrayList<String> apply(long seed, int ops, int deletes)
+			throws Exception {
+		Random random = new Random(seed);
+		ArrayList<String> results = new ArrayList<String>();
+		DB db = SystemDefs.JavabaseDB;
+		for (int i = 0; i < ops; i++) {
+			String name = name(random);
+			int op = random.nextInt(10);
+			try {
+				if (op < deletes) {
+					db.delete_file_entry(name);
+					results.add("deleted " + name);
+				} else if (op < 7) {
+					// now and then the first page past the end of the database
+					int start = random.nextInt(50) == 0 ? PAGES : random
+							.nextInt(PAGES);
+					db.add_file_entry(name, new PageId(start));
+					results.add("added " + name);
+				} else {
+					PageId start = db.get_file_entry(name);
+					results.add(name + " at " + (start == null ? null
+							: start.pid));
+				}
+			} catch (chainexception.ChainException e) {
+				results.add(name + ": " + e.getClass().getName());
+			}
+		}
+		return results;
+	}
+
+	/* where every name name() makes starts in the open database */
+	private static ArrayList<String> lookup() throws Exception {
+		ArrayList<String> starts = new ArrayList<String>();
+		for (char first = 'a'; first < 'a' + 4; first++) {
+			StringBuilder name = new StringBuilder().append(first);
+			while (name.length() < MAX_NAME) {
+				PageId start = SystemDefs.JavabaseDB.get_file_entry(name
+						.toString());
+				starts.add(name + " at " + (start == null ? null : start.pid));
+				name.append((char) ('a' + (name.length() * 7) % 26));
+			}
+		}
+		return starts;
+	}
+
+	/*
+	 * fill every buffer frame with random bytes, so that a page pinned
+	 * empty starts out with them
+	 */
+	private static void scribble() throws Exception {
+		Random random = new Random(42);
+		for (int i = 0; i < SystemDefs.JavabaseBM.getNumBuffers(); i++) {
+			PageId pageno = new PageId();
+			Page page = new Page();
+			SystemDefs.JavabaseDB.allocate_page(pageno);
+			SystemDefs.JavabaseBM.pinPage(pageno, page, true);
+			random.nextBytes(page.getpage());
+			SystemDefs.JavabaseBM.unpinPage(pageno, true);
+			SystemDefs.JavabaseBM.freePage(pageno);
+		}
+	}
+
+	/* the directory pages of the open database, in chain order */
+	private static ArrayList<byte[]> directory() throws Exception {
+		ArrayList<byte[]> pages = new ArrayList<byte[]>();
+		PageId pageno = new PageId(0);
+		while (pageno.pid != INVALID_PAGE) {
+			Page page = new Page();
+			SystemDefs.JavabaseDB.read_page(pageno, page);
+			pages.add(page.getpage().clone());
+			pageno = new PageId(Convert.getIntValue(0, page.getpage()));
+		}
+		return pages;
+	}
+
+	/*
+	 * run the same operations on both databases, then compare their
+	 * directory pages; `create' makes them anew, else they are opened again
+	 */
+	private boolean compare(String what, long seed, int ops, int deletes,
+			boolean create) throws Exception {
+		open(plainPath, create ? PAGES : 0, false);
+		ArrayList<String> plain = apply(seed, ops, deletes);
+		shutdown();
+		open(plainPath, 0, false);
+		ArrayList<byte[]> plainPages = directory();
+		shutdown();
+
+		open(mappedPath, create ? PAGES : 0, true);
+		ArrayList<String> mapped = apply(seed, ops, deletes);
+		shutdown();
+		open(mappedPath, 0, false);
+		ArrayList<byte[]> mappedPages = directory();
+		shutdown();
+
+		for (int i = 0; i < Math.min(plain.size(), mapped.size()); i++) {
+			if (!plain.get(i).equals(mapped.get(i))) {
+				System.err.println("*** " + what + ", call " + i + ": "
+						+ mapped.get(i) + ", not " + plain.get(i));
+				return FAIL;
+			}
+		}
+		if (plainPages.size() < 2 || plainPages.size() != mappedPages.size()) {
+			System.err.println("*** " + what + ": " + mappedPages.size()
+					+ " directory pages, not " + plainPages.size());
+			return FAIL;
+		}
+		for (int i = 0; i < plainPages.size(); i++) {
+			if (!Arrays.equals(plainPages.get(i), mappedPages.get(i))) {
+				System.err.println("*** " + what + ": directory page " + i
+						+ " differs");
+				return FAIL;
+			}
+		}
+		return OK;
+	}
+
+	/**
+	 * Files added over several directory pages, with names of every length,
+	 * duplicates, names too long and pages out of range.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: adds and lookups against DB");
+		boolean status = OK;
+		try {
+			new File(plainPath).delete();
+			new File(mappedPath).delete();
+			status = compare("adds", 38, 600, 0, true);
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Deletes, of files there and not there, and adds that fill the entries
+	 * they leave in the same order as DB.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: deletes and adds");
+		boolean status = OK;
+		try {
+			status = compare("deletes", 39, 2000, 4, false);
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Opened again, both go on alike; a SpaceMapDB opened on the directory
+	 * a DB wrote reads every file, and DB every file a SpaceMapDB wrote,
+	 * also on directory pages added in frames that held other pages.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: each reads what the other wrote");
+		boolean status = OK;
+		try {
+			status = compare("reopened", 41, 1000, 3, false);
+			// written by DB, read by both
+			open(plainPath, 0, false);
+			ArrayList<String> plain = lookup();
+			shutdown();
+			open(plainPath, 0, true);
+			if (!lookup().equals(plain)) {
+				System.err.println("*** SpaceMapDB misreads the files of DB");
+				status = FAIL;
+			}
+			// written by SpaceMapDB, read by both, with new directory pages
+			// pinned in frames full of garbage
+			int pages = directory().size();
+			scribble();
+			apply(40, 300, 3);
+			for (int i = 0; i < 200; i++)
+				SystemDefs.JavabaseDB.add_file_entry("new" + i, new PageId(i));
+			ArrayList<String> mapped = lookup();
+			shutdown();
+			open(plainPath, 0, false);
+			if (!lookup().equals(mapped)) {
+				System.err.println("*** DB misreads the files of SpaceMapDB");
+				status = FAIL;
+			}
+			for (int i = 0; i < 200 && status == OK; i++) {
+				PageId start = SystemDefs.JavabaseDB.get_file_entry("new" + i);
+				if (start == null || start.pid != i) {
+					System.err.println("*** DB misreads file new" + i);
+					status = FAIL;
+				}
+			}
+			if (plain.equals(mapped) || directory().size() == pages) {
+				System.err.println("*** no file or directory page added");
+				status = FAIL;
+			}
+			shutdown();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		new File(plainPath).delete();
+		new File(mappedPath).delete();
+
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class FileDirectoryTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+		FileDirectoryDriver test = new FileDirectoryDriver();
+		if (!test.runTests())
+			Runtime.getRuntime().exit(1);
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,220 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * Checks MappedHeapfile, the heap file that finds pages for its inserts in
+ * a FreeSpaceMap: its records read back through a Heapfile, the space that
+ * deletes free is used again, and the map built when the file is opened
+ * again agrees with the directory.
+ */
+class FreeSpaceMapDriver extends TestDriver implements GlobalConst {
+
+	private final static int RECORDS = 10000;
+
+	private MappedHeapfile file;
+	// the records in the file, by page/slot
+	private final HashMap<String, String> records = new HashMap<String, String>();
+	private final ArrayList<RID> rids = new ArrayList<RID>();
+	private final Random random = new Random(49);
+
+	FreeSpaceMapDriver() {
+		super("freespacemaptest");
+	}
+
+	protected String testName() {
+		return "Free space map";
+	}
+
+	private static String name(RID rid) {
+		return rid.pageNo.pid + "/" + rid.slotNo;
+	}
+
+	private byte[] record() {
+		byte[] record = new byte[8 + random.nextInt(120)];
+		random.nextBytes(record);
+		return record;
+	}
+
+	private boolean added(RID rid, byte[] record) throws Exception {
+		rids.add(rid);
+		if (records.put(name(rid), new String(record, "ISO-8859-1")) != null) {
+			System.err.println("*** record " + name(rid) + " given out twice");
+			return FAIL;
+		}
+		return OK;
+	}
+
+	private boolean insert(int n) throws Exception {
+		boolean status = OK;
+		for (int i = 0; i < n && status == OK; i++) {
+			byte[] record = record();
+			status = added(file.insertRecord(record), record);
+		}
+		return status;
+	}
+
+	private boolean delete(int n) throws Exception {
+		Collections.shuffle(rids, random);
+		for (int i = 0; i < n; i++) {
+			RID rid = rids.remove(rids.size() - 1);
+			records.remove(name(rid));
+			if (!file.deleteRecord(rid)) {
+				System.err.println("*** record " + name(rid)
+						+ " could not be deleted");
+				return FAIL;
+			}
+		}
+		return OK;
+	}
+
+	/* whether a scan of `heap' returns exactly the records */
+	private boolean verify(Heapfile heap) throws Exception {
+		Scan scan = heap.openScan();
+		RID rid = new RID();
+		Tuple tuple;
+		int found = 0;
+		boolean status = OK;
+		while ((tuple = scan.getNext(rid)) != null) {
+			found++;
+			String record = records.get(name(rid));
+			if (record == null
+					|| !record.equals(new String(tuple.getTupleByteArray(),
+							0, tuple.getLength(), "ISO-8859-1")))
+				status = FAIL;
+		}
+		scan.closescan();
+		if (status == FAIL || found != records.size()
+				|| heap.getRecCnt() != records.size()) {
+			System.err.println("*** " + found + " records scanned, "
+					+ heap.getRecCnt() + " counted, not " + records.size());
+			return FAIL;
+		}
+		return OK;
+	}
+
+	/* number of pages that hold records */
+	private int pages() {
+		HashSet<Integer> pages = new HashSet<Integer>();
+		for (RID rid : rids)
+			pages.add(rid.pageNo.pid);
+		return pages.size();
+	}
+
+	/**
+	 * Records inserted one at a time and in batches read back through a
+	 * MappedHeapfile and a Heapfile.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: inserts");
+		boolean status = OK;
+		try {
+			new SystemDefs(dbpath, 20000, 100, "Clock");
+			file = new MappedHeapfile("mapped");
+			status = insert(RECORDS / 2);
+			for (int b = 0; b < RECORDS / 2 && status == OK; b += 500) {
+				byte[][] batch = new byte[500][];
+				for (int i = 0; i < batch.length; i++)
+					batch[i] = record();
+				RID[] inserted = file.insertRecords(batch);
+				for (int i = 0; i < batch.length && status == OK; i++)
+					status = added(inserted[i], batch[i]);
+			}
+			if (status == OK)
+				status = verify(file);
+			if (status == OK)
+				status = verify(new Heapfile("mapped"));
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * After most records are deleted, new records go to the space they
+	 * left instead of to new pages.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: deletes and inserts");
+		boolean status = OK;
+		try {
+			status = delete(RECORDS * 6 / 10);
+			if (file.deleteRecord(new RID(new PageId(99999), 0))) {
+				System.err.println("*** a record not in the file was deleted");
+				status = FAIL;
+			}
+			int before = pages();
+			if (status == OK)
+				status = insert(RECORDS / 4);
+			if (status == OK && pages() > before) {
+				System.err.println("*** records on " + pages()
+						+ " pages, not at most " + before);
+				status = FAIL;
+			}
+			if (status == OK)
+				status = verify(file);
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * The file opened again builds its map from the directory, and goes on
+	 * from there; deleting every record and the file leaves nothing pinned.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: open again");
+		boolean status = OK;
+		try {
+			file = new MappedHeapfile("mapped");
+			status = delete(2000);
+			if (status == OK)
+				status = insert(1000);
+			if (status == OK)
+				status = verify(file);
+			if (status == OK)
+				status = delete(rids.size());
+			if (status == OK)
+				status = verify(file);
+			if (status == OK)
+				status = insert(10);
+			if (status == OK)
+				status = verify(new Heapfile("mapped"));
+			file.deleteFile();
+			if (pinned() != 0) {
+				System.err.println("*** " + pinned() + " pages left pinned");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class FreeSpaceMapTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+		FreeSpaceMapDriver test = new FreeSpaceMapDriver();
+		if (!test.runTests())
+			Runtime.getRuntime().exit(1);
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,233 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import btree.*;
+import global.*;
+
+/**
+ * Checks HashFile against the record ids inserted under every key, across
+ * bucket splits, deletes and a restart of the database.
+ */
+class HashFileDriver extends TestDriver implements GlobalConst {
+
+	private final static int KEYS = 20000;
+
+	/*
+	 * the database is closed and opened again by name, so it has its own
+	 * file rather than dbpath, which runTests() removes in the background
+	 */
+	private final String path;
+	private HashFile file;
+	// rids under every key, as page/slot
+	private final HashMap<Object, ArrayList<String>> inserted = new HashMap<Object, ArrayList<String>>();
+	private final Random random = new Random(46);
+
+	HashFileDriver() {
+		super("hashfiletest");
+		path = dbpath + ".hashed";
+	}
+
+	protected String testName() {
+		return "Hash index";
+	}
+
+	private static KeyClass keyOf(Object key) {
+		return key instanceof Integer ? new IntegerKey((Integer) key)
+				: new StringKey((String) key);
+	}
+
+	private void insert(Object key, int i) throws Exception {
+		RID rid = new RID(new PageId(i / 40 + 5), i % 40);
+		file.insert(keyOf(key), rid);
+		ArrayList<String> rids = inserted.get(key);
+		if (rids == null)
+			inserted.put(key, rids = new ArrayList<String>());
+		rids.add(rid.pageNo.pid + "/" + rid.slotNo);
+	}
+
+	/* whether a scan of every key in `keys' returns the rids under it */
+	private boolean verify(Collection<Object> keys) throws Exception {
+		for (Object key : keys) {
+			ArrayList<String> found = new ArrayList<String>();
+			HashFileScan scan = file.new_scan(keyOf(key));
+			KeyDataEntry entry;
+			while ((entry = scan.get_next()) != null) {
+				RID rid = ((LeafData) entry.data).getData();
+				found.add(rid.pageNo.pid + "/" + rid.slotNo);
+			}
+			ArrayList<String> expected = inserted.get(key);
+			if (expected == null)
+				expected = new ArrayList<String>();
+			Collections.sort(found);
+			Collections.sort(expected);
+			if (!found.equals(expected)) {
+				System.err.println("*** key " + key + ": " + found.size()
+						+ " rids, not " + expected.size());
+				return FAIL;
+			}
+		}
+		return OK;
+	}
+
+	/* every integer key inserted, and some that were not */
+	private static ArrayList<Object> integerKeys() {
+		ArrayList<Object> keys = new ArrayList<Object>();
+		for (int k = -5; k < KEYS / 2 + 5; k++)
+			keys.add(k);
+		return keys;
+	}
+
+	/**
+	 * Inserts with duplicates that split buckets, then deletes of a third
+	 * of the entries.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: inserts and deletes");
+		boolean status = OK;
+		try {
+			new File(path).delete();
+			new SystemDefs(path, 20000, 100, "Clock");
+			file = new HashFile("hashed", AttrType.attrInteger, 4);
+
+			ArrayList<Object[]> entries = new ArrayList<Object[]>();
+			for (int i = 0; i < KEYS; i++) {
+				int key = random.nextInt(KEYS / 2);
+				insert(key, i);
+				entries.add(new Object[] { key, i });
+			}
+			if (file.getBucketCount() < 2 || file.getEntryCount() != KEYS) {
+				System.err.println("*** " + file.getEntryCount()
+						+ " entries in " + file.getBucketCount() + " buckets");
+				status = FAIL;
+			}
+
+			Collections.shuffle(entries, random);
+			for (int i = 0; i < KEYS / 3 && status == OK; i++) {
+				Integer key = (Integer) entries.get(i)[0];
+				int n = (Integer) entries.get(i)[1];
+				RID rid = new RID(new PageId(n / 40 + 5), n % 40);
+				if (!file.Delete(new IntegerKey(key), rid)) {
+					System.err.println("*** " + key + " could not be deleted");
+					status = FAIL;
+				}
+				inserted.get(key).remove(rid.pageNo.pid + "/" + rid.slotNo);
+			}
+			if (file.Delete(new IntegerKey(-1), new RID(new PageId(5), 0))) {
+				System.err.println("*** a key that is not there was deleted");
+				status = FAIL;
+			}
+			try {
+				file.insert(new StringKey("one"), new RID(new PageId(5), 0));
+				System.err.println("*** a string key was inserted");
+				status = FAIL;
+			} catch (KeyNotMatchException e) {
+			}
+			if (status == OK)
+				status = verify(integerKeys());
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * After a restart the index holds the same entries, and it cannot be
+	 * opened as an index of another key type.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: restart");
+		boolean status = OK;
+		try {
+			int entries = file.getEntryCount();
+			int buckets = file.getBucketCount();
+			file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+			SystemDefs.JavabaseDB.closeDB();
+
+			new SystemDefs(path, 0, 100, "Clock");
+			try {
+				new HashFile("hashed", AttrType.attrString, 20);
+				System.err.println("*** opened with another key type");
+				status = FAIL;
+			} catch (ConstructPageException e) {
+			}
+			file = new HashFile("hashed");
+			if (file.getEntryCount() != entries
+					|| file.getBucketCount() != buckets) {
+				System.err.println("*** " + file.getEntryCount()
+						+ " entries in " + file.getBucketCount()
+						+ " buckets, not " + entries + " in " + buckets);
+				status = FAIL;
+			}
+			if (status == OK)
+				status = verify(integerKeys());
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * String keys, deletes through a scan, and destroying both indexes
+	 * leaves no page pinned.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: string keys and scan deletes");
+		boolean status = OK;
+		try {
+			HashFile integers = file;
+			file = new HashFile("strings", AttrType.attrString, 20);
+			ArrayList<Object> keys = new ArrayList<Object>();
+			for (int k = 0; k < 500; k++)
+				keys.add("key" + k);
+			for (int i = 0; i < KEYS / 4; i++)
+				insert(keys.get(random.nextInt(keys.size())), i);
+			keys.add("no such key");
+			status = verify(keys);
+
+			HashFileScan scan = file.new_scan(new StringKey("key7"));
+			while (scan.get_next() != null)
+				scan.delete_current();
+			inserted.remove("key7");
+			if (status == OK)
+				status = verify(keys);
+
+			file.destroyFile();
+			integers.destroyFile();
+			if (pinned() != 0) {
+				System.err.println("*** " + pinned() + " pages left pinned");
+				status = FAIL;
+			}
+			SystemDefs.JavabaseBM.flushAllPages();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		new File(path).delete();
+
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class HashFileTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+		HashFileDriver test = new HashFileDriver();
+		if (!test.runTests())
+			Runtime.getRuntime().exit(1);
+		Runtime.getRuntime().exit(0);
+	}
+}
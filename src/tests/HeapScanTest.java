@@ -0,0 +1,236 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+import java.util.stream.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * Checks HeapSpliterator against a Scan of the same heap file: drained in
+ * one piece, split as far as it goes or run as a parallel stream, it
+ * returns exactly the records of the Scan, in the same order, also after
+ * deletes leave holes and empty pages; and it leaves nothing pinned.
+ */
+class HeapScanDriver extends TestDriver implements GlobalConst {
+
+	private final static int RECORDS = 20000;
+
+	private Heapfile heap;
+	private final ArrayList<RID> rids = new ArrayList<RID>();
+	// positions in the last Scan of the first record of each data page
+	private final ArrayList<Integer> pageStarts = new ArrayList<Integer>();
+
+	HeapScanDriver() {
+		super("heapscantest");
+	}
+
+	protected String testName() {
+		return "Heap scan";
+	}
+
+	/* number, length and contents of a record */
+	private static String name(Tuple tuple) {
+		byte[] record = tuple.getTupleByteArray();
+		try {
+			return Convert.getIntValue(0, record) + "/" + record.length + "/"
+					+ Arrays.hashCode(record);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/* the records of a Scan, in its order */
+	private ArrayList<String> expected() throws Exception {
+		ArrayList<String> records = new ArrayList<String>();
+		pageStarts.clear();
+		Scan scan = heap.openScan();
+		Tuple tuple;
+		RID rid = new RID();
+		int pageno = INVALID_PAGE;
+		while ((tuple = scan.getNext(rid)) != null) {
+			if (rid.pageNo.pid != pageno)
+				pageStarts.add(records.size());
+			pageno = rid.pageNo.pid;
+			records.add(name(tuple));
+		}
+		scan.closescan();
+		return records;
+	}
+
+	/* split `split' as far as it goes; the parts in order */
+	private static void split(Spliterator<Tuple> split,
+			List<Spliterator<Tuple>> parts) {
+		Spliterator<Tuple> prefix = split.trySplit();
+		if (prefix == null) {
+			parts.add(split);
+			return;
+		}
+		split(prefix, parts);
+		split(split, parts);
+	}
+
+	/*
+	 * whether the spliterator, whole, in parts and as a parallel stream,
+	 * returns the records of a Scan
+	 */
+	private boolean compare(String what) throws Exception {
+		int before = pinned();
+		ArrayList<String> expected = expected();
+		boolean status = OK;
+
+		ArrayList<String> whole = new ArrayList<String>();
+		new HeapSpliterator(heap).forEachRemaining(t -> whole.add(name(t)));
+		if (!whole.equals(expected)) {
+			System.err.println("*** " + what + ": " + whole.size()
+					+ " records, not " + expected.size() + " or not in order");
+			status = FAIL;
+		}
+
+		// split before the first record, after the last record of a page in
+		// the middle of a window or at its end, and before the last record
+		// of a window
+		ArrayList<Integer> advances = new ArrayList<Integer>();
+		advances.add(0);
+		for (int page : new int[] { 1, 3, 8, 11 })
+			if (page < pageStarts.size())
+				advances.add(pageStarts.get(page));
+		if (pageStarts.size() > 8)
+			advances.add(pageStarts.get(8) - 1);
+		for (int advance : advances) {
+			ArrayList<String> found = new ArrayList<String>();
+			HeapSpliterator split = new HeapSpliterator(heap);
+			for (int i = 0; i < advance; i++)
+				split.tryAdvance(t -> found.add(name(t)));
+			ArrayList<Spliterator<Tuple>> parts = new ArrayList<Spliterator<Tuple>>();
+			split(split, parts);
+			for (Spliterator<Tuple> part : parts)
+				part.forEachRemaining(t -> found.add(name(t)));
+			if (!found.equals(expected)) {
+				System.err.println("*** " + what + " in " + parts.size()
+						+ " parts after " + advance + ": " + found.size()
+						+ " records, not " + expected.size()
+						+ " or not in order");
+				status = FAIL;
+			}
+		}
+
+		List<String> streamed = StreamSupport.stream(new HeapSpliterator(heap),
+				true).map(HeapScanDriver::name).collect(Collectors.toList());
+		if (!streamed.equals(expected)) {
+			System.err.println("*** " + what + ", parallel: "
+					+ streamed.size() + " records, not " + expected.size()
+					+ " or not in order");
+			status = FAIL;
+		}
+
+		if (pinned() != before) {
+			System.err.println("*** " + what + ": " + (pinned() - before)
+					+ " pages left pinned");
+			status = FAIL;
+		}
+		return status;
+	}
+
+	/**
+	 * Records of every length over many pages, and an empty heap file.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: spliterator against Scan");
+		boolean status = OK;
+		try {
+			new SystemDefs(dbpath, 20000, 100, "Clock");
+			heap = new Heapfile("empty");
+			status = compare("empty heap file");
+
+			heap = new Heapfile("records");
+			Random random = new Random(50);
+			for (int i = 0; i < RECORDS; i++) {
+				byte[] record = new byte[4 + random.nextInt(random
+						.nextInt(8) == 0 ? 900 : 60)];
+				random.nextBytes(record);
+				Convert.setIntValue(i, 0, record);
+				rids.add(heap.insertRecord(record));
+			}
+			if (status == OK)
+				status = compare("records");
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Deletes here and there, and of a long stretch of records, so that
+	 * some data pages are left with holes and others are gone.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: after deletes");
+		boolean status = OK;
+		try {
+			for (int i = RECORDS / 4; i < RECORDS / 2; i++)
+				heap.deleteRecord(rids.get(i));
+			for (int i = 0; i < RECORDS; i += 3)
+				if (i < RECORDS / 4 || i >= RECORDS / 2)
+					heap.deleteRecord(rids.get(i));
+			status = compare("after deletes");
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Streams that stop at the first match, sequential and parallel, leave
+	 * no page pinned without being closed.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: streams that stop early");
+		boolean status = OK;
+		try {
+			int before = pinned();
+			ArrayList<String> expected = expected();
+			for (int round = 0; round < 20 && status == OK; round++) {
+				final String wanted = expected.get(round * expected.size() / 20);
+				Optional<String> found = StreamSupport.stream(
+						new HeapSpliterator(heap), round % 2 == 0).map(
+						HeapScanDriver::name).filter(wanted::equals).findFirst();
+				if (!found.isPresent()) {
+					System.err.println("*** record " + wanted + " not found");
+					status = FAIL;
+				}
+				if (pinned() != before) {
+					System.err.println("*** " + (pinned() - before)
+							+ " pages left pinned");
+					status = FAIL;
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class HeapScanTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+		HeapScanDriver test = new HeapScanDriver();
+		if (!test.runTests())
+			Runtime.getRuntime().exit(1);
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,303 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import btree.*;
+import global.*;
+import heap.*;
+
+/**
+ * Checks BTreeFile.buildFrom(): a build by one thread makes the index that
+ * inserting every record makes, a build by several threads makes the same
+ * index as a build by one, whatever the memory; and a build that fails,
+ * with one thread or with several that stop early, leaves the index empty,
+ * no page pinned and every run page freed.
+ */
+class IndexBuilderDriver extends TestDriver implements GlobalConst {
+
+	private final static int RECORDS = 40000;
+
+	/* key, name */
+	private final static AttrType[] TYPES = {
+			new AttrType(AttrType.attrInteger),
+			new AttrType(AttrType.attrString) };
+	private final static short[] SIZES = { 40 };
+	/* longest name that fits in a key of the name index */
+	private final static int NAME_KEY_SIZE = 16;
+
+	private Heapfile heap;
+	// the entries of the indexes built by one thread, in scan order
+	private ArrayList<String> byKey;
+	private ArrayList<String> byName;
+	private int indexes; // to name the indexes built
+
+	IndexBuilderDriver() {
+		super("indexbuildertest");
+	}
+
+	protected String testName() {
+		return "Index builder";
+	}
+
+	/*
+	 * a heap file of `records' random records; the one at `bad', if any,
+	 * has a name too long for the name index
+	 */
+	private static Heapfile heap(String name, int records, long seed, int bad)
+			throws Exception {
+		Heapfile heap = new Heapfile(name);
+		Random random = new Random(seed);
+		Tuple tuple = new Tuple();
+		tuple.setHdr((short) 2, TYPES, SIZES);
+		tuple = new Tuple(tuple.size());
+		tuple.setHdr((short) 2, TYPES, SIZES);
+		for (int i = 0; i < records; i++) {
+			tuple.setIntFld(1, random.nextInt(records / 4) - records / 8);
+			tuple.setStrFld(2, i == bad ? "a name far too long for the key"
+					: "n" + random.nextInt(records));
+			heap.insertRecord(tuple.returnTupleByteArray());
+		}
+		return heap;
+	}
+
+	private BTreeFile index(int field) throws Exception {
+		return field == 1 ? new BTreeFile("index" + indexes++,
+				AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE)
+				: new BTreeFile("index" + indexes++, AttrType.attrString,
+						NAME_KEY_SIZE, DeleteFashion.NAIVE_DELETE);
+	}
+
+	/* the entries of `file', key and rid, in scan order */
+	private static ArrayList<String> entries(BTreeFile file) throws Exception {
+		ArrayList<String> entries = new ArrayList<String>();
+		BTFileScan scan = file.new_scan(null, null);
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			RID rid = ((LeafData) entry.data).getData();
+			entries.add(entry.key + "@" + rid.pageNo.pid + "/" + rid.slotNo);
+		}
+		scan.DestroyBTreeFileScan();
+		return entries;
+	}
+
+	/*
+	 * whether `found' holds the entries of `expected' with the keys in the
+	 * same order; entries of equal keys may come in any order
+	 */
+	private static boolean same(String what, ArrayList<String> found,
+			ArrayList<String> expected) {
+		boolean status = found.size() == expected.size();
+		for (int i = 0; i < found.size() && status; i++) {
+			String key = found.get(i);
+			status = key.substring(0, key.indexOf('@')).equals(
+					expected.get(i).substring(0, key.indexOf('@')));
+		}
+		ArrayList<String> a = new ArrayList<String>(found);
+		ArrayList<String> b = new ArrayList<String>(expected);
+		Collections.sort(a);
+		Collections.sort(b);
+		if (!status || !a.equals(b)) {
+			System.err.println("*** " + what + ": " + found.size()
+					+ " entries, not the " + expected.size() + " expected");
+			return FAIL;
+		}
+		return OK;
+	}
+
+	/*
+	 * The indexes are destroyed once checked: DB reads the names of the
+	 * free entries of a directory page it adds, which hold whatever the
+	 * buffer frame held, so the tests keep to the files page 0 has room for.
+	 */
+	private static void destroy(BTreeFile file) throws Exception {
+		file.destroyFile();
+	}
+
+	/* the first page of the first free run of 64 pages */
+	private static int firstFit() throws Exception {
+		PageId first = new PageId();
+		SystemDefs.JavabaseDB.allocate_page(first, 64);
+		SystemDefs.JavabaseDB.deallocate_page(first, 64);
+		return first.pid;
+	}
+
+	/**
+	 * One thread, and memory for a few hundred entries at a time, so that
+	 * the runs take more than one merge pass: the index has the entries of
+	 * one insert per record.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: serial build against inserts");
+		boolean status = OK;
+		try {
+			new SystemDefs(dbpath, 30000, 100, "Clock");
+			heap = heap("records", RECORDS, 41, -1);
+			int before = pinned();
+
+			BTreeFile key = index(1);
+			BTreeFile name = index(2);
+			Scan scan = heap.openScan();
+			RID rid = new RID();
+			Tuple tuple;
+			while ((tuple = scan.getNext(rid)) != null) {
+				tuple.setHdr((short) 2, TYPES, SIZES);
+				key.insert(new IntegerKey(tuple.getIntFld(1)), rid);
+				name.insert(new StringKey(tuple.getStrFld(2)), rid);
+			}
+			scan.closescan();
+
+			BTreeFile built = index(1);
+			built.buildFrom(heap, 1, 0.9, 1 << 12, 1);
+			byKey = entries(built);
+			status = same("integer keys", byKey, entries(key));
+			destroy(built);
+
+			built = index(2);
+			built.buildFrom(heap, 2, 0.7, 1 << 13, 1);
+			byName = entries(built);
+			if (status == OK)
+				status = same("string keys", byName, entries(name));
+			destroy(built);
+			destroy(key);
+			destroy(name);
+
+			BTreeFile empty = index(1);
+			Heapfile nothing = new Heapfile("empty");
+			empty.buildFrom(nothing, 1, 0.9, 1 << 12, 1);
+			if (!entries(empty).isEmpty()) {
+				System.err.println("*** entries from an empty heap file");
+				status = FAIL;
+			}
+			destroy(empty);
+			nothing.deleteFile();
+			if (pinned() != before) {
+				System.err.println("*** " + (pinned() - before)
+						+ " pages left pinned");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Builds by two to eight threads, each with runs of its own or with
+	 * everything in memory, make the index of a build by one.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: parallel build against serial");
+		boolean status = OK;
+		try {
+			int before = pinned();
+			for (int threads : new int[] { 2, 4, 8 }) {
+				for (int memory : new int[] { 1 << 12, 1 << 20 }) {
+					String what = threads + " threads, " + memory + " bytes";
+					BTreeFile built = index(1);
+					built.buildFrom(heap, 1, 0.9, memory, threads);
+					if (status == OK)
+						status = same(what + ", integer keys", entries(built),
+								byKey);
+					destroy(built);
+
+					built = index(2);
+					built.buildFrom(heap, 2, 0.7, memory, threads);
+					if (status == OK)
+						status = same(what + ", string keys", entries(built),
+								byName);
+					destroy(built);
+				}
+			}
+			if (pinned() != before) {
+				System.err.println("*** " + (pinned() - before)
+						+ " pages left pinned");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * A name too long for the key, in the middle of the heap file after
+	 * runs have been written, or on its first page where the other threads
+	 * stop before they start: the build fails, the index stays empty and
+	 * can be built again, and the run pages are free again.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: failed builds");
+		boolean status = OK;
+		try {
+			Heapfile late = heap("late", RECORDS / 2, 42, RECORDS / 3);
+			Heapfile early = heap("early", RECORDS / 2, 43, 0);
+			int free = firstFit();
+			for (Heapfile bad : new Heapfile[] { late, early }) {
+				for (int threads : new int[] { 1, 4 }) {
+					String what = (bad == late ? "late" : "early") + " error, "
+							+ threads + " threads";
+					BTreeFile built = index(2);
+					int before = pinned();
+					int header = firstFit();
+					try {
+						built.buildFrom(bad, 2, 0.9, 1 << 12, threads);
+						System.err.println("*** " + what + ": built");
+						status = FAIL;
+					} catch (IndexInsertRecException e) {
+					}
+					if (!entries(built).isEmpty()) {
+						System.err.println("*** " + what + ": entries left");
+						status = FAIL;
+					}
+					if (pinned() != before) {
+						System.err.println("*** " + what + ": "
+								+ (pinned() - before) + " pages left pinned");
+						status = FAIL;
+					}
+					if (firstFit() != header) {
+						System.err.println("*** " + what
+								+ ": pages left allocated");
+						status = FAIL;
+					}
+
+					built.buildFrom(heap, 2, 0.7, 1 << 13, threads);
+					if (status == OK)
+						status = same(what + ", built again", entries(built),
+								byName);
+					destroy(built);
+					if (firstFit() != free) {
+						System.err.println("*** " + what
+								+ ": pages left allocated after the index");
+						status = FAIL;
+					}
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class IndexBuilderTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+		IndexBuilderDriver test = new IndexBuilderDriver();
+		if (!test.runTests())
+			Runtime.getRuntime().exit(1);
+		Runtime.getRuntime().exit(0);
+	}
+}
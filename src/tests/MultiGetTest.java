@@ -0,0 +1,181 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import btree.*;
+import global.*;
+
+/**
+ * Checks BTreeFile.multiGet against the keys that were inserted, and that it
+ * leaves no page pinned, also when a probe fails.
+ */
+class MultiGetDriver extends TestDriver implements GlobalConst {
+
+	private final static int KEYS = 20000;
+
+	private BTreeFile file;
+	// rids inserted under every key
+	private final HashMap<Integer, ArrayList<RID>> inserted = new HashMap<Integer, ArrayList<RID>>();
+
+	MultiGetDriver() {
+		super("multigettest");
+	}
+
+	protected String testName() {
+		return "multiGet";
+	}
+
+	/* whether `rids' are the rids inserted under `key', in any order */
+	private boolean matches(int key, RID[] rids) {
+		ArrayList<RID> expected = inserted.get(key);
+		if (expected == null)
+			return rids.length == 0;
+		if (rids.length != expected.size())
+			return false;
+		HashSet<String> left = new HashSet<String>();
+		for (RID rid : expected)
+			left.add(rid.pageNo.pid + "/" + rid.slotNo);
+		for (RID rid : rids)
+			if (!left.remove(rid.pageNo.pid + "/" + rid.slotNo))
+				return false;
+		return true;
+	}
+
+	/* probe `keys' at once and check every answer */
+	private boolean probe(int[] keys) throws Exception {
+		KeyClass[] probes = new KeyClass[keys.length];
+		for (int i = 0; i < keys.length; i++)
+			probes[i] = new IntegerKey(keys[i]);
+		RID[][] result = file.multiGet(probes);
+		if (result.length != keys.length) {
+			System.err.println("*** " + result.length + " answers for "
+					+ keys.length + " probes");
+			return FAIL;
+		}
+		for (int i = 0; i < keys.length; i++) {
+			if (!matches(keys[i], result[i])) {
+				System.err.println("*** wrong rids for key " + keys[i]
+						+ ": " + result[i].length + " returned");
+				return FAIL;
+			}
+		}
+		return OK;
+	}
+
+	/**
+	 * Random probes, in any order and with duplicates, some of them below,
+	 * between and above the keys of the index; keys that span leaves.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: probes against the inserted keys");
+		boolean status = OK;
+		try {
+			new SystemDefs(dbpath, 20000, 100, "Clock");
+			file = new BTreeFile("multiget", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+
+			Random random = new Random(26);
+			for (int i = 0; i < KEYS; i++) {
+				// a third of the keys, so most of them have duplicates
+				int key = random.nextInt(KEYS / 3);
+				RID rid = new RID(new PageId(key), i);
+				file.insert(new IntegerKey(key), rid);
+				ArrayList<RID> rids = inserted.get(key);
+				if (rids == null)
+					inserted.put(key, rids = new ArrayList<RID>());
+				rids.add(rid);
+			}
+			// one key with enough entries to fill several leaves
+			for (int i = 0; i < 1000; i++) {
+				RID rid = new RID(new PageId(KEYS), i);
+				file.insert(new IntegerKey(KEYS), rid);
+				ArrayList<RID> rids = inserted.get(KEYS);
+				if (rids == null)
+					inserted.put(KEYS, rids = new ArrayList<RID>());
+				rids.add(rid);
+			}
+
+			int before = pinned();
+			for (int round = 0; round < 10 && status == OK; round++) {
+				int[] keys = new int[round == 0 ? 1 : 500];
+				for (int i = 0; i < keys.length; i++)
+					keys[i] = random.nextInt(KEYS + 20) - 10;
+				keys[keys.length / 2] = KEYS;
+				status = probe(keys);
+			}
+			// every key in ascending order, and all the same key
+			if (status == OK) {
+				int[] keys = new int[KEYS / 3 + 1];
+				for (int i = 0; i < keys.length; i++)
+					keys[i] = i;
+				status = probe(keys);
+			}
+			if (status == OK)
+				status = probe(new int[] { 7, 7, 7, 7 });
+			if (status == OK)
+				status = probe(new int[0]);
+			if (status == OK && pinned() != before) {
+				System.err.println("*** " + (pinned() - before)
+						+ " pages left pinned");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * A probe of the wrong key type fails with KeyNotMatchException, and the
+	 * cursor it failed in is unpinned.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: failing probes leave nothing pinned");
+		boolean status = OK;
+		try {
+			int before = pinned();
+			KeyClass[][] bad = {
+					{ new IntegerKey(1), new StringKey("one") },
+					{ new StringKey("one"), new StringKey("two") } };
+			for (KeyClass[] probes : bad) {
+				try {
+					file.multiGet(probes);
+					System.err.println("*** string probes were accepted");
+					status = FAIL;
+				} catch (KeyNotMatchException e) {
+				}
+				if (pinned() != before) {
+					System.err.println("*** " + (pinned() - before)
+							+ " pages left pinned after a failed probe");
+					status = FAIL;
+				}
+			}
+			// and the index still answers
+			if (status == OK)
+				status = probe(new int[] { 1, 2, 3 });
+			file.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+}
+
+public class MultiGetTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+		MultiGetDriver test = new MultiGetDriver();
+		if (!test.runTests())
+			Runtime.getRuntime().exit(1);
+		Runtime.getRuntime().exit(0);
+	}
+}
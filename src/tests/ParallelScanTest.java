@@ -0,0 +1,267 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+import java.util.stream.*;
+
+import btree.*;
+import global.*;
+
+/**
+ * Checks BTRangeSpliterator: split as far as it goes, its parts return the
+ * entries of new_scan in the same order, each exactly once, also where the
+ * cuts fall on keys that fill many leaves; a parallel stream returns the
+ * same; and closing a stream that stopped early unpins its leaves.
+ */
+class ParallelScanDriver extends TestDriver implements GlobalConst {
+
+	/* a key with enough entries to be a separator many times over */
+	private final static int HOT = 500;
+
+	private BTreeFile file;
+
+	ParallelScanDriver() {
+		super("parallelscantest");
+	}
+
+	protected String testName() {
+		return "Parallel scan";
+	}
+
+	private static IntegerKey key(Integer key) {
+		return key == null ? null : new IntegerKey(key);
+	}
+
+	private static String name(KeyDataEntry entry) {
+		RID rid = ((LeafData) entry.data).getData();
+		return ((IntegerKey) entry.key).getKey() + "/" + rid.slotNo;
+	}
+
+	/* the entries of [lo, hi] as returned by new_scan */
+	private ArrayList<String> expected(Integer lo, Integer hi)
+			throws Exception {
+		ArrayList<String> entries = new ArrayList<String>();
+		BTFileScan scan = file.new_scan(key(lo), key(hi));
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null)
+			entries.add(name(entry));
+		scan.DestroyBTreeFileScan();
+		return entries;
+	}
+
+	/* split `split' as far as it goes; the parts in key order */
+	private static void split(Spliterator<KeyDataEntry> split,
+			List<Spliterator<KeyDataEntry>> parts) {
+		Spliterator<KeyDataEntry> prefix = split.trySplit();
+		if (prefix == null) {
+			parts.add(split);
+			return;
+		}
+		split(prefix, parts);
+		split(split, parts);
+	}
+
+	/*
+	 * whether the parts of [lo, hi] cut `parts' ways return the entries of
+	 * new_scan, and every key in one part only
+	 */
+	private boolean compare(Integer lo, Integer hi, int parts) throws Exception {
+		int before = pinned();
+		ArrayList<Spliterator<KeyDataEntry>> split = new ArrayList<Spliterator<KeyDataEntry>>();
+		split(file.new_parallel_scan(key(lo), key(hi), parts), split);
+		if (split.size() > parts) {
+			System.err.println("*** " + split.size() + " parts, not at most "
+					+ parts);
+			return FAIL;
+		}
+
+		ArrayList<String> found = new ArrayList<String>();
+		int lastKey = Integer.MIN_VALUE;
+		boolean status = OK;
+		for (Spliterator<KeyDataEntry> part : split) {
+			ArrayList<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+			part.forEachRemaining(entries::add);
+			if (entries.isEmpty())
+				continue;
+			// a key equal to a cut belongs to the part right of it only
+			int first = ((IntegerKey) entries.get(0).key).getKey();
+			if (!found.isEmpty() && first <= lastKey) {
+				System.err.println("*** key " + first + " in two parts");
+				status = FAIL;
+			}
+			for (KeyDataEntry entry : entries)
+				found.add(name(entry));
+			lastKey = ((IntegerKey) entries.get(entries.size() - 1).key)
+					.getKey();
+		}
+
+		ArrayList<String> expected = expected(lo, hi);
+		if (!expected.equals(found)) {
+			System.err.println("*** [" + lo + ", " + hi + "] in " + parts
+					+ " parts: " + found.size() + " entries, not "
+					+ expected.size() + " or not in scan order");
+			status = FAIL;
+		}
+		if (pinned() != before) {
+			System.err.println("*** [" + lo + ", " + hi + "]: "
+					+ (pinned() - before) + " pages left pinned");
+			status = FAIL;
+		}
+		return status;
+	}
+
+	/**
+	 * Every range, cut every number of ways, returns the entries of
+	 * new_scan; cuts on the hot key, which is on many leaves, lose none of
+	 * its entries and return none twice.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: parts against new_scan");
+		boolean status = OK;
+		try {
+			new SystemDefs(dbpath, 20000, 100, "Clock");
+			file = new BTreeFile("parallel", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			ArrayList<Integer> keys = new ArrayList<Integer>();
+			for (int k = 0; k < 1000; k++)
+				for (int i = 0; i <= k % 3; i++)
+					keys.add(k);
+			for (int i = 0; i < 3000; i++)
+				keys.add(HOT);
+			Collections.shuffle(keys, new Random(28));
+			for (int i = 0; i < keys.size(); i++)
+				file.insert(new IntegerKey(keys.get(i)), new RID(new PageId(i),
+						i));
+
+			Integer[][] ranges = { { null, null }, { HOT, HOT },
+					{ HOT - 1, HOT + 1 }, { 100, HOT }, { HOT, 900 },
+					{ 0, 999 }, { null, HOT }, { 2000, 3000 }, { 700, 100 } };
+			int[] parts = { 1, 2, 3, 8, 64 };
+			for (Integer[] range : ranges)
+				for (int n : parts)
+					if (status == OK)
+						status = compare(range[0], range[1], n);
+
+			ArrayList<Spliterator<KeyDataEntry>> split = new ArrayList<Spliterator<KeyDataEntry>>();
+			split(file.new_parallel_scan(null, null, 8), split);
+			if (split.size() < 2) {
+				System.err.println("*** the whole index was not split");
+				status = FAIL;
+			}
+			for (Spliterator<KeyDataEntry> part : split)
+				((BTRangeSpliterator) part).close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * A parallel stream returns the entries of new_scan, in order.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: parallel streams");
+		boolean status = OK;
+		try {
+			int before = pinned();
+			Integer[][] ranges = { { null, null }, { HOT, HOT }, { 10, 990 } };
+			for (Integer[] range : ranges) {
+				BTRangeSpliterator split = file.new_parallel_scan(
+						key(range[0]), key(range[1]), 4);
+				List<String> found = StreamSupport.stream(split, true)
+						.map(ParallelScanDriver::name)
+						.collect(Collectors.toList());
+				if (!found.equals(expected(range[0], range[1]))) {
+					System.err.println("*** [" + range[0] + ", " + range[1]
+							+ "]: " + found.size() + " entries streamed");
+					status = FAIL;
+				}
+			}
+			if (pinned() != before) {
+				System.err.println("*** " + (pinned() - before)
+						+ " pages left pinned");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * A stream that stops at the first match keeps leaves pinned until it
+	 * is closed, and close() unpins them all.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: close after a short-circuit");
+		boolean status = OK;
+		try {
+			int before = pinned();
+			BTRangeSpliterator split = file.new_parallel_scan(null, null, 4);
+			try (Stream<KeyDataEntry> stream = StreamSupport.stream(split,
+					false).onClose(split::close)) {
+				if (!stream.anyMatch(e -> ((IntegerKey) e.key).getKey() == 1)) {
+					System.err.println("*** key 1 not found");
+					status = FAIL;
+				}
+				if (pinned() == before) {
+					System.err.println("*** a stopped stream holds no leaf");
+					status = FAIL;
+				}
+			}
+			if (pinned() != before) {
+				System.err.println("*** " + (pinned() - before)
+						+ " pages left pinned by a sequential stream");
+				status = FAIL;
+			}
+
+			for (int round = 0; round < 20 && status == OK; round++) {
+				final int wanted = HOT + round * 17;
+				split = file.new_parallel_scan(null, null, 8);
+				try (Stream<KeyDataEntry> stream = StreamSupport.stream(
+						split, true).onClose(split::close)) {
+					Optional<KeyDataEntry> found = stream.filter(
+							e -> ((IntegerKey) e.key).getKey() >= wanted)
+							.findFirst();
+					if (!found.isPresent()
+							|| ((IntegerKey) found.get().key).getKey() != wanted) {
+						System.err.println("*** first key >= " + wanted
+								+ " not found");
+						status = FAIL;
+					}
+				}
+				if (pinned() != before) {
+					System.err.println("*** " + (pinned() - before)
+							+ " pages left pinned by a parallel stream");
+					status = FAIL;
+				}
+			}
+			file.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class ParallelScanTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+		ParallelScanDriver test = new ParallelScanDriver();
+		if (!test.runTests())
+			Runtime.getRuntime().exit(1);
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,214 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import btree.*;
+import global.*;
+
+/**
+ * Checks the range cache of BTreeFile: which scans are served from it, and
+ * that inserts and deletes drop exactly the cached ranges they change.
+ */
+class RangeCacheDriver extends TestDriver implements GlobalConst {
+
+	private final static int KEYS = 10000;
+
+	private BTreeFile file;
+	// key and slot of the entries in the index
+	private final ArrayList<int[]> live = new ArrayList<int[]>();
+	private int next; // slot of the next entry inserted
+
+	RangeCacheDriver() {
+		super("rangecachetest");
+	}
+
+	protected String testName() {
+		return "Range cache";
+	}
+
+	private void insert(int key) throws Exception {
+		file.insert(new IntegerKey(key), new RID(new PageId(next), next));
+		live.add(new int[] { key, next++ });
+	}
+
+	private void delete(int key) throws Exception {
+		for (int i = 0; i < live.size(); i++) {
+			if (live.get(i)[0] == key) {
+				int slot = live.remove(i)[1];
+				file.Delete(new IntegerKey(key), new RID(new PageId(slot),
+						slot));
+				return;
+			}
+		}
+	}
+
+	/*
+	 * scan [lo, hi] and check it against the live entries; `hit' tells
+	 * whether it should be served from the cache
+	 */
+	private boolean scan(int lo, int hi, boolean hit) throws Exception {
+		long hits = file.getStats().getRangeCacheHits();
+		int before = pinned();
+
+		ArrayList<String> found = new ArrayList<String>();
+		BTFileScan scan = file.new_scan(new IntegerKey(lo), new IntegerKey(hi));
+		KeyDataEntry entry = scan.get_next();
+		// a scan of the cache has no leaf pinned
+		boolean pins = pinned() != before;
+		for (; entry != null; entry = scan.get_next())
+			found.add(((IntegerKey) entry.key).getKey() + "/"
+					+ ((LeafData) entry.data).getData().slotNo);
+		scan.DestroyBTreeFileScan();
+
+		ArrayList<String> expected = new ArrayList<String>();
+		for (int[] e : live)
+			if (lo <= e[0] && e[0] <= hi)
+				expected.add(e[0] + "/" + e[1]);
+		Collections.sort(expected);
+		Collections.sort(found);
+		if (!expected.equals(found)) {
+			System.err.println("*** [" + lo + ", " + hi + "]: " + found.size()
+					+ " entries, not " + expected.size());
+			return FAIL;
+		}
+		boolean cached = file.getStats().getRangeCacheHits() != hits;
+		if (cached != hit || (cached && pins)) {
+			System.err.println("*** [" + lo + ", " + hi + "] "
+					+ (cached ? "" : "not ") + "read from the cache"
+					+ (pins ? ", with a page pinned" : ""));
+			return FAIL;
+		}
+		return OK;
+	}
+
+	/**
+	 * A range is cached the second time it is scanned and read from the
+	 * cache after that.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: ranges scanned again");
+		boolean status = OK;
+		try {
+			new SystemDefs(dbpath, 20000, 100, "Clock");
+			file = new BTreeFile("cached", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			Random random = new Random(48);
+			for (int i = 0; i < KEYS; i++)
+				insert(random.nextInt(KEYS));
+			file.setRangeCache(1 << 20);
+
+			status = scan(100, 200, false);
+			if (status == OK)
+				status = scan(100, 200, false);
+			for (int i = 0; i < 3 && status == OK; i++)
+				status = scan(100, 200, true);
+			// another range is not served from this one
+			if (status == OK)
+				status = scan(100, 199, false);
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Inserts and deletes inside a cached range drop it, those outside of
+	 * it do not; so does a delete through a scan of the cache.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: inserts and deletes");
+		boolean status = OK;
+		try {
+			// [100, 200] is cached by test 1
+			for (int i = 0; i < 2 && status == OK; i++)
+				status = scan(300, 400, false);
+
+			// on a bound, inside, and just outside of [100, 200]
+			int[][] changes = { { 200, 1 }, { 150, 0 }, { 100, 1 },
+					{ 201, 1 }, { 99, 0 } };
+			for (int[] change : changes) {
+				if (status == FAIL)
+					break;
+				boolean inside = 100 <= change[0] && change[0] <= 200;
+				if (change[1] == 1)
+					insert(change[0]);
+				else
+					delete(change[0]);
+				status = scan(100, 200, !inside);
+				if (status == OK)
+					status = scan(300, 400, true);
+				// cached again the second time after it was dropped
+				if (status == OK && inside)
+					status = scan(100, 200, false);
+				if (status == OK)
+					status = scan(100, 200, true);
+			}
+
+			if (status == OK) {
+				BTFileScan scan = file.new_scan(new IntegerKey(300),
+						new IntegerKey(400));
+				KeyDataEntry entry = scan.get_next();
+				scan.delete_current();
+				scan.DestroyBTreeFileScan();
+				int key = ((IntegerKey) entry.key).getKey();
+				int slot = ((LeafData) entry.data).getData().slotNo;
+				for (int i = 0; i < live.size(); i++)
+					if (live.get(i)[0] == key && live.get(i)[1] == slot)
+						live.remove(i--);
+				status = scan(300, 400, false);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * A range too large for the budget is never cached, and a cache of 0
+	 * bytes is off.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: the budget");
+		boolean status = OK;
+		try {
+			file.setRangeCache(8 * 1024);
+			for (int i = 0; i < 4 && status == OK; i++)
+				status = scan(0, KEYS, false);
+			for (int i = 0; i < 2 && status == OK; i++)
+				status = scan(10, 20, false);
+			if (status == OK)
+				status = scan(10, 20, true);
+
+			file.setRangeCache(0);
+			for (int i = 0; i < 3 && status == OK; i++)
+				status = scan(10, 20, false);
+			file.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class RangeCacheTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+		RangeCacheDriver test = new RangeCacheDriver();
+		if (!test.runTests())
+			Runtime.getRuntime().exit(1);
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,178 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import btree.*;
+import global.*;
+
+/**
+ * Checks the descending scans of BTreeFile.new_scan_desc against the
+ * ascending ones, and deletes made through them.
+ */
+class ReverseScanDriver extends TestDriver implements GlobalConst {
+
+	private final static int KEYS = 20000;
+
+	private BTreeFile file;
+
+	ReverseScanDriver() {
+		super("reversescantest");
+	}
+
+	protected String testName() {
+		return "Reverse scan";
+	}
+
+	/* the entries of a scan as key/slot, in the order it returns them */
+	private static ArrayList<String> entries(IndexFileScan scan)
+			throws Exception {
+		ArrayList<String> entries = new ArrayList<String>();
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null)
+			entries.add(((IntegerKey) entry.key).getKey() + "/"
+					+ ((LeafData) entry.data).getData().slotNo);
+		return entries;
+	}
+
+	private static int keyOf(String entry) {
+		return Integer.parseInt(entry.substring(0, entry.indexOf('/')));
+	}
+
+	/**
+	 * Every range returns the entries of the ascending scan, from the
+	 * largest key down.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: descending scans of ranges");
+		boolean status = OK;
+		try {
+			new SystemDefs(dbpath, 20000, 100, "Clock");
+			file = new BTreeFile("reverse", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+
+			BTReverseFileScan empty = file.new_scan_desc(null, null);
+			if (empty.get_next() != null) {
+				System.err.println("*** an entry in an empty index");
+				status = FAIL;
+			}
+			empty.DestroyBTreeFileScan();
+
+			Random random = new Random(29);
+			for (int i = 0; i < KEYS; i++) {
+				int key = random.nextInt(KEYS / 3);
+				file.insert(new IntegerKey(key), new RID(new PageId(key), i));
+			}
+
+			int before = pinned();
+			// bounds open, inside, on one key, outside and crossed
+			int[][] ranges = { { -1, -1 }, { 100, 5000 }, { 7, 7 },
+					{ -1, 300 }, { 3000, -1 }, { KEYS, -1 }, { -1, -5 },
+					{ 500, 400 } };
+			for (int[] range : ranges) {
+				KeyClass lo = range[0] == -1 ? null : new IntegerKey(range[0]);
+				KeyClass hi = range[1] == -1 ? null : new IntegerKey(range[1]);
+
+				BTFileScan scan = file.new_scan(lo, hi);
+				ArrayList<String> ascending = entries(scan);
+				scan.DestroyBTreeFileScan();
+				BTReverseFileScan desc = file.new_scan_desc(lo, hi);
+				ArrayList<String> descending = entries(desc);
+				desc.DestroyBTreeFileScan();
+
+				for (int i = 1; i < descending.size(); i++) {
+					if (keyOf(descending.get(i)) > keyOf(descending.get(i - 1))) {
+						System.err.println("*** " + descending.get(i)
+								+ " after " + descending.get(i - 1));
+						status = FAIL;
+						break;
+					}
+				}
+				Collections.sort(ascending);
+				Collections.sort(descending);
+				if (!ascending.equals(descending)) {
+					System.err.println("*** range " + Arrays.toString(range)
+							+ ": " + descending.size() + " entries, not "
+							+ ascending.size());
+					status = FAIL;
+				}
+			}
+			if (pinned() != before) {
+				System.err.println("*** " + (pinned() - before)
+						+ " pages left pinned");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Deleting every other entry of a range through a descending scan
+	 * removes exactly those entries, and the scan goes on past them.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: deletes through a descending scan");
+		boolean status = OK;
+		try {
+			KeyClass lo = new IntegerKey(1000);
+			KeyClass hi = new IntegerKey(4000);
+			BTFileScan scan = file.new_scan(null, null);
+			ArrayList<String> all = entries(scan);
+			scan.DestroyBTreeFileScan();
+
+			int before = pinned();
+			HashSet<String> deleted = new HashSet<String>();
+			BTReverseFileScan desc = file.new_scan_desc(lo, hi);
+			KeyDataEntry entry;
+			for (int i = 0; (entry = desc.get_next()) != null; i++) {
+				if (i % 2 == 0) {
+					desc.delete_current();
+					deleted.add(((IntegerKey) entry.key).getKey() + "/"
+							+ ((LeafData) entry.data).getData().slotNo);
+				}
+			}
+			desc.DestroyBTreeFileScan();
+			if (pinned() != before) {
+				System.err.println("*** " + (pinned() - before)
+						+ " pages left pinned");
+				status = FAIL;
+			}
+
+			all.removeAll(deleted);
+			scan = file.new_scan(null, null);
+			ArrayList<String> left = entries(scan);
+			scan.DestroyBTreeFileScan();
+			Collections.sort(all);
+			Collections.sort(left);
+			if (deleted.isEmpty() || !all.equals(left)) {
+				System.err.println("*** " + left.size()
+						+ " entries left, not " + all.size());
+				status = FAIL;
+			}
+			file.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+}
+
+public class ReverseScanTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+		ReverseScanDriver test = new ReverseScanDriver();
+		if (!test.runTests())
+			Runtime.getRuntime().exit(1);
+		Runtime.getRuntime().exit(0);
+	}
+}
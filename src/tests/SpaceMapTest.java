@@ -0,0 +1,214 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * Checks that SpaceMapDB hands out the same pages as DB: the same random
+ * runs are allocated and freed, whole and in parts, in a database of each
+ * kind, and both must pick the same first page for every run and run out
+ * of space at the same time, also after they are opened again.
+ */
+class SpaceMapDriver extends TestDriver implements GlobalConst {
+
+	private final static int PAGES = 3000;
+
+	/*
+	 * the databases are closed and opened again by name, so they have files
+	 * of their own rather than dbpath, which runTests() removes in the
+	 * background
+	 */
+	private final String plainPath;
+	private final String mappedPath;
+	// runs allocated and not freed yet, first page and size
+	private final ArrayList<int[]> plainRuns = new ArrayList<int[]>();
+	private final ArrayList<int[]> mappedRuns = new ArrayList<int[]>();
+	private boolean full; // whether a run did not fit in the last compare()
+
+	SpaceMapDriver() {
+		super("spacemaptest");
+		plainPath = dbpath + ".plain";
+		mappedPath = dbpath + ".mapped";
+	}
+
+	protected String testName() {
+		return "Space map";
+	}
+
+	/* open or create a database, a SpaceMapDB if `mapped' */
+	private static void open(String path, int pages, boolean mapped)
+			throws Exception {
+		new SystemDefs(path, pages, 50, "Clock");
+		if (mapped)
+			SpaceMapDB.install();
+	}
+
+	private static void shutdown() throws Exception {
+		SystemDefs.JavabaseBM.flushAllPages();
+		SystemDefs.JavabaseDB.closeDB();
+	}
+
+	/*
+	 * Allocate and free `ops' random runs, the same ones for the same seed
+	 * as long as the pages handed out are the same. Allocations are
+	 * returned as their first page, or minus their size when they failed
+	 * for lack of space.
+	 */
+	private static ArrayList<Integer> apply(long seed, int ops,
+			ArrayList<int[]> runs, boolean split) throws Exception {
+		Random random = new Random(seed);
+		ArrayList<Integer> pages = new ArrayList<Integer>();
+		DB db = SystemDefs.JavabaseDB;
+		for (int i = 0; i < ops; i++) {
+			int op = random.nextInt(10);
+			if (op < 6 || runs.isEmpty()) {
+				// runs of more than 64 pages span words of the tree
+				int size = random.nextInt(4) == 0 ? 1 + random.nextInt(150)
+						: 1 + random.nextInt(8);
+				PageId first = new PageId();
+				try {
+					if (size == 1)
+						db.allocate_page(first);
+					else
+						db.allocate_page(first, size);
+					runs.add(new int[] { first.pid, size });
+					pages.add(first.pid);
+				} catch (OutOfSpaceException e) {
+					pages.add(-size);
+				}
+				continue;
+			}
+
+			int[] run = runs.remove(random.nextInt(runs.size()));
+			if (!split || op < 8) {
+				db.deallocate_page(new PageId(run[0]), run[1]);
+				continue;
+			}
+			// free the middle of a run, the ends stay allocated
+			int from = random.nextInt(run[1]);
+			int size = 1 + random.nextInt(run[1] - from);
+			if (size == 1)
+				db.deallocate_page(new PageId(run[0] + from));
+			else
+				db.deallocate_page(new PageId(run[0] + from), size);
+			if (from > 0)
+				runs.add(new int[] { run[0], from });
+			if (from + size < run[1])
+				runs.add(new int[] { run[0] + from + size,
+						run[1] - from - size });
+		}
+		return pages;
+	}
+
+	/*
+	 * run the same operations on both databases; `create' makes them anew,
+	 * else they are opened again
+	 */
+	private boolean compare(String what, long seed, int ops, boolean split,
+			boolean create) throws Exception {
+		open(plainPath, create ? PAGES : 0, false);
+		ArrayList<Integer> plain = apply(seed, ops, plainRuns, split);
+		shutdown();
+		open(mappedPath, create ? PAGES : 0, true);
+		ArrayList<Integer> mapped = apply(seed, ops, mappedRuns, split);
+		shutdown();
+
+		for (int i = 0; i < Math.min(plain.size(), mapped.size()); i++) {
+			if (!plain.get(i).equals(mapped.get(i))) {
+				System.err.println("*** " + what + ", allocation " + i
+						+ ": page " + mapped.get(i) + ", not " + plain.get(i));
+				return FAIL;
+			}
+		}
+		if (plain.size() != mapped.size()) {
+			System.err.println("*** " + what + ": " + mapped.size()
+					+ " allocations, not " + plain.size());
+			return FAIL;
+		}
+		full = false;
+		for (int page : plain)
+			if (page < 0)
+				full = true;
+		return OK;
+	}
+
+	/**
+	 * Whole runs allocated and freed, until the database is full and
+	 * beyond.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: first fit against DB");
+		boolean status = OK;
+		try {
+			new File(plainPath).delete();
+			new File(mappedPath).delete();
+			status = compare("whole runs", 37, 2000, false, true);
+			if (status == OK && !full) {
+				System.err.println("*** the database never filled up");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Parts of runs freed, which splits the free space into holes of every
+	 * size, some of them across 64-page words.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: runs freed in parts");
+		boolean status = OK;
+		try {
+			status = compare("parts of runs", 38, 3000, true, false);
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Opened again and again, a SpaceMapDB builds its free runs from the
+	 * space map pages and goes on where DB goes on.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: open again");
+		boolean status = OK;
+		try {
+			for (int round = 0; round < 5 && status == OK; round++)
+				status = compare("round " + round, 39 + round, 300,
+						round % 2 == 0, false);
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		new File(plainPath).delete();
+		new File(mappedPath).delete();
+
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class SpaceMapTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+		SpaceMapDriver test = new SpaceMapDriver();
+		if (!test.runTests())
+			Runtime.getRuntime().exit(1);
+		Runtime.getRuntime().exit(0);
+	}
+}
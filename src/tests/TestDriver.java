@@ -3,6 +3,7 @@ import java.io.*;
 import java.util.*;
 import java.lang.*;
 import chainexception.*;
+import global.*;
 
 //    Major Changes:
 //    1. Change the return type of test() functions from 'int' to 'boolean'
@@ -94,6 +95,15 @@ public class TestDriver {
    */
   protected boolean test6 () { return true; }
 
+  /**
+   * @return the number of buffer frames pinned right now, to check that a
+   * test leaves no page pinned
+   */
+  protected static int pinned () {
+    return SystemDefs.JavabaseBM.getNumBuffers()
+      - SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+  }
+
   /** 
    * @return <code>String</code> object which contains the name of the test
    */